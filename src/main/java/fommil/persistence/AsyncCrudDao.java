@@ -0,0 +1,276 @@
+// Copyright Samuel Halliday 2012
+package fommil.persistence;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous front end to a {@link CrudDao}, so that UI and
+ * acquisition threads never block on database I/O.
+ * <p/>
+ * All operations are performed on a dedicated, bounded, pool of
+ * threads. If the queue is full, the returned future fails
+ * immediately with a {@link RejectedExecutionException} rather than
+ * blocking the caller.
+ * <p/>
+ * Updates to the same entity (according to its {@code equals}, which
+ * for JPA entities should be based on the primary key) that are
+ * waiting in the queue are coalesced: only the most recent state is
+ * written and all callers receive the same result. Updates to the same
+ * entity are never performed concurrently: an update that arrives while
+ * another is being written is queued once the first has completed, so
+ * the database always ends up with the most recent state.
+ *
+ * @param <K> the class of the type's primary key
+ * @param <T> the class of the type
+ * @author Samuel Halliday
+ */
+public class AsyncCrudDao<K, T> {
+
+    private final CrudDao<K, T> dao;
+    private final ListeningExecutorService executor;
+
+    // updates that have not started
+    @GuardedBy("pending")
+    private final Map<T, PendingUpdate> pending = Maps.newHashMap();
+
+    // entities with an update in progress
+    @GuardedBy("pending")
+    private final Set<T> writing = Sets.newHashSet();
+
+    private class PendingUpdate implements Runnable {
+        private final SettableFuture<T> future = SettableFuture.create();
+        @GuardedBy("pending")
+        private T entity;
+
+        private PendingUpdate(T entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public void run() {
+            T latest;
+            synchronized (pending) {
+                latest = entity;
+                pending.remove(latest);
+                writing.add(latest);
+            }
+            try {
+                future.set(dao.update(latest));
+            } catch (RuntimeException e) {
+                future.setException(e);
+            } finally {
+                PendingUpdate next;
+                synchronized (pending) {
+                    writing.remove(latest);
+                    next = pending.get(latest);
+                    if (next != null) {
+                        try {
+                            executor.execute(next);
+                            next = null;
+                        } catch (RejectedExecutionException e) {
+                            if (!executor.isShutdown()) {
+                                pending.remove(next.entity);
+                                next.future.setException(e);
+                                next = null;
+                            }
+                        }
+                    }
+                }
+                // queued before shutdown, so must still be performed
+                if (next != null)
+                    next.run();
+            }
+        }
+    }
+
+    /**
+     * @param dao
+     * @param threads  maximum concurrency against the database
+     * @param capacity maximum number of queued operations
+     */
+    public AsyncCrudDao(CrudDao<K, T> dao, int threads, int capacity) {
+        Preconditions.checkArgument(threads > 0 && capacity > 0);
+        this.dao = Preconditions.checkNotNull(dao);
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(getClass().getSimpleName() + "-%d")
+                .build();
+        executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), factory));
+    }
+
+    /**
+     * @param entity
+     * @return
+     * @see CrudDao#create(Object)
+     */
+    public ListenableFuture<Void> create(final T entity) {
+        Preconditions.checkNotNull(entity);
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.create(entity);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param entities
+     * @return
+     * @see CrudDao#create(Collection)
+     */
+    public ListenableFuture<Void> create(final Collection<T> entities) {
+        Preconditions.checkNotNull(entities);
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.create(entities);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return
+     * @see CrudDao#read(Object)
+     */
+    public ListenableFuture<T> read(final K key) {
+        Preconditions.checkNotNull(key);
+        return submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return dao.read(key);
+            }
+        });
+    }
+
+    /**
+     * @param keys
+     * @return
+     * @see CrudDao#read(Collection)
+     */
+    public ListenableFuture<List<T>> read(final Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        return submit(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return dao.read(keys);
+            }
+        });
+    }
+
+    /**
+     * Coalesced with any update of the same entity that is still queued.
+     *
+     * @param entity
+     * @return
+     * @see CrudDao#update(Object)
+     */
+    public ListenableFuture<T> update(T entity) {
+        Preconditions.checkNotNull(entity);
+        synchronized (pending) {
+            PendingUpdate update = pending.get(entity);
+            if (update != null) {
+                // keys are equal, but the state may not be
+                pending.remove(entity);
+                update.entity = entity;
+                pending.put(entity, update);
+                return update.future;
+            }
+            update = new PendingUpdate(entity);
+            pending.put(entity, update);
+            // otherwise queued when the current update completes
+            if (!writing.contains(entity))
+                execute(update);
+            return update.future;
+        }
+    }
+
+    @GuardedBy("pending")
+    private void execute(PendingUpdate update) {
+        try {
+            executor.execute(update);
+        } catch (RejectedExecutionException e) {
+            pending.remove(update.entity);
+            update.future.setException(e);
+        }
+    }
+
+    /**
+     * @param entity
+     * @return
+     * @see CrudDao#delete(Object)
+     */
+    public ListenableFuture<Void> delete(final T entity) {
+        Preconditions.checkNotNull(entity);
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.delete(entity);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return
+     * @see CrudDao#deleteById(Object)
+     */
+    public ListenableFuture<Void> deleteById(final K key) {
+        Preconditions.checkNotNull(key);
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                dao.deleteById(key);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new operations, queued operations will still be performed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Blocks until all queued operations have been performed after a {@link #shutdown()}.
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the timeout elapsed first.
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private <R> ListenableFuture<R> submit(Callable<R> callable) {
+        try {
+            return executor.submit(callable);
+        } catch (RejectedExecutionException e) {
+            SettableFuture<R> failed = SettableFuture.create();
+            failed.setException(e);
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+// Copyright Samuel Halliday 2012
+package fommil.persistence;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link CrudDao} with an in-process, read-through, cache of entities
+ * by primary key. The cache is bounded in size, evicts the least recently
+ * used entities and expires entries after a fixed time.
+ * <p/>
+ * Entries are invalidated by updates, deletes and {@link #transact(Work)}
+ * made through this DAO, but not by changes made elsewhere (including other
+ * DAOs and bulk operations on other tables): the expiry time should reflect
+ * how stale clients are willing to tolerate.
+ * <p/>
+ * Every write through this DAO advances a generation for the keys it touches
+ * (or for all keys) before it begins and again after it completes. A read only
+ * caches what it loaded if the generation of its key did not change while it
+ * was loading, and removes it again if a write got in between, so a read that
+ * overlaps a write through this DAO cannot leave the previous state in the cache.
+ * <p/>
+ * <b>WARNING</b>: cached instances are shared between callers, who must
+ * not modify them except as part of an {@link #update(Object)}.
+ *
+ * @param <K> the class of the type's primary key
+ * @param <T> the class of the type
+ * @author Samuel Halliday
+ */
+public abstract class CachedCrudDao<K, T> extends CrudDao<K, T> {
+
+    // generations are striped by key, so a write may cause other keys to miss
+    private static final int STRIPES = 64;
+
+    private final Cache<K, T> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param klass   class of the entity type, must be an {@link Entity} type.
+     * @param emf
+     * @param size    maximum number of cached entities
+     * @param ttl     time to live of cached entities
+     * @param ttlUnit
+     */
+    protected CachedCrudDao(Class<T> klass, EntityManagerFactory emf, long size, long ttl, TimeUnit ttlUnit) {
+        super(klass, emf);
+        Preconditions.checkArgument(size >= 0 && ttl > 0);
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(ttl, ttlUnit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return hit, miss and eviction statistics.
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Invalidate all cached entities, e.g. after changes have been made
+     * to the database by another process.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    @Override
+    public T read(K key) {
+        Preconditions.checkNotNull(key);
+        T entity = cache.getIfPresent(key);
+        if (entity != null)
+            return entity;
+        long loaded = generation(key);
+        entity = super.read(key);
+        if (entity == null)
+            // not found, which is not cached
+            return null;
+        return cache(key, entity, loaded);
+    }
+
+    @Override
+    public List<T> read(Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        Map<K, T> found = Maps.newHashMap();
+        List<K> missing = Lists.newArrayList();
+        for (K key : keys) {
+            T entity = cache.getIfPresent(key);
+            if (entity == null)
+                missing.add(key);
+            else
+                found.put(key, entity);
+        }
+        if (!missing.isEmpty()) {
+            Map<K, Long> loaded = Maps.newHashMap();
+            for (K key : missing) {
+                loaded.put(key, generation(key));
+            }
+            for (T entity : super.read(missing)) {
+                if (entity == null)
+                    continue;
+                K key = getKey(entity);
+                found.put(key, cache(key, entity, loaded.get(key)));
+            }
+        }
+        List<T> results = Lists.newArrayList();
+        for (K key : keys) {
+            results.add(found.get(key));
+        }
+        return results;
+    }
+
+    /**
+     * Invalidates all cached entities, as the work may write any of them.
+     *
+     * @param work
+     * @return
+     */
+    @Override
+    public <R> R transact(Work<R> work) {
+        invalidateAll();
+        try {
+            return super.transact(work);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public T update(T entity) {
+        Preconditions.checkNotNull(entity);
+        K key = getKey(entity);
+        invalidate(key);
+        try {
+            return super.update(entity);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Set<T> update(Collection<T> entities) {
+        invalidate(entities);
+        try {
+            return super.update(entities);
+        } finally {
+            invalidate(entities);
+        }
+    }
+
+    @Override
+    public void delete(T entity) {
+        Preconditions.checkNotNull(entity);
+        K key = getKey(entity);
+        invalidate(key);
+        try {
+            super.delete(entity);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void delete(Collection<T> entities) {
+        invalidate(entities);
+        try {
+            super.delete(entities);
+        } finally {
+            invalidate(entities);
+        }
+    }
+
+    @Override
+    public void deleteById(K id) {
+        Preconditions.checkNotNull(id);
+        invalidate(id);
+        try {
+            super.deleteById(id);
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public int deleteByIds(Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        invalidateKeys(keys);
+        try {
+            return super.deleteByIds(keys);
+        } finally {
+            invalidateKeys(keys);
+        }
+    }
+
+    @Override
+    public int deleteWhere(String predicate, Map<String, ?> parameters) {
+        invalidateAll();
+        try {
+            return super.deleteWhere(predicate, parameters);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public int updateWhere(String assignments, String predicate, Map<String, ?> parameters) {
+        invalidateAll();
+        try {
+            return super.updateWhere(assignments, predicate, parameters);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    // the generation must be advanced before the entry is invalidated
+    private void invalidate(K key) {
+        generations.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    private void invalidate(Collection<T> entities) {
+        Preconditions.checkNotNull(entities);
+        for (T entity : entities) {
+            invalidate(getKey(entity));
+        }
+    }
+
+    private void invalidateKeys(Collection<K> keys) {
+        for (K key : keys) {
+            invalidate(key);
+        }
+    }
+
+    private int stripe(K key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    // both parts only ever increase, so the sum changes if either does
+    private long generation(K key) {
+        return generation.get() + generations.get(stripe(key));
+    }
+
+    /**
+     * @param key
+     * @param entity as read from the database
+     * @param loaded the generation of the key before the entity was read
+     * @return the entity, or a concurrently cached instance
+     */
+    private T cache(K key, T entity, long loaded) {
+        if (generation(key) != loaded)
+            return entity;
+        // a concurrent read may have won, which is equally fresh
+        T existing = cache.asMap().putIfAbsent(key, entity);
+        if (existing != null)
+            return existing;
+        // a write that completed between the check and the put
+        // would not have seen our entry when it invalidated
+        if (generation(key) != loaded)
+            cache.asMap().remove(key, entity);
+        return entity;
+    }
+}
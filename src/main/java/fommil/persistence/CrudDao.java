@@ -2,13 +2,16 @@
 package fommil.persistence;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import lombok.Cleanup;
 import lombok.extern.java.Log;
 
 import javax.persistence.*;
+import javax.persistence.metamodel.EntityType;
 import java.io.File;
 import java.io.Reader;
 import java.lang.annotation.Annotation;
@@ -22,6 +25,7 @@ import java.util.*;
  * <p/>
  * <b>WARNING</b>: each of these methods is contained in a single {@link EntityTransaction}, which means that
  * clients will be prone to Last Commit Wins concurrency problems that can result in data loss.
+ * Multi-step operations should use {@link #transact(Work)}.
  * <p/>
  * Implementations are reminded that many convenience methods are provided with {@code protected}
  * visibility.
@@ -37,6 +41,11 @@ public abstract class CrudDao<K, T> {
 
     private static final String JPA_PROPERTIES = "jpa.properties";
 
+    /**
+     * Maximum number of keys in a single {@code IN} clause.
+     */
+    protected static final int CHUNK = 500;
+
     /**
      * Convenience method for creating an {@link EntityManagerFactory}. This has several advantages
      * over using {@link Persistence#createEntityManagerFactory(String)}:
@@ -104,20 +113,55 @@ public abstract class CrudDao<K, T> {
     }
 
     /**
-     * Note that if the primary key is user-generated, you will experience an exception if an
-     * entity already exists with that key.
+     * A unit of work, to be performed in a single {@link EntityTransaction}.
      *
-     * @param entity
+     * @param <R> the result type
+     * @see #transact(Work)
+     */
+    public interface Work<R> {
+        /**
+         * @param em with an active transaction, which must not be committed or rolled back.
+         * @return
+         */
+        R apply(EntityManager em);
+    }
+
+    /**
+     * Performs the work against a single {@link EntityManager} and {@link EntityTransaction},
+     * which is committed if the work completes normally and rolled back otherwise. This
+     * allows multi-step writes (e.g. creating an entity along with the first of its
+     * dependents) to be atomic and avoids a round trip for each step:
+     * <code><pre>
+     * dao.transact(new Work&lt;Void&gt;() {
+     *     public Void apply(EntityManager em) {
+     *         em.persist(parent);
+     *         for (Child child : children)
+     *             em.persist(child);
+     *         return null;
+     *     }
+     * });
+     * </pre></code>
+     * The work is not restricted to entities of this DAO's type.
+     *
+     * @param work
+     * @return the result of the work
      * @throws PersistenceException
      */
-    public void create(T entity) {
-        Preconditions.checkNotNull(entity);
+    public <R> R transact(Work<R> work) {
+        return perform(work);
+    }
+
+    // the operations of this class use this, rather than transact, so
+    // that subclasses may distinguish arbitrary work from their own writes
+    private <R> R perform(Work<R> work) {
+        Preconditions.checkNotNull(work);
         @Cleanup("close") EntityManager em = createEntityManager();
         try {
             em.getTransaction().begin();
-            em.persist(entity);
+            R result = work.apply(em);
             em.getTransaction().commit();
-        } catch (PersistenceException e) {
+            return result;
+        } catch (RuntimeException e) {
             if (em.getTransaction().isActive()) {
                 em.getTransaction().rollback();
             }
@@ -125,6 +169,24 @@ public abstract class CrudDao<K, T> {
         }
     }
 
+    /**
+     * Note that if the primary key is user-generated, you will experience an exception if an
+     * entity already exists with that key.
+     *
+     * @param entity
+     * @throws PersistenceException
+     */
+    public void create(final T entity) {
+        Preconditions.checkNotNull(entity);
+        perform(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                em.persist(entity);
+                return null;
+            }
+        });
+    }
+
     /**
      * Note that if the primary key is user-generated, you will experience an exception if an
      * entity already exists with the key of any of these entities and the entire create call
@@ -133,24 +195,20 @@ public abstract class CrudDao<K, T> {
      * @param collection
      * @throws PersistenceException
      */
-    public void create(Collection<T> collection) {
+    public void create(final Collection<T> collection) {
         Preconditions.checkNotNull(collection);
         if (collection.isEmpty()) {
             return;
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            for (T entity : collection) {
-                em.persist(entity);
+        perform(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                for (T entity : collection) {
+                    em.persist(entity);
+                }
+                return null;
             }
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
-        }
+        });
     }
 
     /**
@@ -165,17 +223,25 @@ public abstract class CrudDao<K, T> {
     }
 
     /**
+     * Keys are looked up in chunks of {@value #CHUNK}, using an {@code IN} clause.
+     *
      * @param keys
-     * @return the entities with the given keys, or null if not found
+     * @return the entities with the given keys, in the same order, or null if not found
      * @throws PersistenceException
      */
     public List<T> read(Collection<K> keys) {
         Preconditions.checkNotNull(keys);
-        List<T> results = Lists.newArrayList();
+        if (keys.isEmpty()) {
+            return Lists.newArrayList();
+        }
         @Cleanup("close") EntityManager em = createEntityManager();
+        Map<Object, T> found = Maps.newHashMap();
+        for (T entity : readManaged(em, keys)) {
+            found.put(getKey(entity), entity);
+        }
+        List<T> results = Lists.newArrayList();
         for (K key : keys) {
-            T result = em.find(klass, key);
-            results.add(result);
+            results.add(found.get(key));
         }
         return results;
     }
@@ -187,21 +253,14 @@ public abstract class CrudDao<K, T> {
      * @return the updated entity (which will be different from the one passed in)
      * @throws PersistenceException
      */
-    @SuppressWarnings("AssignmentToMethodParameter")
-    public T update(T entity) {
+    public T update(final T entity) {
         Preconditions.checkNotNull(entity);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            entity = em.merge(entity);
-            em.getTransaction().commit();
-            return entity;
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        return perform(new Work<T>() {
+            @Override
+            public T apply(EntityManager em) {
+                return em.merge(entity);
             }
-            throw e;
-        }
+        });
     }
 
     /**
@@ -211,110 +270,159 @@ public abstract class CrudDao<K, T> {
      * @return
      * @throws PersistenceException
      */
-    @SuppressWarnings("AssignmentToForLoopParameter")
-    public Set<T> update(Collection<T> entities) {
+    public Set<T> update(final Collection<T> entities) {
         Preconditions.checkNotNull(entities);
         if (entities.isEmpty()) {
             return Collections.emptySet();
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            Set<T> updated = Sets.newHashSet();
-            for (T entity : entities) {
-                entity = em.merge(entity);
-                updated.add(entity);
+        return perform(new Work<Set<T>>() {
+            @Override
+            public Set<T> apply(EntityManager em) {
+                Set<T> updated = Sets.newHashSet();
+                for (T entity : entities) {
+                    updated.add(em.merge(entity));
+                }
+                return updated;
             }
-            em.getTransaction().commit();
-            return updated;
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
-            }
-            throw e;
-        }
+        });
     }
 
     /**
      * @param entity
      * @throws PersistenceException
      */
-    @SuppressWarnings("AssignmentToMethodParameter")
-    public void delete(T entity) {
+    public void delete(final T entity) {
         Preconditions.checkNotNull(entity);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            entity = em.merge(entity);
-            removeFromManyToManyMappings(em, entity);
-            em.remove(entity);
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        perform(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                T managed = em.merge(entity);
+                removeFromManyToManyMappings(em, managed);
+                em.remove(managed);
+                return null;
             }
-            throw e;
-        }
+        });
     }
 
     /**
+     * The entities are loaded in chunks of {@value #CHUNK}, rather than merged
+     * individually. See {@link #deleteByIds(Collection)} for a faster alternative
+     * that bypasses {@link #removeFromManyToManyMappings(EntityManager, Object)}.
+     *
      * @param entities
      * @throws PersistenceException
      */
-    @SuppressWarnings("AssignmentToForLoopParameter")
     public void delete(Collection<T> entities) {
         Preconditions.checkNotNull(entities);
         if (entities.isEmpty()) {
             return;
         }
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-            for (T entity : entities) {
-                entity = em.merge(entity);
-                removeFromManyToManyMappings(em, entity);
-                em.remove(entity);
-            }
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        final List<K> keys = Lists.newArrayList();
+        for (T entity : entities) {
+            keys.add(getKey(entity));
+        }
+        perform(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                for (T entity : readManaged(em, keys)) {
+                    removeFromManyToManyMappings(em, entity);
+                    em.remove(entity);
+                }
+                return null;
             }
-            throw e;
+        });
+    }
+
+    /**
+     * Bulk {@code DELETE} of the entities with the given keys, in chunks of
+     * {@value #CHUNK}, in a single transaction.
+     * <p/>
+     * <b>WARNING</b>: bulk operations bypass the persistence context, so cascades and
+     * {@link #removeFromManyToManyMappings(EntityManager, Object)} are not applied.
+     *
+     * @param keys
+     * @return the number of entities deleted
+     * @throws PersistenceException
+     */
+    public int deleteByIds(final Collection<K> keys) {
+        Preconditions.checkNotNull(keys);
+        if (keys.isEmpty()) {
+            return 0;
         }
+        return perform(new Work<Integer>() {
+            @Override
+            public Integer apply(EntityManager em) {
+                int deleted = 0;
+                for (List<K> chunk : Iterables.partition(keys, CHUNK)) {
+                    Query q = em.createQuery("DELETE FROM " + getTableName() + " s WHERE s." + getIdName() + " IN :keys");
+                    q.setParameter("keys", chunk);
+                    deleted += q.executeUpdate();
+                }
+                return deleted;
+            }
+        });
+    }
+
+    /**
+     * Bulk {@code DELETE} of all entities matching a JPQL predicate, where the entity
+     * is aliased as {@code s}, e.g. {@code "s.name = :name"}.
+     * <p/>
+     * <b>WARNING</b>: bulk operations bypass the persistence context, so cascades and
+     * {@link #removeFromManyToManyMappings(EntityManager, Object)} are not applied.
+     *
+     * @param predicate
+     * @param parameters named parameters used in the predicate
+     * @return the number of entities deleted
+     * @throws PersistenceException
+     */
+    public int deleteWhere(String predicate, Map<String, ?> parameters) {
+        Preconditions.checkNotNull(predicate);
+        Preconditions.checkNotNull(parameters);
+        return executeUpdate("DELETE FROM " + getTableName() + " s WHERE " + predicate, parameters);
+    }
+
+    /**
+     * Bulk {@code UPDATE} of all entities matching a JPQL predicate, where the entity
+     * is aliased as {@code s}, e.g. {@code updateWhere("s.name = :name", "s.name IS NULL", params)}.
+     * <p/>
+     * <b>WARNING</b>: bulk operations bypass the persistence context and do not
+     * increment version columns.
+     *
+     * @param assignments the JPQL {@code SET} clause (without the {@code SET})
+     * @param predicate
+     * @param parameters  named parameters used in the assignments and predicate
+     * @return the number of entities updated
+     * @throws PersistenceException
+     */
+    public int updateWhere(String assignments, String predicate, Map<String, ?> parameters) {
+        Preconditions.checkNotNull(assignments);
+        Preconditions.checkNotNull(predicate);
+        Preconditions.checkNotNull(parameters);
+        return executeUpdate("UPDATE " + getTableName() + " s SET " + assignments + " WHERE " + predicate, parameters);
     }
 
     /**
      * @param id
      * @throws PersistenceException
      */
-    public void deleteById(K id) {
+    public void deleteById(final K id) {
         Preconditions.checkNotNull(id);
-        @Cleanup("close") EntityManager em = createEntityManager();
-        try {
-            em.getTransaction().begin();
-//            T entity = em.find(klass, id);
-            T entity = em.getReference(klass, id);
-            if (entity == null) {
-                em.getTransaction().rollback();
-                return;
-            }
-            removeFromManyToManyMappings(em, entity);
-            em.remove(entity);
-            em.getTransaction().commit();
-        } catch (PersistenceException e) {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().rollback();
+        perform(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                T entity = em.getReference(klass, id);
+                removeFromManyToManyMappings(em, entity);
+                em.remove(entity);
+                return null;
             }
-            throw e;
-        }
+        });
     }
 
     /**
      * @return a count of the number of entities in the database.
      */
     public long count() {
-        EntityManager em = createEntityManager();
+        @Cleanup("close") EntityManager em = createEntityManager();
         Query q = em.createQuery("SELECT COUNT(s) FROM " + getTableName() + " s");
         Long result = querySingle(em, q);
         return result;
@@ -326,13 +434,30 @@ public abstract class CrudDao<K, T> {
      * <b>WARNING: ONLY TO BE USED FOR SMALL DATABASES</b>
      *
      * @return
+     * @see #readAll(int, int)
      */
     public List<T> readAll() {
-        EntityManager em = createEntityManager();
+        @Cleanup("close") EntityManager em = createEntityManager();
         Query query = em.createQuery("SELECT s FROM " + getTableName() + " s");
         return query(em, query);
     }
 
+    /**
+     * Return a page of entities in the database, ordered by primary key.
+     *
+     * @param first index of the first entity to return
+     * @param max   maximum number of entities to return
+     * @return
+     */
+    public List<T> readAll(int first, int max) {
+        Preconditions.checkArgument(first >= 0 && max > 0);
+        @Cleanup("close") EntityManager em = createEntityManager();
+        Query query = em.createQuery("SELECT s FROM " + getTableName() + " s ORDER BY s." + getIdName());
+        query.setFirstResult(first);
+        query.setMaxResults(max);
+        return query(em, query);
+    }
+
     /**
      * @return the table name in JPA SQL (i.e. the simple class name of the managed entity)
      */
@@ -340,6 +465,51 @@ public abstract class CrudDao<K, T> {
         return klass.getSimpleName();
     }
 
+    /**
+     * @return the name of the primary key attribute in JPA SQL.
+     */
+    protected String getIdName() {
+        EntityType<T> type = emf.getMetamodel().entity(klass);
+        return type.getId(type.getIdType().getJavaType()).getName();
+    }
+
+    /**
+     * @param entity
+     * @return the primary key of the entity.
+     */
+    @SuppressWarnings("unchecked")
+    protected K getKey(T entity) {
+        return (K) emf.getPersistenceUnitUtil().getIdentifier(entity);
+    }
+
+    /**
+     * @param em
+     * @param keys
+     * @return the managed entities that exist with the given keys, in no particular order.
+     */
+    protected List<T> readManaged(EntityManager em, Collection<K> keys) {
+        List<T> results = Lists.newArrayList();
+        for (List<K> chunk : Iterables.partition(keys, CHUNK)) {
+            Query q = em.createQuery("SELECT s FROM " + getTableName() + " s WHERE s." + getIdName() + " IN :keys");
+            q.setParameter("keys", chunk);
+            results.addAll(this.<T>query(em, q));
+        }
+        return results;
+    }
+
+    private int executeUpdate(final String jpql, final Map<String, ?> parameters) {
+        return perform(new Work<Integer>() {
+            @Override
+            public Integer apply(EntityManager em) {
+                Query q = em.createQuery(jpql);
+                for (Map.Entry<String, ?> entry : parameters.entrySet()) {
+                    q.setParameter(entry.getKey(), entry.getValue());
+                }
+                return q.executeUpdate();
+            }
+        });
+    }
+
     /**
      * Boilerplate saver - runs the given {@link Query}, expecting a list of {@link Entity}s of given
      * type. Never returns {@code null}.
@@ -10,6 +10,7 @@ import lombok.extern.java.Log;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.Map;
@@ -49,12 +50,39 @@ public final class Packet implements Comparable<Packet> {
         return 0xFF & frame[30];// - 104;
     }
 
+    /**
+     * @return the time the packet was received, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     public Integer getSensor(Sensor sensor) {
+        return getLevel(sensor);
+    }
+
+    /**
+     * Unboxed alternative to {@link #getSensor(Sensor)}, for tight loops.
+     *
+     * @param sensor
+     * @return the reading of the sensor.
+     */
+    public int getLevel(Sensor sensor) {
         if (sensor == Sensor.QUALITY)
             throw new IllegalArgumentException();
         return sensor.apply(frame);
     }
 
+    /**
+     * Writes the decrypted frame, as received from the device,
+     * at the buffer's position, which is advanced.
+     *
+     * @param buffer
+     */
+    public void copyFrame(ByteBuffer buffer) {
+        buffer.put(frame);
+    }
+
     /**
      * @param sensor
      * @return the quality of the sensor.
@@ -198,5 +226,24 @@ public final class Packet implements Comparable<Packet> {
             }
             return level;
         }
+
+        /**
+         * Reads the sensor from a decrypted frame without copying it,
+         * e.g. from a memory mapped file.
+         *
+         * @param buffer
+         * @param offset absolute index of the start of the frame
+         * @return the reading of the sensor.
+         */
+        public int apply(ByteBuffer buffer, int offset) {
+            int level = 0;
+            for (int i = bits.length - 1; i >= 0; --i) {
+                level <<= 1;
+                int b = (bits[i] >> 3) + 1;
+                int o = bits[i] % 8;
+                level |= ((0xFF & buffer.get(offset + b)) >>> o) & 1;
+            }
+            return level;
+        }
     }
 }
@@ -0,0 +1,246 @@
+// Copyright Samuel Halliday 2012
+package org.openyou;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.openyou.Packet.Sensor;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A block of consecutive samples in columnar (structure of arrays)
+ * form, using primitives throughout. This is the preferred format
+ * for storage and signal processing, whereas {@link Packet} is
+ * convenient for single samples.
+ * <p/>
+ * Channels are indexed in the order of {@link #SENSORS}. The raw
+ * arrays are exposed for tight loops: only the first {@link #getSize()}
+ * entries are valid and callers must not retain references to them
+ * beyond the lifetime of the block.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public final class SampleBlock {
+
+    /**
+     * The EEG channels, in the order they are indexed in blocks.
+     */
+    public static final List<Sensor> SENSORS = ImmutableList.of(
+            Sensor.F3, Sensor.FC5, Sensor.AF3, Sensor.F7, Sensor.T7, Sensor.P7, Sensor.O1,
+            Sensor.O2, Sensor.P8, Sensor.T8, Sensor.F8, Sensor.AF4, Sensor.FC6, Sensor.F4
+    );
+
+    public static final int CHANNELS = SENSORS.size();
+
+    /**
+     * The nominal sampling rate of the headset, in Hz.
+     */
+    public static final int RATE = 128;
+
+    /**
+     * The resolution of a level, in microvolts.
+     */
+    public static final double MICROVOLTS = 0.51;
+
+    /**
+     * The lowest contact quality that is considered good (shown as green).
+     */
+    public static final int GOOD_QUALITY = 432;
+
+    /**
+     * The lowest contact quality that is considered fair (shown as orange),
+     * anything lower is poor.
+     */
+    public static final int FAIR_QUALITY = 216;
+
+    /**
+     * @param sensor
+     * @return the channel index of the sensor.
+     */
+    public static int channel(Sensor sensor) {
+        Preconditions.checkArgument(sensor != Sensor.QUALITY);
+        return sensor.ordinal() - 1;
+    }
+
+    private final long[] timestamps;
+    private final int[][] levels, qualities;
+    private final int[] battery, gyroX, gyroY;
+    private int size;
+
+    public SampleBlock(int capacity) {
+        Preconditions.checkArgument(capacity > 0);
+        timestamps = new long[capacity];
+        levels = new int[CHANNELS][capacity];
+        qualities = new int[CHANNELS][capacity];
+        battery = new int[capacity];
+        gyroX = new int[capacity];
+        gyroY = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Unknown qualities are recorded as zero.
+     *
+     * @param packet
+     * @throws IllegalStateException if the block is full.
+     */
+    public void add(Packet packet) {
+        int i = next();
+        timestamps[i] = packet.getTimestamp();
+        battery[i] = packet.getBatteryLevel();
+        gyroX[i] = packet.getGyroX();
+        gyroY[i] = packet.getGyroY();
+        for (int c = 0; c < CHANNELS; c++) {
+            Sensor sensor = SENSORS.get(c);
+            levels[c][i] = packet.getLevel(sensor);
+            Integer quality = packet.getQuality(sensor);
+            qualities[c][i] = quality == null ? 0 : quality;
+        }
+    }
+
+    /**
+     * @param timestamp
+     * @param battery
+     * @param gyroX
+     * @param gyroY
+     * @param levels    indexed by channel
+     * @param qualities indexed by channel
+     * @throws IllegalStateException if the block is full.
+     */
+    public void add(long timestamp, int battery, int gyroX, int gyroY, int[] levels, int[] qualities) {
+        Preconditions.checkArgument(levels.length == CHANNELS && qualities.length == CHANNELS);
+        int i = next();
+        this.timestamps[i] = timestamp;
+        this.battery[i] = battery;
+        this.gyroX[i] = gyroX;
+        this.gyroY[i] = gyroY;
+        for (int c = 0; c < CHANNELS; c++) {
+            this.levels[c][i] = levels[c];
+            this.qualities[c][i] = qualities[c];
+        }
+    }
+
+    /**
+     * Appends a sample from another block.
+     *
+     * @param other
+     * @param i     index of the sample in the other block
+     * @throws IllegalStateException if the block is full.
+     */
+    public void add(SampleBlock other, int i) {
+        Preconditions.checkElementIndex(i, other.size);
+        int j = next();
+        timestamps[j] = other.timestamps[i];
+        battery[j] = other.battery[i];
+        gyroX[j] = other.gyroX[i];
+        gyroY[j] = other.gyroY[i];
+        for (int c = 0; c < CHANNELS; c++) {
+            levels[c][j] = other.levels[c][i];
+            qualities[c][j] = other.qualities[c][i];
+        }
+    }
+
+    /**
+     * Sets the number of valid samples, after writing directly into the raw arrays.
+     *
+     * @param size
+     */
+    public void setSize(int size) {
+        Preconditions.checkPositionIndex(size, timestamps.length);
+        this.size = size;
+    }
+
+    private int next() {
+        if (isFull())
+            throw new IllegalStateException("block is full");
+        return size++;
+    }
+
+    /**
+     * @param timestamp
+     * @return the index of the first sample at or after the timestamp,
+     *         assuming timestamps are ordered.
+     */
+    public int indexOf(long timestamp) {
+        int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+        if (i < 0)
+            return -(i + 1);
+        while (i > 0 && timestamps[i - 1] == timestamp)
+            i--;
+        return i;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public int getLevel(int channel, int i) {
+        return levels[channel][i];
+    }
+
+    public int getQuality(int channel, int i) {
+        return qualities[channel][i];
+    }
+
+    public int getBattery(int i) {
+        return battery[i];
+    }
+
+    public int getGyroX(int i) {
+        return gyroX[i];
+    }
+
+    public int getGyroY(int i) {
+        return gyroY[i];
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @param channel
+     * @return the raw levels of the channel.
+     */
+    public int[] getLevels(int channel) {
+        return levels[channel];
+    }
+
+    /**
+     * @param channel
+     * @return the raw qualities of the channel.
+     */
+    public int[] getQualities(int channel) {
+        return qualities[channel];
+    }
+
+    public int[] getBattery() {
+        return battery;
+    }
+
+    public int[] getGyroX() {
+        return gyroX;
+    }
+
+    public int[] getGyroY() {
+        return gyroY;
+    }
+}
@@ -0,0 +1,324 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.batch;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Data;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+import org.openyou.store.EmotivStore;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.lang.String.format;
+
+/**
+ * Runs an {@link Analysis} over archived sessions in an {@link EmotivStore},
+ * e.g. to recalculate features after an algorithm has changed.
+ * <p/>
+ * The requested time ranges of each session are split into
+ * {@link WorkUnit}s of a fixed length, which are analysed independently
+ * on a pool of threads and their results passed to a {@link Sink}.
+ * Units are submitted only while fewer than a fixed number are in
+ * flight, and each streams its blocks from the store, so memory use
+ * does not depend on the size of the archive.
+ * <p/>
+ * If a checkpoint file is given, every unit is recorded in it once its
+ * result has been written, and units that are already recorded are
+ * skipped, so an interrupted run can be resumed by running it again.
+ * A unit that was being written when the run stopped is analysed again,
+ * so sinks should tolerate receiving the same unit twice. Units that
+ * fail are logged and are not recorded, so they are retried on resume.
+ * Units are identified by their exact boundaries, so the checkpoint
+ * starts with the length of a unit and a run with a different length
+ * refuses to resume from it.
+ *
+ * @author Sam Halliday
+ */
+@Log
+@ThreadSafe
+public class BatchRunner<R> {
+
+    /**
+     * A time range of a session.
+     */
+    @Data
+    public static final class WorkUnit {
+        private final UUID session;
+        /**
+         * Inclusive, milliseconds since the epoch.
+         */
+        private final long from;
+        /**
+         * Exclusive, milliseconds since the epoch.
+         */
+        private final long to;
+
+        @Override
+        public String toString() {
+            return session + "," + from + "," + to;
+        }
+
+        @Nullable
+        static WorkUnit parse(String line) {
+            String[] parts = line.split(",");
+            if (parts.length != 3)
+                return null;
+            try {
+                return new WorkUnit(UUID.fromString(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Must be thread safe, as units are analysed in parallel.
+     */
+    public interface Analysis<R> {
+        /**
+         * @param unit
+         * @param blocks of the unit's data, in timestamp order
+         * @return the result of the unit, or null for none.
+         * @throws Exception
+         */
+        @Nullable
+        R analyse(WorkUnit unit, Iterator<SampleBlock> blocks) throws Exception;
+    }
+
+    /**
+     * Must be thread safe, as results are written by the thread that analysed them.
+     */
+    public interface Sink<R> {
+        /**
+         * @param unit
+         * @param result
+         * @throws IOException
+         */
+        void write(WorkUnit unit, R result) throws IOException;
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    @Data
+    public static final class Summary {
+        private final int completed, skipped, failed;
+    }
+
+    // milliseconds to wait for interrupted units to stop
+    private static final long SHUTDOWN = 10000;
+    private static final String HEADER = "unit=";
+
+    private final EmotivStore store;
+    private final Analysis<R> analysis;
+    private final Sink<R> sink;
+    private final int threads, inflight;
+    private final long unit;
+
+    /**
+     * The number of threads, units in flight and the length of a unit
+     * are obtained from {@code org.openyou.batch}.
+     *
+     * @param store
+     * @param analysis
+     * @param sink
+     */
+    public BatchRunner(EmotivStore store, Analysis<R> analysis, Sink<R> sink) {
+        this(store, analysis, sink, ConfigFactory.load().getConfig("org.openyou.batch"));
+    }
+
+    private BatchRunner(EmotivStore store, Analysis<R> analysis, Sink<R> sink, Config config) {
+        this(store, analysis, sink, config.getInt("threads"), config.getInt("inflight"), config.getMilliseconds("unit"));
+    }
+
+    /**
+     * @param store
+     * @param analysis
+     * @param sink
+     * @param threads  that analyse units
+     * @param inflight maximum number of units submitted but not written
+     * @param unit     milliseconds, the maximum length of a unit
+     */
+    public BatchRunner(EmotivStore store, Analysis<R> analysis, Sink<R> sink, int threads, int inflight, long unit) {
+        Preconditions.checkArgument(threads > 0 && inflight >= threads && unit > 0);
+        this.store = Preconditions.checkNotNull(store);
+        this.analysis = Preconditions.checkNotNull(analysis);
+        this.sink = Preconditions.checkNotNull(sink);
+        this.threads = threads;
+        this.inflight = inflight;
+        this.unit = unit;
+    }
+
+    /**
+     * @param ranges of sessions to analyse
+     * @return the ranges split into units, in order.
+     */
+    public List<WorkUnit> split(List<WorkUnit> ranges) {
+        List<WorkUnit> units = Lists.newArrayList();
+        for (WorkUnit range : ranges) {
+            for (long from = range.getFrom(); from < range.getTo(); from += unit) {
+                units.add(new WorkUnit(range.getSession(), from, Math.min(range.getTo(), from + unit)));
+            }
+        }
+        return units;
+    }
+
+    /**
+     * Blocks until every unit has been analysed.
+     * <p/>
+     * If the calling thread is interrupted, no more units are submitted
+     * and the units in flight are interrupted and waited for, up to
+     * 10 seconds. Units that have still not stopped are abandoned: once
+     * this returns they no longer write to the sink or the checkpoint,
+     * and are not counted in the summary. A write that is already in
+     * progress is waited for. An interrupt while waiting for the units
+     * only sets the interrupted status of the thread again.
+     *
+     * @param ranges     of sessions to analyse
+     * @param checkpoint file recording the completed units, or null
+     * @return the number of units that were completed, skipped and failed.
+     * @throws IOException              if the checkpoint could not be read or written
+     * @throws IllegalArgumentException if the checkpoint was written with a different unit length
+     * @throws InterruptedException     if interrupted while units were being submitted
+     */
+    public Summary run(List<WorkUnit> ranges, @Nullable File checkpoint) throws IOException, InterruptedException {
+        List<WorkUnit> units = split(ranges);
+        Set<WorkUnit> done = checkpoint == null ? Sets.<WorkUnit>newHashSet() : restore(checkpoint);
+        final Writer recorder = checkpoint == null ? null :
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(checkpoint, true), Charsets.UTF_8));
+        if (recorder != null) {
+            if (checkpoint.length() > 0)
+                // terminates any partial line
+                recorder.write("\n");
+            else
+                recorder.write(HEADER + unit + "\n");
+            recorder.flush();
+        }
+        final Semaphore permits = new Semaphore(inflight);
+        final AtomicInteger completed = new AtomicInteger(), failed = new AtomicInteger();
+        final Object lock = new Object();
+        // held for reading by every write of a unit, and for writing once the run is finished
+        final ReadWriteLock writing = new ReentrantReadWriteLock();
+        final AtomicBoolean finished = new AtomicBoolean();
+        int skipped = 0;
+        long started = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final WorkUnit unit : units) {
+                if (done.contains(unit)) {
+                    skipped++;
+                    continue;
+                }
+                permits.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (process(unit, recorder, lock, writing, finished))
+                                completed.incrementAndGet();
+                        } catch (Exception e) {
+                            if (finished.get())
+                                return;
+                            failed.incrementAndGet();
+                            log.warning(format("Failed to analyse %s: %s", unit, e));
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            permits.acquire(inflight);
+            permits.release(inflight);
+        } finally {
+            executor.shutdownNow();
+            try {
+                if (!executor.awaitTermination(SHUTDOWN, TimeUnit.MILLISECONDS))
+                    log.warning("Abandoned units that did not stop when interrupted");
+            } catch (InterruptedException e) {
+                // must not replace an exception that is already propagating
+                Thread.currentThread().interrupt();
+            }
+            // waits for writes in progress, abandoned units then give up before writing
+            writing.writeLock().lock();
+            try {
+                finished.set(true);
+            } finally {
+                writing.writeLock().unlock();
+            }
+            if (recorder != null)
+                synchronized (lock) {
+                    recorder.close();
+                }
+        }
+        long end = System.currentTimeMillis();
+        log.info(format("Analysed %s units in %sms, skipped %s, %s failed",
+                completed.get(), end - started, skipped, failed.get()));
+        return new Summary(completed.get(), skipped, failed.get());
+    }
+
+    // false if the run finished before the unit could be written
+    private boolean process(WorkUnit unit, @Nullable Writer recorder, Object lock,
+                            ReadWriteLock writing, AtomicBoolean finished) throws Exception {
+        R result = analysis.analyse(unit, store.read(unit.getSession(), unit.getFrom(), unit.getTo()));
+        writing.readLock().lock();
+        try {
+            if (finished.get())
+                return false;
+            if (result != null)
+                sink.write(unit, result);
+            if (recorder != null)
+                synchronized (lock) {
+                    recorder.write(unit + "\n");
+                    recorder.flush();
+                }
+            return true;
+        } finally {
+            writing.readLock().unlock();
+        }
+    }
+
+    // an interrupted write may leave a partial last line, which is ignored
+    private Set<WorkUnit> restore(File checkpoint) throws IOException {
+        Set<WorkUnit> done = Sets.newHashSet();
+        if (!checkpoint.exists() || checkpoint.length() == 0)
+            return done;
+        List<String> lines = Files.readLines(checkpoint, Charsets.UTF_8);
+        String header = lines.get(0);
+        Preconditions.checkArgument(header.startsWith(HEADER), "not a checkpoint: " + checkpoint);
+        long length;
+        try {
+            length = Long.parseLong(header.substring(HEADER.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a checkpoint: " + checkpoint, e);
+        }
+        Preconditions.checkArgument(length == unit,
+                format("%s was written with units of %sms, not %sms", checkpoint, length, unit));
+        for (String line : lines.subList(1, lines.size())) {
+            WorkUnit unit = WorkUnit.parse(line);
+            if (unit != null)
+                done.add(unit);
+        }
+        log.info(format("Resuming from %s with %s units completed", checkpoint, done.size()));
+        return done;
+    }
+}
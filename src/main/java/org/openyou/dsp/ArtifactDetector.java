@@ -0,0 +1,278 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Data;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Online detection of artifacts, such as blinks, jaw clenches and
+ * head movement, which contaminate the EEG.
+ * <p/>
+ * Every sample is tested against three criteria:
+ * <ul>
+ * <li>amplitude: the deviation of any channel from its baseline</li>
+ * <li>derivative: a jump between consecutive samples of any channel
+ * that is far outside the recent distribution of jumps</li>
+ * <li>motion: the recent energy of the gyro about its resting position</li>
+ * </ul>
+ * Baselines and distributions are exponential moving averages, which
+ * are frozen while an artifact is in progress, so the cost per sample
+ * is constant and no samples are buffered. An {@link Artifact} is
+ * published once no criterion has been met for the hold time.
+ * <p/>
+ * A lasting shift of the signal, e.g. when a contact moves, would
+ * otherwise never end because the baselines are frozen. An artifact
+ * that reaches the longest duration is therefore published and the
+ * baselines of the EEG channels are seeded again from the current
+ * sample, which absorbs the shift. The resting position of the gyro
+ * is kept, as a sample taken during motion is not at rest. There is
+ * no further warmup, so if the criteria still hold (e.g. continuing
+ * motion or muscle activity) the next artifact starts with the next
+ * sample.
+ * <p/>
+ * Data must be provided by a single thread, in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class ArtifactDetector implements PacketListener {
+
+    public enum Kind {
+        AMPLITUDE, DERIVATIVE, MOTION
+    }
+
+    /**
+     * An interval of contaminated data.
+     */
+    @Data
+    public static final class Artifact {
+        /**
+         * Inclusive timestamp of the first contaminated sample.
+         */
+        private final long from;
+        /**
+         * Inclusive timestamp of the last contaminated sample.
+         */
+        private final long to;
+        private final Set<Kind> kinds;
+        /**
+         * Bit mask of the affected EEG channels, empty for motion.
+         */
+        private final int channels;
+
+        /**
+         * @param timestamp
+         * @return true if the timestamp is inside the artifact.
+         */
+        public boolean contains(long timestamp) {
+            return from <= timestamp && timestamp <= to;
+        }
+
+        /**
+         * @param channel
+         * @return true if the channel is affected.
+         */
+        public boolean affects(int channel) {
+            return (channels & (1 << channel)) != 0;
+        }
+    }
+
+    /**
+     * Receives artifacts, on the thread that provided the data.
+     */
+    public interface Listener {
+        void receiveArtifact(Artifact artifact);
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final Listener listener;
+    private final double amplitude, sigma, floor, motionThreshold;
+    private final double slow, fast;
+    private final long hold, longest;
+    private final int warmup;
+
+    private final double[] levels = new double[SampleBlock.CHANNELS];
+    private final double[] baseline = new double[SampleBlock.CHANNELS];
+    private final double[] previous = new double[SampleBlock.CHANNELS];
+    // moments of the absolute derivative
+    private final double[] mean = new double[SampleBlock.CHANNELS];
+    private final double[] square = new double[SampleBlock.CHANNELS];
+    // corrects the moments for starting at zero
+    private double weight;
+    private double gyroX, gyroY, motion;
+    private int samples;
+
+    private boolean active;
+    private long from, last;
+    private int kinds, channels;
+
+    /**
+     * The thresholds and time constants are obtained from {@code org.openyou.dsp.artifacts}.
+     *
+     * @param listener
+     */
+    public ArtifactDetector(Listener listener) {
+        this(listener, ConfigFactory.load().getConfig("org.openyou.dsp.artifacts"));
+    }
+
+    private ArtifactDetector(Listener listener, Config config) {
+        this(listener, config.getDouble("amplitude"), config.getDouble("derivative.sigma"),
+                config.getDouble("derivative.floor"), config.getDouble("motion.threshold"),
+                config.getMilliseconds("baseline"), config.getMilliseconds("motion.window"),
+                config.getMilliseconds("hold"), config.getMilliseconds("longest"),
+                config.getMilliseconds("warmup"));
+    }
+
+    /**
+     * @param listener
+     * @param amplitude microvolts from the baseline
+     * @param sigma     standard deviations above the mean jump
+     * @param floor     microvolts, the smallest jump that can be an artifact
+     * @param motion    mean squared deviation of the gyro from its resting position
+     * @param baseline  milliseconds, time constant of the baselines and distributions
+     * @param window    milliseconds, time constant of the gyro energy
+     * @param hold      milliseconds without any criteria being met that ends an artifact
+     * @param longest   milliseconds, the duration at which an artifact is ended and the baselines seeded again
+     * @param warmup    milliseconds of data to learn from before detecting artifacts
+     */
+    public ArtifactDetector(Listener listener, double amplitude, double sigma, double floor, double motion,
+                            long baseline, long window, long hold, long longest, long warmup) {
+        Preconditions.checkArgument(amplitude > 0 && sigma > 0 && floor >= 0 && motion > 0);
+        Preconditions.checkArgument(baseline > 0 && window > 0 && hold >= 0 && longest > hold && warmup >= 0);
+        this.listener = Preconditions.checkNotNull(listener);
+        this.amplitude = amplitude / SampleBlock.MICROVOLTS;
+        this.sigma = sigma;
+        this.floor = floor / SampleBlock.MICROVOLTS;
+        this.motionThreshold = motion;
+        this.slow = alpha(baseline);
+        this.fast = alpha(window);
+        this.hold = hold;
+        this.longest = longest;
+        this.warmup = (int) (warmup * SampleBlock.RATE / 1000);
+    }
+
+    private static double alpha(long millis) {
+        return 1 - Math.exp(-1000.0 / (millis * SampleBlock.RATE));
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            levels[c] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        sample(packet.getTimestamp(), packet.getGyroX(), packet.getGyroY());
+    }
+
+    /**
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        for (int i = 0; i < block.getSize(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = block.getLevel(c, i);
+            }
+            sample(block.getTimestamp(i), block.getGyroX(i), block.getGyroY(i));
+        }
+    }
+
+    private void sample(long timestamp, int gx, int gy) {
+        if (samples == 0) {
+            seed();
+            gyroX = gx;
+            gyroY = gy;
+        }
+        double dx = gx - gyroX, dy = gy - gyroY;
+        motion += fast * (dx * dx + dy * dy - motion);
+
+        int detected = 0, affected = 0;
+        if (samples >= warmup) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                double level = levels[c];
+                if (Math.abs(level - baseline[c]) > amplitude) {
+                    detected |= 1 << Kind.AMPLITUDE.ordinal();
+                    affected |= 1 << c;
+                }
+                double jump = Math.abs(level - previous[c]);
+                double m = mean[c] / weight;
+                double sd = Math.sqrt(Math.max(0, square[c] / weight - m * m));
+                if (jump > floor && jump > m + sigma * sd) {
+                    detected |= 1 << Kind.DERIVATIVE.ordinal();
+                    affected |= 1 << c;
+                }
+            }
+            if (motion > motionThreshold)
+                detected |= 1 << Kind.MOTION.ordinal();
+        }
+
+        if (detected != 0) {
+            if (!active) {
+                active = true;
+                from = timestamp;
+                kinds = 0;
+                channels = 0;
+            }
+            kinds |= detected;
+            channels |= affected;
+            last = timestamp;
+        } else {
+            if (active && timestamp - last > hold)
+                flush();
+        }
+        if (active && timestamp - from >= longest) {
+            flush();
+            // the learnt distributions, resting position and warmup are kept
+            seed();
+        }
+        if (!active) {
+            // only learn from clean data
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                double level = levels[c];
+                baseline[c] += slow * (level - baseline[c]);
+                double jump = Math.abs(level - previous[c]);
+                mean[c] += slow * (jump - mean[c]);
+                square[c] += slow * (jump * jump - square[c]);
+            }
+            gyroX += slow * (gx - gyroX);
+            gyroY += slow * (gy - gyroY);
+            weight += slow * (1 - weight);
+        }
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            previous[c] = levels[c];
+        }
+        if (samples <= warmup)
+            samples++;
+    }
+
+    private void seed() {
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            baseline[c] = levels[c];
+            previous[c] = levels[c];
+        }
+    }
+
+    /**
+     * Publishes the artifact in progress, if there is one, e.g. at the end of the data.
+     */
+    public void flush() {
+        if (!active)
+            return;
+        active = false;
+        Set<Kind> set = EnumSet.noneOf(Kind.class);
+        for (Kind kind : KINDS) {
+            if ((kinds & (1 << kind.ordinal())) != 0)
+                set.add(kind);
+        }
+        listener.receiveArtifact(new Artifact(from, last, Sets.immutableEnumSet(set), channels));
+    }
+}
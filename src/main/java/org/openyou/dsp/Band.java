@@ -0,0 +1,50 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+/**
+ * The conventional EEG frequency bands.
+ *
+ * @author Sam Halliday
+ */
+public enum Band {
+    DELTA(1, 4), THETA(4, 8), ALPHA(8, 13), BETA(13, 30), GAMMA(30, 45);
+
+    private final double low, high;
+
+    private Band(double low, double high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * @return inclusive lower bound, in Hz.
+     */
+    public double getLow() {
+        return low;
+    }
+
+    /**
+     * @return exclusive upper bound, in Hz.
+     */
+    public double getHigh() {
+        return high;
+    }
+
+    /**
+     * @param size of the transform
+     * @param rate sampling rate in Hz
+     * @return index of the first frequency bin in the band.
+     */
+    int getFirstBin(int size, double rate) {
+        return (int) Math.ceil(low * size / rate);
+    }
+
+    /**
+     * @param size of the transform
+     * @param rate sampling rate in Hz
+     * @return index after the last frequency bin in the band.
+     */
+    int getEndBin(int size, double rate) {
+        return Math.min(size / 2 + 1, (int) Math.ceil(high * size / rate));
+    }
+}
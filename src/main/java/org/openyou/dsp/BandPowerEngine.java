@@ -0,0 +1,211 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.Phaser;
+
+/**
+ * Streaming estimate of the power in each EEG {@link Band}, for every
+ * channel, over a sliding window of samples.
+ * <p/>
+ * Every {@code hop} samples, once the window is full, the most recent
+ * {@code window} samples of each channel have their mean removed, are
+ * tapered and transformed, and the one-sided power spectrum is summed
+ * over each band. Powers are in square microvolts and are published to
+ * the {@link Listener} as a primitive snapshot.
+ * <p/>
+ * All buffers are allocated up front: nothing is allocated per sample
+ * or per hop. If more than one thread is requested, the channels are
+ * shared between the calling thread and dedicated workers, which are
+ * synchronised with a {@link Phaser}. For a single headset the
+ * transforms are so cheap that the hand-off costs more than it saves,
+ * so this is only worthwhile for long windows.
+ * <p/>
+ * Data must be provided by a single thread, in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class BandPowerEngine implements PacketListener, Closeable {
+
+    /**
+     * Receives band powers, on the thread that provided the data.
+     */
+    public interface Listener {
+        /**
+         * @param timestamp of the most recent sample in the window
+         * @param powers    indexed by channel then {@link Band} ordinal,
+         *                  only valid for the duration of the call.
+         */
+        void receiveBandPowers(long timestamp, double[][] powers);
+    }
+
+    private static final Band[] BANDS = Band.values();
+
+    private final Listener listener;
+    private final int window, hop, threads;
+    private final double[] taper;
+    private final int[] first = new int[BANDS.length], end = new int[BANDS.length];
+    private final double scale;
+    // ring buffers, indexed by channel
+    private final double[][] history;
+    private final double[][] powers = new double[SampleBlock.CHANNELS][BANDS.length];
+    private final Worker[] workers;
+    private final Phaser phaser;
+    private int position, filled, pending;
+
+    // workspace for a share of the channels
+    private class Worker implements Runnable {
+        private final int id;
+        private final RealFft fft = new RealFft(window);
+        private final double[] input = new double[window];
+        private final double[] spectrum = new double[window / 2 + 1];
+
+        private Worker(int id) {
+            this.id = id;
+        }
+
+        void compute() {
+            for (int c = id; c < SampleBlock.CHANNELS; c += threads) {
+                double[] samples = history[c];
+                double mean = 0;
+                for (int i = 0; i < window; i++) {
+                    double sample = samples[(position + i) % window];
+                    input[i] = sample;
+                    mean += sample;
+                }
+                mean /= window;
+                for (int i = 0; i < window; i++) {
+                    input[i] = (input[i] - mean) * taper[i];
+                }
+                fft.power(input, spectrum);
+                double[] bands = powers[c];
+                for (int b = 0; b < BANDS.length; b++) {
+                    double sum = 0;
+                    for (int k = first[b]; k < end[b]; k++) {
+                        sum += spectrum[k];
+                    }
+                    bands[b] = scale * sum;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                phaser.arriveAndAwaitAdvance();
+                if (phaser.isTerminated())
+                    return;
+                compute();
+                phaser.arriveAndAwaitAdvance();
+            }
+        }
+    }
+
+    /**
+     * The window, hop, taper and threads are obtained from {@code org.openyou.dsp.bands}.
+     *
+     * @param listener
+     */
+    public BandPowerEngine(Listener listener) {
+        this(listener, ConfigFactory.load().getConfig("org.openyou.dsp.bands"));
+    }
+
+    private BandPowerEngine(Listener listener, Config config) {
+        this(listener, config.getInt("window"), config.getInt("hop"),
+                Taper.valueOf(config.getString("taper").toUpperCase(Locale.ENGLISH)), config.getInt("threads"));
+    }
+
+    /**
+     * @param listener
+     * @param window  number of samples in each transform, a power of two
+     * @param hop     number of samples between transforms, e.g. half the window for 50% overlap
+     * @param taper
+     * @param threads number of threads that share the channels, including the caller
+     */
+    public BandPowerEngine(Listener listener, int window, int hop, Taper taper, int threads) {
+        Preconditions.checkArgument(hop > 0 && hop <= window);
+        Preconditions.checkArgument(threads > 0 && threads <= SampleBlock.CHANNELS);
+        this.listener = Preconditions.checkNotNull(listener);
+        this.window = window;
+        this.hop = hop;
+        this.threads = threads;
+        this.taper = taper.coefficients(window);
+        double energy = 0;
+        for (double coefficient : this.taper) {
+            energy += coefficient * coefficient;
+        }
+        // one-sided, so a sinusoid of amplitude A has power A^2 / 2
+        scale = 2 * SampleBlock.MICROVOLTS * SampleBlock.MICROVOLTS / (window * energy);
+        for (Band band : BANDS) {
+            first[band.ordinal()] = Math.max(1, band.getFirstBin(window, SampleBlock.RATE));
+            end[band.ordinal()] = band.getEndBin(window, SampleBlock.RATE);
+        }
+        history = new double[SampleBlock.CHANNELS][window];
+
+        workers = new Worker[threads];
+        phaser = new Phaser(threads);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            if (i == 0)
+                continue;
+            Thread thread = new Thread(workers[i], getClass().getSimpleName() + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            history[c][position] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        advance(packet.getTimestamp());
+    }
+
+    /**
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        for (int i = 0; i < block.getSize(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                history[c][position] = block.getLevel(c, i);
+            }
+            advance(block.getTimestamp(i));
+        }
+    }
+
+    private void advance(long timestamp) {
+        position = (position + 1) % window;
+        if (filled < window)
+            filled++;
+        if (++pending < hop || filled < window)
+            return;
+        pending = 0;
+        if (threads == 1) {
+            workers[0].compute();
+        } else {
+            phaser.arriveAndAwaitAdvance();
+            workers[0].compute();
+            phaser.arriveAndAwaitAdvance();
+        }
+        listener.receiveBandPowers(timestamp, powers);
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        phaser.forceTermination();
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Second order IIR filter section, in transposed direct form II,
+ * with independent state for every channel.
+ * <p/>
+ * Coefficients are from Robert Bristow-Johnson's
+ * <a href="http://www.musicdsp.org/files/Audio-EQ-Cookbook.txt">Audio EQ Cookbook</a>.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+final class Biquad {
+
+    // the Q of each section of an even order Butterworth filter, from zero
+    static double butterworth(int order, int section) {
+        return 1 / (2 * Math.cos((2 * section + 1) * Math.PI / (2 * order)));
+    }
+
+    static Biquad notch(int channels, double rate, double frequency, double q) {
+        double w = w(rate, frequency);
+        double alpha = Math.sin(w) / (2 * q);
+        double cos = Math.cos(w);
+        return new Biquad(channels, 1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    static Biquad lowPass(int channels, double rate, double frequency, double q) {
+        double w = w(rate, frequency);
+        double alpha = Math.sin(w) / (2 * q);
+        double cos = Math.cos(w);
+        return new Biquad(channels, (1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    static Biquad highPass(int channels, double rate, double frequency, double q) {
+        double w = w(rate, frequency);
+        double alpha = Math.sin(w) / (2 * q);
+        double cos = Math.cos(w);
+        return new Biquad(channels, (1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    private static double w(double rate, double frequency) {
+        Preconditions.checkArgument(frequency > 0 && frequency < rate / 2, "frequency out of range: " + frequency);
+        return 2 * Math.PI * frequency / rate;
+    }
+
+    // normalised by a0
+    private final double b0, b1, b2, a1, a2;
+    // state, indexed by channel
+    private final double[] z1, z2;
+
+    private Biquad(int channels, double b0, double b1, double b2, double a0, double a1, double a2) {
+        this.b0 = b0 / a0;
+        this.b1 = b1 / a0;
+        this.b2 = b2 / a0;
+        this.a1 = a1 / a0;
+        this.a2 = a2 / a0;
+        z1 = new double[channels];
+        z2 = new double[channels];
+    }
+
+    double filter(int channel, double x) {
+        double y = b0 * x + z1[channel];
+        z1[channel] = b1 * x - a1 * y + z2[channel];
+        z2[channel] = b2 * x - a2 * y;
+        return y;
+    }
+
+    void filter(int channel, double[] data, int offset, int length) {
+        double s1 = z1[channel], s2 = z2[channel];
+        for (int i = offset; i < offset + length; i++) {
+            double x = data[i];
+            double y = b0 * x + s1;
+            s1 = b1 * x - a1 * y + s2;
+            s2 = b2 * x - a2 * y;
+            data[i] = y;
+        }
+        z1[channel] = s1;
+        z2[channel] = s2;
+    }
+
+    void reset() {
+        for (int c = 0; c < z1.length; c++) {
+            z1[c] = 0;
+            z2[c] = 0;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Closeable;
+import java.util.concurrent.Phaser;
+
+/**
+ * Streaming estimates of the connectivity between every pair of EEG
+ * channels: the correlation of the levels over a sliding window, and
+ * the magnitude squared coherence in each {@link Band}.
+ * <p/>
+ * Correlations are calculated from exact sums of the levels and of
+ * their pairwise products, which are updated as samples enter and
+ * leave the window. Spectra are maintained by a sliding DFT at a fixed
+ * set of frequencies in each band: each sample adds its contribution
+ * and removes that of the sample leaving the window, and the sums are
+ * recalculated once per window so that rounding errors cannot build up.
+ * The mean of the window is removed analytically. Every {@code hop} samples the cross
+ * spectra of all pairs are added to exponential moving averages, from
+ * which the coherence is averaged over the frequencies of each band.
+ * The (amortised) cost of a sample, and of a hop, depends on the number
+ * of channels and frequencies but not on the length of the window.
+ * <p/>
+ * All buffers are allocated up front. If more than one thread is
+ * requested, the pairs are shared between the calling thread and
+ * dedicated workers at each hop, as in {@link BandPowerEngine}.
+ * <p/>
+ * Data must be provided by a single thread, in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class CoherenceEngine implements PacketListener, Closeable {
+
+    /**
+     * Receives connectivity matrices, on the thread that provided the data.
+     */
+    public interface Listener {
+        /**
+         * The matrices are symmetric and only valid for the duration of the call.
+         * Entries involving a constant channel are {@code NaN}.
+         *
+         * @param timestamp   of the most recent sample in the window
+         * @param correlation indexed by channel then channel
+         * @param coherence   indexed by {@link Band} ordinal, channel then channel,
+         *                    one when only a single hop has been averaged.
+         */
+        void receiveConnectivity(long timestamp, double[][] correlation, double[][][] coherence);
+    }
+
+    private static final Band[] BANDS = Band.values();
+    private static final int CHANNELS = SampleBlock.CHANNELS;
+
+    private final Listener listener;
+    private final int window, hop, threads;
+    private final double decay;
+
+    // the frequencies of each band are contiguous
+    private final int[] first = new int[BANDS.length], end = new int[BANDS.length];
+    private final double[] omega;
+    // per frequency: the current phase, and constants for removing old samples and the mean
+    private final double[] phaseRe, phaseIm, rotateRe, rotateIm, leaveRe, leaveIm, meanRe, meanIm;
+
+    // sliding window, indexed by channel
+    private final int[][] history;
+    private final long[] sums = new long[CHANNELS], squares = new long[CHANNELS];
+    // sliding DFT and the spectra at the last hop, indexed by channel then frequency
+    private final double[][] slidingRe, slidingIm, spectrumRe, spectrumIm;
+    // averaged auto spectra, indexed by channel then frequency
+    private final double[][] power;
+
+    // off diagonal pairs
+    private final int[] left, right;
+    private final long[] products;
+    // averaged cross spectra, indexed by pair then frequency
+    private final double[][] crossRe, crossIm;
+
+    private final double[][] correlation = new double[CHANNELS][CHANNELS];
+    private final double[][][] coherence = new double[BANDS.length][CHANNELS][CHANNELS];
+
+    private final int[] levels = new int[CHANNELS];
+    private final Worker[] workers;
+    private final Phaser phaser;
+    private long index;
+    private int position, pending;
+
+    // a share of the pairs
+    private class Worker implements Runnable {
+        private final int id;
+
+        private Worker(int id) {
+            this.id = id;
+        }
+
+        void compute() {
+            double n = window;
+            for (int p = id; p < left.length; p += threads) {
+                int a = left[p], b = right[p];
+                double cov = n * products[p] - (double) sums[a] * sums[b];
+                double va = n * squares[a] - (double) sums[a] * sums[a];
+                double vb = n * squares[b] - (double) sums[b] * sums[b];
+                correlation[a][b] = correlation[b][a] = cov / Math.sqrt(va * vb);
+
+                double[] re = crossRe[p], im = crossIm[p];
+                double[] aRe = spectrumRe[a], aIm = spectrumIm[a], bRe = spectrumRe[b], bIm = spectrumIm[b];
+                double[] aPower = power[a], bPower = power[b];
+                for (int band = 0; band < BANDS.length; band++) {
+                    double sum = 0;
+                    for (int f = first[band]; f < end[band]; f++) {
+                        // a times the conjugate of b
+                        double r = aRe[f] * bRe[f] + aIm[f] * bIm[f];
+                        double i = aIm[f] * bRe[f] - aRe[f] * bIm[f];
+                        re[f] += (1 - decay) * (r - re[f]);
+                        im[f] += (1 - decay) * (i - im[f]);
+                        sum += (re[f] * re[f] + im[f] * im[f]) / (aPower[f] * bPower[f]);
+                    }
+                    coherence[band][a][b] = coherence[band][b][a] = sum / (end[band] - first[band]);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                phaser.arriveAndAwaitAdvance();
+                if (phaser.isTerminated())
+                    return;
+                compute();
+                phaser.arriveAndAwaitAdvance();
+            }
+        }
+    }
+
+    /**
+     * The parameters are obtained from {@code org.openyou.dsp.coherence}.
+     *
+     * @param listener
+     */
+    public CoherenceEngine(Listener listener) {
+        this(listener, ConfigFactory.load().getConfig("org.openyou.dsp.coherence"));
+    }
+
+    private CoherenceEngine(Listener listener, Config config) {
+        this(listener, config.getInt("window"), config.getInt("hop"),
+                config.getMilliseconds("average"), config.getDouble("resolution"), config.getInt("threads"));
+    }
+
+    /**
+     * @param listener
+     * @param window     number of samples
+     * @param hop        number of samples between snapshots
+     * @param average    milliseconds, time constant of the averaged spectra
+     * @param resolution spacing of the frequencies in each band, in Hz
+     * @param threads    number of threads that share the pairs, including the caller
+     */
+    public CoherenceEngine(Listener listener, int window, int hop, long average, double resolution, int threads) {
+        Preconditions.checkArgument(window > 1 && hop > 0 && hop <= window);
+        Preconditions.checkArgument(average > 0 && resolution > 0);
+        Preconditions.checkArgument(threads > 0 && threads <= CHANNELS);
+        this.listener = Preconditions.checkNotNull(listener);
+        this.window = window;
+        this.hop = hop;
+        this.threads = threads;
+        this.decay = Math.exp(-1000.0 * hop / (average * SampleBlock.RATE));
+
+        int frequencies = 0;
+        for (Band band : BANDS) {
+            first[band.ordinal()] = frequencies;
+            frequencies += (int) Math.ceil((band.getHigh() - band.getLow()) / resolution);
+            end[band.ordinal()] = frequencies;
+        }
+        omega = new double[frequencies];
+        phaseRe = new double[frequencies];
+        phaseIm = new double[frequencies];
+        rotateRe = new double[frequencies];
+        rotateIm = new double[frequencies];
+        leaveRe = new double[frequencies];
+        leaveIm = new double[frequencies];
+        meanRe = new double[frequencies];
+        meanIm = new double[frequencies];
+        for (Band band : BANDS) {
+            for (int f = first[band.ordinal()]; f < end[band.ordinal()]; f++) {
+                double w = 2 * Math.PI * (band.getLow() + (f - first[band.ordinal()]) * resolution) / SampleBlock.RATE;
+                omega[f] = w;
+                phaseRe[f] = 1;
+                // the phase advances by exp(-iw) per sample
+                rotateRe[f] = Math.cos(w);
+                rotateIm[f] = -Math.sin(w);
+                // exp(iwN) recovers the phase of the sample leaving the window
+                leaveRe[f] = Math.cos(w * window);
+                leaveIm[f] = Math.sin(w * window);
+                // exp(iwN) (1 - exp(-iwN)) / (1 - exp(-iw)) sums the phases of the window
+                double numRe = leaveRe[f] - 1, numIm = leaveIm[f];
+                double denRe = 1 - rotateRe[f], denIm = -rotateIm[f];
+                double den = denRe * denRe + denIm * denIm;
+                meanRe[f] = (numRe * denRe + numIm * denIm) / den;
+                meanIm[f] = (numIm * denRe - numRe * denIm) / den;
+            }
+        }
+
+        history = new int[CHANNELS][window];
+        slidingRe = new double[CHANNELS][frequencies];
+        slidingIm = new double[CHANNELS][frequencies];
+        spectrumRe = new double[CHANNELS][frequencies];
+        spectrumIm = new double[CHANNELS][frequencies];
+        power = new double[CHANNELS][frequencies];
+
+        int pairs = CHANNELS * (CHANNELS - 1) / 2;
+        left = new int[pairs];
+        right = new int[pairs];
+        for (int a = 0, p = 0; a < CHANNELS; a++) {
+            for (int b = a + 1; b < CHANNELS; b++, p++) {
+                left[p] = a;
+                right[p] = b;
+            }
+        }
+        products = new long[pairs];
+        crossRe = new double[pairs][frequencies];
+        crossIm = new double[pairs][frequencies];
+        for (int c = 0; c < CHANNELS; c++) {
+            correlation[c][c] = 1;
+            for (double[][] matrix : coherence) {
+                matrix[c][c] = 1;
+            }
+        }
+
+        workers = new Worker[threads];
+        phaser = new Phaser(threads);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            if (i == 0)
+                continue;
+            Thread thread = new Thread(workers[i], getClass().getSimpleName() + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        for (int c = 0; c < CHANNELS; c++) {
+            levels[c] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        advance(packet.getTimestamp());
+    }
+
+    /**
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        for (int i = 0; i < block.getSize(); i++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                levels[c] = block.getLevel(c, i);
+            }
+            advance(block.getTimestamp(i));
+        }
+    }
+
+    private void advance(long timestamp) {
+        boolean full = index >= window;
+        for (int p = 0; p < left.length; p++) {
+            int a = left[p], b = right[p];
+            products[p] += (long) levels[a] * levels[b];
+            if (full)
+                products[p] -= (long) history[a][position] * history[b][position];
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            int level = levels[c], old = full ? history[c][position] : 0;
+            sums[c] += level - old;
+            squares[c] += (long) level * level - (long) old * old;
+            double[] re = slidingRe[c], im = slidingIm[c];
+            for (int f = 0; f < omega.length; f++) {
+                double pr = phaseRe[f], pi = phaseIm[f];
+                re[f] += level * pr - old * (pr * leaveRe[f] - pi * leaveIm[f]);
+                im[f] += level * pi - old * (pr * leaveIm[f] + pi * leaveRe[f]);
+            }
+            history[c][position] = level;
+        }
+        for (int f = 0; f < omega.length; f++) {
+            double pr = phaseRe[f], pi = phaseIm[f];
+            phaseRe[f] = pr * rotateRe[f] - pi * rotateIm[f];
+            phaseIm[f] = pr * rotateIm[f] + pi * rotateRe[f];
+        }
+        position = (position + 1) % window;
+        index++;
+        if (position == 0)
+            refresh();
+
+        if (++pending < hop || index < window)
+            return;
+        pending = 0;
+        snapshot();
+        if (threads == 1) {
+            workers[0].compute();
+        } else {
+            phaser.arriveAndAwaitAdvance();
+            workers[0].compute();
+            phaser.arriveAndAwaitAdvance();
+        }
+        listener.receiveConnectivity(timestamp, correlation, coherence);
+    }
+
+    // recalculate the sliding DFT once per window, so rounding errors cannot accumulate
+    private void refresh() {
+        for (int f = 0; f < omega.length; f++) {
+            double angle = -omega[f] * (index - window);
+            double pr = Math.cos(angle), pi = Math.sin(angle);
+            double rr = rotateRe[f], ri = rotateIm[f];
+            for (int c = 0; c < CHANNELS; c++) {
+                slidingRe[c][f] = 0;
+                slidingIm[c][f] = 0;
+            }
+            for (int i = 0; i < window; i++) {
+                for (int c = 0; c < CHANNELS; c++) {
+                    int level = history[c][i];
+                    slidingRe[c][f] += level * pr;
+                    slidingIm[c][f] += level * pi;
+                }
+                double r = pr * rr - pi * ri;
+                pi = pr * ri + pi * rr;
+                pr = r;
+            }
+        }
+    }
+
+    // spectra of the window, without its mean, and the averaged auto spectra
+    private void snapshot() {
+        for (int f = 0; f < omega.length; f++) {
+            // recalculate the phase, to avoid accumulating rounding errors
+            double angle = -omega[f] * index;
+            phaseRe[f] = Math.cos(angle);
+            phaseIm[f] = Math.sin(angle);
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            double mean = (double) sums[c] / window;
+            double[] re = spectrumRe[c], im = spectrumIm[c], auto = power[c];
+            for (int f = 0; f < omega.length; f++) {
+                double pr = phaseRe[f], pi = phaseIm[f];
+                re[f] = slidingRe[c][f] - mean * (pr * meanRe[f] - pi * meanIm[f]);
+                im[f] = slidingIm[c][f] - mean * (pr * meanIm[f] + pi * meanRe[f]);
+                auto[f] += (1 - decay) * (re[f] * re[f] + im[f] * im[f] - auto[f]);
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        phaser.forceTermination();
+    }
+}
@@ -0,0 +1,246 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.java.Log;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Extracts epochs of EEG, from a fixed time before to a fixed time
+ * after each external marker (e.g. the onset of a stimulus).
+ * <p/>
+ * Markers may be injected by any thread with {@link #mark(long, int)},
+ * including markers for times that have already passed. The most recent
+ * samples are kept in a primitive ring buffer and every epoch is
+ * delivered, on the thread that provides the data, as soon as the
+ * first sample after its end arrives. Overlapping epochs are delivered
+ * independently. An {@link Epoch} is a view of the ring buffer, so no
+ * data is copied. Markers that arrive so late that the start of their
+ * epoch is no longer in the buffer are dropped.
+ * <p/>
+ * Data must be provided by a single thread, in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class EpochExtractor implements PacketListener {
+
+    /**
+     * Receives epochs, on the thread that provided the data.
+     */
+    public interface Listener {
+        /**
+         * @param epoch only valid for the duration of the call.
+         */
+        void receiveEpoch(Epoch epoch);
+    }
+
+    private static final class Marker {
+        private final long timestamp;
+        private final int code;
+
+        private Marker(long timestamp, int code) {
+            this.timestamp = timestamp;
+            this.code = code;
+        }
+    }
+
+    /**
+     * A view of the samples around a marker, which must be copied
+     * if it is needed after it has been received.
+     */
+    @NotThreadSafe
+    public final class Epoch {
+        private long marker, first;
+        private int code, size;
+
+        private Epoch() {
+        }
+
+        /**
+         * @return timestamp of the marker.
+         */
+        public long getMarker() {
+            return marker;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return the number of samples.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        public long getTimestamp(int i) {
+            return timestamps[slot(i)];
+        }
+
+        public int getLevel(int channel, int i) {
+            return levels[channel][slot(i)];
+        }
+
+        /**
+         * @param channel
+         * @param destination receives the levels of the channel
+         */
+        public void copyLevels(int channel, int[] destination) {
+            Preconditions.checkArgument(destination.length >= size);
+            int start = (int) (first % capacity);
+            int head = Math.min(size, capacity - start);
+            System.arraycopy(levels[channel], start, destination, 0, head);
+            System.arraycopy(levels[channel], 0, destination, head, size - head);
+        }
+
+        private int slot(int i) {
+            Preconditions.checkElementIndex(i, size);
+            return (int) ((first + i) % capacity);
+        }
+    }
+
+    private final Listener listener;
+    private final long pre, post;
+    private final int capacity;
+    private final long[] timestamps;
+    private final int[][] levels;
+    private final Queue<Marker> injected = new ConcurrentLinkedQueue<Marker>();
+    private final List<Marker> pending = Lists.newArrayList();
+    private final Epoch epoch = new Epoch();
+    private final AtomicLong dropped = new AtomicLong();
+    // the number of samples received
+    private long count;
+
+    /**
+     * The epoch and buffer lengths are obtained from {@code org.openyou.dsp.epochs}.
+     *
+     * @param listener
+     */
+    public EpochExtractor(Listener listener) {
+        this(listener, ConfigFactory.load().getConfig("org.openyou.dsp.epochs"));
+    }
+
+    private EpochExtractor(Listener listener, Config config) {
+        this(listener, config.getMilliseconds("pre"), config.getMilliseconds("post"),
+                (int) (config.getMilliseconds("history") * SampleBlock.RATE / 1000));
+    }
+
+    /**
+     * @param listener
+     * @param pre      milliseconds before the marker
+     * @param post     milliseconds after the marker
+     * @param capacity number of samples in the buffer, which must cover an epoch
+     *                 and determines how late a marker may be.
+     */
+    public EpochExtractor(Listener listener, long pre, long post, int capacity) {
+        Preconditions.checkArgument(pre >= 0 && post > 0);
+        Preconditions.checkArgument(capacity > (pre + post) * SampleBlock.RATE / 1000, "buffer too small");
+        this.listener = Preconditions.checkNotNull(listener);
+        this.pre = pre;
+        this.post = post;
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        levels = new int[SampleBlock.CHANNELS][capacity];
+    }
+
+    /**
+     * May be called by any thread.
+     *
+     * @param timestamp of the event, in milliseconds since the epoch
+     * @param code      identifying the kind of event
+     */
+    public void mark(long timestamp, int code) {
+        injected.add(new Marker(timestamp, code));
+    }
+
+    /**
+     * @return the number of markers whose data was not in the buffer.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        int slot = (int) (count % capacity);
+        timestamps[slot] = packet.getTimestamp();
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            levels[c][slot] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        count++;
+        deliver();
+    }
+
+    /**
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        for (int i = 0; i < block.getSize(); i++) {
+            int slot = (int) (count % capacity);
+            timestamps[slot] = block.getTimestamp(i);
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c][slot] = block.getLevel(c, i);
+            }
+            count++;
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            Marker marker = injected.poll();
+            if (marker == null)
+                break;
+            pending.add(marker);
+        }
+        long oldest = Math.max(0, count - capacity);
+        long latest = timestamps[(int) ((count - 1) % capacity)];
+        for (int i = 0; i < pending.size(); i++) {
+            Marker marker = pending.get(i);
+            long start = marker.timestamp - pre;
+            long end = marker.timestamp + post;
+            if (latest < end)
+                continue;
+            pending.remove(i--);
+            if (timestamps[(int) (oldest % capacity)] > start) {
+                dropped.incrementAndGet();
+                log.warning(format("dropped marker %s at %tT.%<tL, its data is not in the buffer", marker.code, marker.timestamp));
+                continue;
+            }
+            long first = search(oldest, start);
+            epoch.marker = marker.timestamp;
+            epoch.code = marker.code;
+            epoch.first = first;
+            epoch.size = (int) (search(first, end) - first);
+            listener.receiveEpoch(epoch);
+        }
+    }
+
+    // the first sample at or after the timestamp
+    private long search(long from, long timestamp) {
+        long lo = from, hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (timestamps[(int) (mid % capacity)] < timestamp)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,169 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Locale;
+
+/**
+ * Summarises an epoch of EEG as a fixed length feature vector, for
+ * comparing epochs by their Euclidean distance, e.g. in a similarity index.
+ * <p/>
+ * For each channel in turn, the vector holds the log (base 10) of the
+ * power in each {@link Band}, in square microvolts, followed by the log
+ * of the standard deviation, in microvolts. Logs put all the features
+ * on a similar scale, and turn a change in the overall amplitude of a
+ * recording (e.g. from the impedance of the contacts) into an offset,
+ * which is removed by subtracting the mean log band power of the epoch
+ * from every band power, and the mean log standard deviation from every
+ * standard deviation. Distances therefore compare the shape of the
+ * spectra and the relative amplitudes of the channels.
+ * <p/>
+ * Nothing is allocated after construction.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class EpochFeatures {
+
+    private static final Band[] BANDS = Band.values();
+    private static final int PER_CHANNEL = BANDS.length + 1;
+    /**
+     * The length of every feature vector.
+     */
+    public static final int DIMENSION = SampleBlock.CHANNELS * PER_CHANNEL;
+    // avoids the log of zero for flat channels
+    private static final double FLOOR = 1e-6;
+
+    private final int size;
+    private final RealFft fft;
+    private final double[] taper;
+    private final double scale;
+    private final int[] first = new int[BANDS.length], end = new int[BANDS.length];
+    private final double[] input, spectrum;
+
+    /**
+     * The epoch length and taper are obtained from {@code org.openyou.dsp.features}.
+     */
+    public EpochFeatures() {
+        this(ConfigFactory.load().getConfig("org.openyou.dsp.features"));
+    }
+
+    private EpochFeatures(Config config) {
+        this(config.getInt("window"), Taper.valueOf(config.getString("taper").toUpperCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * @param size  number of samples in an epoch, a power of two
+     * @param taper
+     */
+    public EpochFeatures(int size, Taper taper) {
+        this.size = size;
+        fft = new RealFft(size);
+        this.taper = taper.coefficients(size);
+        double energy = 0;
+        for (double coefficient : this.taper) {
+            energy += coefficient * coefficient;
+        }
+        scale = 2 * SampleBlock.MICROVOLTS * SampleBlock.MICROVOLTS / (size * energy);
+        for (Band band : BANDS) {
+            first[band.ordinal()] = Math.max(1, band.getFirstBin(size, SampleBlock.RATE));
+            end[band.ordinal()] = band.getEndBin(size, SampleBlock.RATE);
+        }
+        input = new double[size];
+        spectrum = new double[size / 2 + 1];
+    }
+
+    /**
+     * @return the number of samples in an epoch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @param block
+     * @param from     index of the first sample of the epoch
+     * @param features receives the feature vector
+     */
+    public void extract(SampleBlock block, int from, float[] features) {
+        Preconditions.checkPositionIndexes(from, from + size, block.getSize());
+        Preconditions.checkArgument(features.length == DIMENSION);
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            int[] levels = block.getLevels(c);
+            for (int i = 0; i < size; i++) {
+                input[i] = levels[from + i];
+            }
+            channel(c, features);
+        }
+        normalise(features);
+    }
+
+    /**
+     * Uses the first samples of the epoch.
+     *
+     * @param epoch
+     * @param features receives the feature vector
+     */
+    public void extract(EpochExtractor.Epoch epoch, float[] features) {
+        Preconditions.checkArgument(epoch.getSize() >= size, "epoch too short");
+        Preconditions.checkArgument(features.length == DIMENSION);
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            for (int i = 0; i < size; i++) {
+                input[i] = epoch.getLevel(c, i);
+            }
+            channel(c, features);
+        }
+        normalise(features);
+    }
+
+    private void channel(int c, float[] features) {
+        double mean = 0;
+        for (int i = 0; i < size; i++) {
+            mean += input[i];
+        }
+        mean /= size;
+        double variance = 0;
+        for (int i = 0; i < size; i++) {
+            double x = input[i] - mean;
+            variance += x * x;
+            input[i] = x * taper[i];
+        }
+        variance /= size - 1;
+        fft.power(input, spectrum);
+        int offset = c * PER_CHANNEL;
+        for (int b = 0; b < BANDS.length; b++) {
+            double sum = 0;
+            for (int k = first[b]; k < end[b]; k++) {
+                sum += spectrum[k];
+            }
+            features[offset + b] = (float) Math.log10(Math.max(FLOOR, scale * sum));
+        }
+        double deviation = Math.sqrt(variance) * SampleBlock.MICROVOLTS;
+        features[offset + BANDS.length] = (float) Math.log10(Math.max(FLOOR, deviation));
+    }
+
+    private static void normalise(float[] features) {
+        double power = 0, deviation = 0;
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            int offset = c * PER_CHANNEL;
+            for (int b = 0; b < BANDS.length; b++) {
+                power += features[offset + b];
+            }
+            deviation += features[offset + BANDS.length];
+        }
+        power /= SampleBlock.CHANNELS * BANDS.length;
+        deviation /= SampleBlock.CHANNELS;
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            int offset = c * PER_CHANNEL;
+            for (int b = 0; b < BANDS.length; b++) {
+                features[offset + b] -= power;
+            }
+            features[offset + BANDS.length] -= deviation;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.List;
+
+/**
+ * Per-channel streaming filters for the raw EEG levels, applied in order:
+ * <ol>
+ * <li>baseline removal, subtracting an exponential moving average of
+ * each channel (the headset has a large, channel dependent, offset)</li>
+ * <li>an optional notch at the mains frequency</li>
+ * <li>an optional band-pass, as Butterworth high and low pass filters,
+ * each a cascade of second order sections</li>
+ * </ol>
+ * All state is held in primitive arrays indexed by channel and nothing
+ * is allocated after construction. Filtering a block gives exactly the
+ * same results as filtering its samples one at a time.
+ * <p/>
+ * Output is in the units of the levels, multiply by
+ * {@link SampleBlock#MICROVOLTS} for microvolts.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class FilterBank {
+
+    private final int channels;
+    private final double alpha;
+    private final double[] baseline;
+    private boolean initialised;
+    private final Biquad[] sections;
+
+    /**
+     * The filters are obtained from {@code org.openyou.dsp.filters}.
+     */
+    public FilterBank() {
+        this(ConfigFactory.load().getConfig("org.openyou.dsp.filters"));
+    }
+
+    private FilterBank(Config config) {
+        this(SampleBlock.CHANNELS, SampleBlock.RATE, config.getMilliseconds("baseline") / 1000.0,
+                config.getDouble("notch.frequency"), config.getDouble("notch.q"),
+                config.getDouble("band.low"), config.getDouble("band.high"), config.getInt("band.order"));
+    }
+
+    /**
+     * @param channels
+     * @param rate     sampling rate, in Hz
+     * @param baseline time constant of the baseline, in seconds
+     * @param notch    mains frequency in Hz, or zero for no notch
+     * @param q        quality factor of the notch, higher is narrower
+     * @param low      lower edge of the band-pass in Hz, or zero for none
+     * @param high     upper edge of the band-pass in Hz, or zero for none
+     * @param order    of the high and low pass filters, an even number
+     */
+    public FilterBank(int channels, double rate, double baseline,
+                      double notch, double q, double low, double high, int order) {
+        Preconditions.checkArgument(channels > 0 && rate > 0 && baseline > 0);
+        Preconditions.checkArgument(order > 0 && order % 2 == 0, "order must be even: " + order);
+        this.channels = channels;
+        this.alpha = 1 - Math.exp(-1 / (baseline * rate));
+        this.baseline = new double[channels];
+
+        List<Biquad> sections = Lists.newArrayList();
+        if (notch > 0)
+            sections.add(Biquad.notch(channels, rate, notch, q));
+        for (int i = 0; i < order / 2; i++) {
+            if (low > 0)
+                sections.add(Biquad.highPass(channels, rate, low, Biquad.butterworth(order, i)));
+            if (high > 0)
+                sections.add(Biquad.lowPass(channels, rate, high, Biquad.butterworth(order, i)));
+        }
+        this.sections = sections.toArray(new Biquad[sections.size()]);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param channel
+     * @return the current estimate of the channel's baseline.
+     */
+    public double getBaseline(int channel) {
+        return baseline[channel];
+    }
+
+    /**
+     * Filters a single sample.
+     *
+     * @param packet
+     * @param output receives the filtered levels, indexed by channel
+     */
+    public void filter(Packet packet, double[] output) {
+        Preconditions.checkArgument(channels == SampleBlock.CHANNELS);
+        for (int c = 0; c < channels; c++) {
+            output[c] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        filter(output);
+    }
+
+    /**
+     * Filters a single sample, in place.
+     *
+     * @param sample indexed by channel
+     */
+    public void filter(double[] sample) {
+        initialise(sample);
+        for (int c = 0; c < channels; c++) {
+            double x = sample[c];
+            baseline[c] += alpha * (x - baseline[c]);
+            x -= baseline[c];
+            for (Biquad section : sections) {
+                x = section.filter(c, x);
+            }
+            sample[c] = x;
+        }
+    }
+
+    /**
+     * @param block
+     * @param output receives the filtered levels, indexed by channel then sample
+     */
+    public void filter(SampleBlock block, double[][] output) {
+        Preconditions.checkArgument(channels == SampleBlock.CHANNELS);
+        int n = block.getSize();
+        for (int c = 0; c < channels; c++) {
+            int[] levels = block.getLevels(c);
+            double[] out = output[c];
+            for (int i = 0; i < n; i++) {
+                out[i] = levels[i];
+            }
+        }
+        filter(output, 0, n);
+    }
+
+    /**
+     * Filters a block of samples, in place.
+     *
+     * @param data   indexed by channel then sample
+     * @param offset of the first sample
+     * @param length number of samples
+     */
+    public void filter(double[][] data, int offset, int length) {
+        Preconditions.checkArgument(data.length == channels);
+        if (length == 0)
+            return;
+        for (int c = 0; c < channels; c++) {
+            if (!initialised)
+                baseline[c] = data[c][offset];
+            double[] samples = data[c];
+            double b = baseline[c];
+            for (int i = offset; i < offset + length; i++) {
+                b += alpha * (samples[i] - b);
+                samples[i] -= b;
+            }
+            baseline[c] = b;
+            for (Biquad section : sections) {
+                section.filter(c, samples, offset, length);
+            }
+        }
+        initialised = true;
+    }
+
+    // start the baseline at the first sample, to avoid a long transient
+    private void initialise(double[] sample) {
+        if (initialised)
+            return;
+        for (int c = 0; c < channels; c++) {
+            baseline[c] = sample[c];
+        }
+        initialised = true;
+    }
+
+    /**
+     * Clears all state, e.g. after a gap in the data.
+     */
+    public void reset() {
+        initialised = false;
+        for (Biquad section : sections) {
+            section.reset();
+        }
+    }
+}
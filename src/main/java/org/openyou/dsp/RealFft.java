@@ -0,0 +1,123 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Radix-2 fast Fourier transform of real data, computed as a complex
+ * transform of half the size. All tables and workspace are allocated
+ * up front, so transforms never allocate.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+final class RealFft {
+
+    private final int size, half;
+    private final int[] reverse;
+    // twiddles of the half size complex transform
+    private final double[] cos, sin;
+    // twiddles of the full size, for separating the real transform
+    private final double[] cosFull, sinFull;
+    private final double[] re, im;
+
+    /**
+     * @param size a power of two, at least 4
+     */
+    RealFft(int size) {
+        Preconditions.checkArgument(size >= 4 && Integer.bitCount(size) == 1, "not a power of two: " + size);
+        this.size = size;
+        half = size / 2;
+        reverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[half / 2];
+        sin = new double[half / 2];
+        for (int i = 0; i < half / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / half);
+            sin[i] = Math.sin(2 * Math.PI * i / half);
+        }
+        cosFull = new double[half + 1];
+        sinFull = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            cosFull[k] = Math.cos(2 * Math.PI * k / size);
+            sinFull[k] = Math.sin(2 * Math.PI * k / size);
+        }
+        re = new double[half];
+        im = new double[half];
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @param input  of length {@link #getSize()}
+     * @param real   receives the real parts of bins {@code [0, size / 2]}
+     * @param imaginary receives the imaginary parts of bins {@code [0, size / 2]}
+     */
+    void transform(double[] input, double[] real, double[] imaginary) {
+        complex(input);
+        for (int k = 0; k <= half; k++) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            double zr = re[a], zi = im[a];
+            double cr = re[b], ci = -im[b];
+            // even and odd parts
+            double er = (zr + cr) / 2, ei = (zi + ci) / 2;
+            double or = (zi - ci) / 2, oi = -(zr - cr) / 2;
+            double wr = cosFull[k], wi = -sinFull[k];
+            real[k] = er + wr * or - wi * oi;
+            imaginary[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    /**
+     * @param input  of length {@link #getSize()}
+     * @param output receives the squared magnitudes of bins {@code [0, size / 2]}
+     */
+    void power(double[] input, double[] output) {
+        complex(input);
+        for (int k = 0; k <= half; k++) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            double zr = re[a], zi = im[a];
+            double cr = re[b], ci = -im[b];
+            double er = (zr + cr) / 2, ei = (zi + ci) / 2;
+            double or = (zi - ci) / 2, oi = -(zr - cr) / 2;
+            double wr = cosFull[k], wi = -sinFull[k];
+            double xr = er + wr * or - wi * oi;
+            double xi = ei + wr * oi + wi * or;
+            output[k] = xr * xr + xi * xi;
+        }
+    }
+
+    // packs even samples as real and odd as imaginary, then transforms in place
+    private void complex(double[] input) {
+        for (int i = 0; i < half; i++) {
+            int j = reverse[i];
+            re[j] = input[2 * i];
+            im[j] = input[2 * i + 1];
+        }
+        for (int length = 2; length <= half; length <<= 1) {
+            int span = length / 2;
+            int step = half / length;
+            for (int i = 0; i < half; i += length) {
+                for (int j = 0; j < span; j++) {
+                    double wr = cos[j * step], wi = -sin[j * step];
+                    int a = i + j, b = a + span;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.ConfigFactory;
+import lombok.Getter;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Mean, variance, minimum, maximum and RMS of the levels of each
+ * channel over a sliding window of the most recent samples.
+ * <p/>
+ * Sums of the integer levels, and of their squares, are exact, so the
+ * statistics do not drift no matter how long the stream. The minimum
+ * and maximum are maintained with monotonic queues. Every sample costs
+ * amortised constant time and memory is fixed by the window length.
+ * <p/>
+ * Data must be provided by a single thread, which never blocks or
+ * takes a lock. Any other thread may {@link #read(Snapshot)} the
+ * statistics as of the most recent sample: results are published
+ * through a sequence lock, so readers always see a consistent set of
+ * values and retry if they race with the writer.
+ *
+ * @author Sam Halliday
+ */
+@ThreadSafe
+public class RollingStatistics implements PacketListener {
+
+    private static final int MEAN = 0, VARIANCE = 1, MIN = 2, MAX = 3, RMS = 4, FIELDS = 5;
+    private static final int CHANNELS = SampleBlock.CHANNELS;
+
+    /**
+     * The statistics of every channel at a point in time,
+     * which may be reused between reads.
+     */
+    @NotThreadSafe
+    public static final class Snapshot {
+        @Getter
+        private long timestamp;
+        /**
+         * The number of samples in the window, which is less than
+         * the window length until enough data has been received.
+         */
+        @Getter
+        private int count;
+        private final double[] values = new double[CHANNELS * FIELDS];
+
+        public double getMean(int channel) {
+            return values[channel * FIELDS + MEAN];
+        }
+
+        /**
+         * @param channel
+         * @return the unbiased sample variance.
+         */
+        public double getVariance(int channel) {
+            return values[channel * FIELDS + VARIANCE];
+        }
+
+        public double getStandardDeviation(int channel) {
+            return Math.sqrt(getVariance(channel));
+        }
+
+        public double getMin(int channel) {
+            return values[channel * FIELDS + MIN];
+        }
+
+        public double getMax(int channel) {
+            return values[channel * FIELDS + MAX];
+        }
+
+        /**
+         * Note that the levels have a large offset, so the standard
+         * deviation is a better measure of the signal amplitude.
+         *
+         * @param channel
+         * @return the root mean square of the levels.
+         */
+        public double getRms(int channel) {
+            return values[channel * FIELDS + RMS];
+        }
+    }
+
+    private final int window;
+
+    // writer state, indexed by channel
+    private final int[][] history;
+    private final long[] sum = new long[CHANNELS], squares = new long[CHANNELS];
+    private final MonotonicQueue[] minima = new MonotonicQueue[CHANNELS], maxima = new MonotonicQueue[CHANNELS];
+    private final int[] levels = new int[CHANNELS];
+    private long index;
+
+    // published state, odd while being written
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray published = new AtomicLongArray(CHANNELS * FIELDS + 2);
+
+    // sliding extremum over the last window of samples
+    private class MonotonicQueue {
+        private final int[] values = new int[window];
+        private final long[] indexes = new long[window];
+        private final boolean max;
+        // absolute counters, modulo the window
+        private long head, tail;
+
+        MonotonicQueue(boolean max) {
+            this.max = max;
+        }
+
+        void add(long index, int value) {
+            while (head < tail && indexes[(int) (head % window)] <= index - window)
+                head++;
+            while (tail > head) {
+                int back = values[(int) ((tail - 1) % window)];
+                if (max ? back > value : back < value)
+                    break;
+                tail--;
+            }
+            values[(int) (tail % window)] = value;
+            indexes[(int) (tail % window)] = index;
+            tail++;
+        }
+
+        int get() {
+            return values[(int) (head % window)];
+        }
+    }
+
+    /**
+     * The window is obtained from {@code org.openyou.dsp.statistics}.
+     */
+    public RollingStatistics() {
+        this((int) (ConfigFactory.load().getMilliseconds("org.openyou.dsp.statistics.window") * SampleBlock.RATE / 1000));
+    }
+
+    /**
+     * @param window number of samples
+     */
+    public RollingStatistics(int window) {
+        Preconditions.checkArgument(window > 1);
+        this.window = window;
+        history = new int[CHANNELS][window];
+        for (int c = 0; c < CHANNELS; c++) {
+            minima[c] = new MonotonicQueue(false);
+            maxima[c] = new MonotonicQueue(true);
+        }
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        for (int c = 0; c < CHANNELS; c++) {
+            levels[c] = packet.getLevel(SampleBlock.SENSORS.get(c));
+        }
+        add();
+        publish(packet.getTimestamp());
+    }
+
+    /**
+     * The statistics are published once, after the whole block.
+     *
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        int n = block.getSize();
+        if (n == 0)
+            return;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                levels[c] = block.getLevel(c, i);
+            }
+            add();
+        }
+        publish(block.getTimestamp(n - 1));
+    }
+
+    private void add() {
+        int slot = (int) (index % window);
+        boolean full = index >= window;
+        for (int c = 0; c < CHANNELS; c++) {
+            int level = levels[c];
+            if (full) {
+                int old = history[c][slot];
+                sum[c] -= old;
+                squares[c] -= (long) old * old;
+            }
+            history[c][slot] = level;
+            sum[c] += level;
+            squares[c] += (long) level * level;
+            minima[c].add(index, level);
+            maxima[c].add(index, level);
+        }
+        index++;
+    }
+
+    private void publish(long timestamp) {
+        long n = Math.min(index, window);
+        long seq = sequence.get();
+        sequence.set(seq + 1);
+        published.set(0, timestamp);
+        published.set(1, n);
+        for (int c = 0; c < CHANNELS; c++) {
+            int offset = 2 + c * FIELDS;
+            double mean = (double) sum[c] / n;
+            // n * squares would overflow a long for windows longer than about 180,000 samples
+            double variance = n < 2 ? 0 : Math.max(0, (squares[c] - sum[c] * mean) / (n - 1));
+            published.set(offset + MEAN, Double.doubleToRawLongBits(mean));
+            published.set(offset + VARIANCE, Double.doubleToRawLongBits(variance));
+            published.set(offset + MIN, Double.doubleToRawLongBits(minima[c].get()));
+            published.set(offset + MAX, Double.doubleToRawLongBits(maxima[c].get()));
+            published.set(offset + RMS, Double.doubleToRawLongBits(Math.sqrt((double) squares[c] / n)));
+        }
+        sequence.set(seq + 2);
+    }
+
+    /**
+     * May be called by any thread.
+     *
+     * @param snapshot to receive the most recent statistics
+     * @return false if no data has been received yet, leaving the snapshot unchanged.
+     */
+    public boolean read(Snapshot snapshot) {
+        while (true) {
+            long before = sequence.get();
+            if (before == 0)
+                return false;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long timestamp = published.get(0);
+            long count = published.get(1);
+            for (int i = 0; i < snapshot.values.length; i++) {
+                snapshot.values[i] = Double.longBitsToDouble(published.get(2 + i));
+            }
+            if (sequence.get() == before) {
+                snapshot.timestamp = timestamp;
+                snapshot.count = (int) count;
+                return true;
+            }
+        }
+    }
+}
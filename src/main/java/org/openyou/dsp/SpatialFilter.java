@@ -0,0 +1,202 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.List;
+
+/**
+ * Re-references blocks of samples by applying a mixing matrix across
+ * the channels, e.g. common average reference, bipolar montages or
+ * learnt spatial filters (such as CSP or ICA unmixing matrices).
+ * <p/>
+ * The matrix is stored sparsely, by row, so that bipolar montages only
+ * cost a subtraction per output. Data is indexed by channel then sample,
+ * as produced by {@link FilterBank}, and may be re-referenced in place.
+ * Nothing is allocated after construction.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class SpatialFilter {
+
+    /**
+     * @return the common average reference of the EEG channels.
+     */
+    public static SpatialFilter commonAverage() {
+        int n = SampleBlock.CHANNELS;
+        double[][] matrix = new double[n][n];
+        List<String> labels = Lists.newArrayList();
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++) {
+                matrix[r][c] = (r == c ? 1 : 0) - 1.0 / n;
+            }
+            labels.add(SampleBlock.SENSORS.get(r) + "-AVG");
+        }
+        return new SpatialFilter(matrix, labels);
+    }
+
+    /**
+     * @param pairs of sensors, each output is the first minus the second
+     * @return a bipolar montage of the EEG channels.
+     */
+    public static SpatialFilter bipolar(Sensor[]... pairs) {
+        double[][] matrix = new double[pairs.length][SampleBlock.CHANNELS];
+        List<String> labels = Lists.newArrayList();
+        for (int r = 0; r < pairs.length; r++) {
+            Preconditions.checkArgument(pairs[r].length == 2, "not a pair");
+            matrix[r][SampleBlock.channel(pairs[r][0])] += 1;
+            matrix[r][SampleBlock.channel(pairs[r][1])] -= 1;
+            labels.add(pairs[r][0] + "-" + pairs[r][1]);
+        }
+        return new SpatialFilter(matrix, labels);
+    }
+
+    /**
+     * @return the conventional longitudinal bipolar chains of the left
+     *         and right hemispheres, as far as the headset allows.
+     */
+    public static SpatialFilter longitudinal() {
+        return bipolar(
+                new Sensor[]{Sensor.AF3, Sensor.F7}, new Sensor[]{Sensor.F7, Sensor.T7},
+                new Sensor[]{Sensor.T7, Sensor.P7}, new Sensor[]{Sensor.P7, Sensor.O1},
+                new Sensor[]{Sensor.AF3, Sensor.F3}, new Sensor[]{Sensor.F3, Sensor.FC5},
+                new Sensor[]{Sensor.AF4, Sensor.F8}, new Sensor[]{Sensor.F8, Sensor.T8},
+                new Sensor[]{Sensor.T8, Sensor.P8}, new Sensor[]{Sensor.P8, Sensor.O2},
+                new Sensor[]{Sensor.AF4, Sensor.F4}, new Sensor[]{Sensor.F4, Sensor.FC6}
+        );
+    }
+
+    private final int inputs;
+    private final List<String> labels;
+    // sparse rows
+    private final int[][] indices;
+    private final double[][] weights;
+    // a single sample, for in place filtering
+    private final double[] column;
+
+    /**
+     * @param matrix indexed by output then input channel
+     * @param labels of the outputs
+     */
+    public SpatialFilter(double[][] matrix, List<String> labels) {
+        Preconditions.checkArgument(matrix.length > 0 && matrix.length == labels.size());
+        inputs = matrix[0].length;
+        this.labels = ImmutableList.copyOf(labels);
+        indices = new int[matrix.length][];
+        weights = new double[matrix.length][];
+        for (int r = 0; r < matrix.length; r++) {
+            Preconditions.checkArgument(matrix[r].length == inputs, "ragged matrix");
+            int nonzero = 0;
+            for (double weight : matrix[r]) {
+                if (weight != 0)
+                    nonzero++;
+            }
+            indices[r] = new int[nonzero];
+            weights[r] = new double[nonzero];
+            for (int c = 0, k = 0; c < inputs; c++) {
+                if (matrix[r][c] == 0)
+                    continue;
+                indices[r][k] = c;
+                weights[r][k++] = matrix[r][c];
+            }
+        }
+        column = new double[inputs];
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getOutputs() {
+        return indices.length;
+    }
+
+    /**
+     * @return names of the outputs, e.g. for display or export.
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @param input  indexed by input channel then sample
+     * @param output indexed by output channel then sample, may share arrays with the input
+     * @param offset of the first sample, in both input and output
+     * @param length number of samples
+     */
+    public void apply(double[][] input, double[][] output, int offset, int length) {
+        Preconditions.checkArgument(input.length == inputs && output.length == indices.length);
+        if (aliased(input, output))
+            applyBySample(input, output, offset, length);
+        else
+            applyByRow(input, output, offset, length);
+    }
+
+    /**
+     * Filters in place, requires a square matrix.
+     *
+     * @param data   indexed by channel then sample
+     * @param offset of the first sample
+     * @param length number of samples
+     */
+    public void apply(double[][] data, int offset, int length) {
+        apply(data, data, offset, length);
+    }
+
+    private static boolean aliased(double[][] input, double[][] output) {
+        for (double[] out : output) {
+            for (double[] in : input) {
+                if (out == in)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // sequential over each array, which is fastest
+    private void applyByRow(double[][] input, double[][] output, int offset, int length) {
+        int end = offset + length;
+        for (int r = 0; r < indices.length; r++) {
+            double[] out = output[r];
+            int[] index = indices[r];
+            double[] weight = weights[r];
+            if (index.length == 0) {
+                for (int i = offset; i < end; i++)
+                    out[i] = 0;
+                continue;
+            }
+            double w = weight[0];
+            double[] in = input[index[0]];
+            for (int i = offset; i < end; i++)
+                out[i] = w * in[i];
+            for (int k = 1; k < index.length; k++) {
+                w = weight[k];
+                in = input[index[k]];
+                for (int i = offset; i < end; i++)
+                    out[i] += w * in[i];
+            }
+        }
+    }
+
+    // reads each sample before overwriting any part of it
+    private void applyBySample(double[][] input, double[][] output, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            for (int c = 0; c < inputs; c++)
+                column[c] = input[c][i];
+            for (int r = 0; r < indices.length; r++) {
+                int[] index = indices[r];
+                double[] weight = weights[r];
+                double sum = 0;
+                for (int k = 0; k < index.length; k++)
+                    sum += weight[k] * column[index[k]];
+                output[r][i] = sum;
+            }
+        }
+    }
+}
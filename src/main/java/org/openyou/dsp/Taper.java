@@ -0,0 +1,50 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+/**
+ * Window functions, applied to a block of samples before a Fourier
+ * transform to reduce spectral leakage.
+ *
+ * @author Sam Halliday
+ */
+public enum Taper {
+    RECTANGULAR {
+        @Override
+        double apply(double x) {
+            return 1;
+        }
+    },
+    HANN {
+        @Override
+        double apply(double x) {
+            return 0.5 - 0.5 * Math.cos(2 * Math.PI * x);
+        }
+    },
+    HAMMING {
+        @Override
+        double apply(double x) {
+            return 0.54 - 0.46 * Math.cos(2 * Math.PI * x);
+        }
+    },
+    BLACKMAN {
+        @Override
+        double apply(double x) {
+            return 0.42 - 0.5 * Math.cos(2 * Math.PI * x) + 0.08 * Math.cos(4 * Math.PI * x);
+        }
+    };
+
+    // x in [0, 1)
+    abstract double apply(double x);
+
+    /**
+     * @param size
+     * @return the periodic window coefficients.
+     */
+    public double[] coefficients(int size) {
+        double[] coefficients = new double[size];
+        for (int i = 0; i < size; i++) {
+            coefficients[i] = apply((double) i / size);
+        }
+        return coefficients;
+    }
+}
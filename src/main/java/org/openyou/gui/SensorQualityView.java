@@ -10,6 +10,7 @@ import lombok.Setter;
 import org.openyou.Emotiv;
 import org.openyou.Packet;
 import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -107,8 +108,8 @@ public class SensorQualityView extends JPanel implements Emotiv.PacketListener {
     }
 
     private Color levelToColor(Integer level) {
-        if (level >= 432) return Color.GREEN;
-        if (level >= 216) return Color.ORANGE;
+        if (level >= SampleBlock.GOOD_QUALITY) return Color.GREEN;
+        if (level >= SampleBlock.FAIR_QUALITY) return Color.ORANGE;
         return Color.RED;
     }
 
@@ -10,6 +10,7 @@ import com.typesafe.config.ConfigFactory;
 import lombok.extern.java.Log;
 import org.openyou.Emotiv.PacketListener;
 import org.openyou.Packet;
+import org.openyou.SampleBlock;
 
 import javax.annotation.concurrent.GuardedBy;
 import javax.swing.*;
@@ -32,8 +33,13 @@ public class SensorView extends JPanel implements PacketListener {
 
     private final Config config = ConfigFactory.load().getConfig("org.openyou.gui.sensors");
 
-    // TODO: offset per channel
-    private final int offset = 8464;
+    // the baseline of each channel, to centre it, as in the FilterBank
+    private final double alpha = 1 - Math.exp(-1000.0 /
+            (ConfigFactory.load().getMilliseconds("org.openyou.dsp.filters.baseline") * SampleBlock.RATE));
+    @GuardedBy("lock")
+    private final double[] baseline = new double[SampleBlock.CHANNELS];
+    @GuardedBy("lock")
+    private boolean initialised;
 
     public SensorView() {
         setPreferredSize(new Dimension(-1, 250));
@@ -53,9 +59,11 @@ public class SensorView extends JPanel implements PacketListener {
     @Override
     protected void paintComponent(Graphics g) {
         Set<Packet> packets = Sets.newTreeSet();
+        double[] baseline = new double[SampleBlock.CHANNELS];
         lock.lock();
         try {
             packets.addAll(queue);
+            System.arraycopy(this.baseline, 0, baseline, 0, baseline.length);
         } finally {
             lock.unlock();
         }
@@ -70,6 +78,7 @@ public class SensorView extends JPanel implements PacketListener {
         for (Packet packet : packets) {
             double x = i * size.getWidth() / packets.size();
             for (Map.Entry<Packet.Sensor, Integer> entry : packet.getSensors().entrySet()) {
+                double offset = baseline[SampleBlock.channel(entry.getKey())];
                 double y = 20 * (entry.getValue() - offset) / 2048.0;
                 Shape shape = new Rectangle.Double(x, y + 15 * entry.getKey().ordinal(), 2, 2);
                 g2.fill(shape);
@@ -83,6 +92,14 @@ public class SensorView extends JPanel implements PacketListener {
         lock.lock();
         try {
             queue.add(packet);
+            for (int c = 0; c < baseline.length; c++) {
+                int level = packet.getLevel(SampleBlock.SENSORS.get(c));
+                if (initialised)
+                    baseline[c] += alpha * (level - baseline[c]);
+                else
+                    baseline[c] = level;
+            }
+            initialised = true;
         } finally {
             lock.unlock();
         }
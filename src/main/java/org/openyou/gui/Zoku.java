@@ -30,7 +30,14 @@ public class Zoku {
 
     public static void main(String[] args) {
         EntityManagerFactory emf = CrudDao.createEntityManagerFactory("ZokuPU");
-        EmotivJpaController database = new EmotivJpaController(emf);
+        final EmotivJpaController database = new EmotivJpaController(emf);
+        // also run by System.exit and closing the window
+        Runtime.getRuntime().addShutdownHook(new Thread("Zoku shutdown") {
+            @Override
+            public void run() {
+                database.close();
+            }
+        });
 
         JFrame frame = new JFrame("Zoku");
         enableOSXFullscreen(frame);
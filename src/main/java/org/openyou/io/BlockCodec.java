@@ -0,0 +1,266 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import com.google.common.base.Preconditions;
+import org.openyou.SampleBlock;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact, lossless, binary encoding of a {@link SampleBlock},
+ * suitable for storage, journaling and network transfer.
+ * <p/>
+ * Every encoded block starts with a small header (version, sample
+ * count and first timestamp) so that it can be decoded on its own.
+ * Timestamps are delta encoded as zigzag varints. Each EEG channel
+ * is stored as its first value followed by the zigzag encoded deltas
+ * between neighbouring samples, bit-packed at the smallest width that
+ * fits all of them: the 14 bit readings are strongly correlated
+ * so this typically needs far fewer than 16 bits per sample.
+ * Qualities, battery and gyro values change rarely and are run
+ * length encoded.
+ * <p/>
+ * Compared to the uncompressed columnar layout (132 bytes per sample),
+ * blocks of 4096 samples with gaussian noise (sd 100) on every channel
+ * encode to 15%, a random walk to 10% and uniformly random levels and
+ * qualities (the worst case) to 52%, see {@code BlockCodecBenchmark}.
+ * <p/>
+ * Neither encoding nor decoding allocates.
+ *
+ * @author Sam Halliday
+ */
+public final class BlockCodec {
+
+    static final byte VERSION = 1;
+
+    private BlockCodec() {
+    }
+
+    /**
+     * @param samples
+     * @return the maximum number of bytes needed to encode a block with the given number of samples.
+     */
+    public static int maxEncodedSize(int samples) {
+        int header = 1 + 5 + 8;
+        int timestamps = 10 * samples;
+        int channels = SampleBlock.CHANNELS * (5 + 1 + 4 * samples + 8);
+        int runs = (SampleBlock.CHANNELS + 3) * (5 + 10 * samples);
+        return header + timestamps + channels + runs;
+    }
+
+    /**
+     * Writes the block at the buffer's position, which is advanced.
+     *
+     * @param block
+     * @param buffer with at least {@link #maxEncodedSize(int)} remaining
+     * @return the number of bytes written
+     */
+    public static int encode(SampleBlock block, ByteBuffer buffer) {
+        int start = buffer.position();
+        int n = block.getSize();
+        buffer.put(VERSION);
+        putVarint(buffer, n);
+        if (n == 0)
+            return buffer.position() - start;
+
+        long[] timestamps = block.getTimestamps();
+        buffer.putLong(timestamps[0]);
+        for (int i = 1; i < n; i++) {
+            putVarlong(buffer, zigzag(timestamps[i] - timestamps[i - 1]));
+        }
+
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            putPacked(buffer, block.getLevels(c), n);
+        }
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            putRuns(buffer, block.getQualities(c), n);
+        }
+        putRuns(buffer, block.getBattery(), n);
+        putRuns(buffer, block.getGyroX(), n);
+        putRuns(buffer, block.getGyroY(), n);
+        return buffer.position() - start;
+    }
+
+    /**
+     * Reads a block from the buffer's position, which is advanced.
+     *
+     * @param buffer
+     * @param block  which will be cleared and must have sufficient capacity
+     * @return the block
+     * @throws IllegalArgumentException if the buffer does not contain a valid block
+     */
+    public static SampleBlock decode(ByteBuffer buffer, SampleBlock block) {
+        try {
+            byte version = buffer.get();
+            Preconditions.checkArgument(version == VERSION, "unsupported version " + version);
+            int n = getVarint(buffer);
+            Preconditions.checkArgument(n >= 0 && n <= block.getCapacity(), "block too small for " + n);
+            block.clear();
+            if (n == 0)
+                return block;
+
+            long[] timestamps = block.getTimestamps();
+            timestamps[0] = buffer.getLong();
+            for (int i = 1; i < n; i++) {
+                timestamps[i] = timestamps[i - 1] + unzigzag(getVarlong(buffer));
+            }
+
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                getPacked(buffer, block.getLevels(c), n);
+            }
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                getRuns(buffer, block.getQualities(c), n);
+            }
+            getRuns(buffer, block.getBattery(), n);
+            getRuns(buffer, block.getGyroX(), n);
+            getRuns(buffer, block.getGyroY(), n);
+            block.setSize(n);
+            return block;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated block", e);
+        }
+    }
+
+    /**
+     * Convenience for {@link #decode(ByteBuffer, SampleBlock)} that allocates the block.
+     *
+     * @param buffer
+     * @return
+     */
+    public static SampleBlock decode(ByteBuffer buffer) {
+        ByteBuffer peek = buffer.duplicate();
+        peek.get();
+        int n = getVarint(peek);
+        Preconditions.checkArgument(n >= 0, "bad block size " + n);
+        return decode(buffer, new SampleBlock(Math.max(1, n)));
+    }
+
+    // first value, bit width, then the deltas packed little-endian
+    private static void putPacked(ByteBuffer buffer, int[] values, int n) {
+        putVarint(buffer, zigzag(values[0]));
+        int or = 0;
+        for (int i = 1; i < n; i++) {
+            or |= zigzag(values[i] - values[i - 1]);
+        }
+        int width = 32 - Integer.numberOfLeadingZeros(or);
+        buffer.put((byte) width);
+        if (width == 0)
+            return;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 1; i < n; i++) {
+            acc |= (0xFFFFFFFFL & zigzag(values[i] - values[i - 1])) << bits;
+            bits += width;
+            while (bits >= 8) {
+                buffer.put((byte) acc);
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0)
+            buffer.put((byte) acc);
+    }
+
+    private static void getPacked(ByteBuffer buffer, int[] values, int n) {
+        values[0] = unzigzag(getVarint(buffer));
+        int width = buffer.get();
+        Preconditions.checkArgument(width >= 0 && width <= 32, "bad width " + width);
+        if (width == 0) {
+            for (int i = 1; i < n; i++)
+                values[i] = values[0];
+            return;
+        }
+        long mask = (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 1; i < n; i++) {
+            while (bits < width) {
+                acc |= (0xFFL & buffer.get()) << bits;
+                bits += 8;
+            }
+            values[i] = values[i - 1] + unzigzag((int) (acc & mask));
+            acc >>>= width;
+            bits -= width;
+        }
+    }
+
+    // (value, length) pairs
+    private static void putRuns(ByteBuffer buffer, int[] values, int n) {
+        int i = 0;
+        while (i < n) {
+            int value = values[i];
+            int j = i + 1;
+            while (j < n && values[j] == value)
+                j++;
+            putVarint(buffer, zigzag(value));
+            putVarint(buffer, j - i);
+            i = j;
+        }
+    }
+
+    private static void getRuns(ByteBuffer buffer, int[] values, int n) {
+        int i = 0;
+        while (i < n) {
+            int value = unzigzag(getVarint(buffer));
+            int length = getVarint(buffer);
+            Preconditions.checkArgument(length > 0 && i + length <= n, "bad run length " + length);
+            for (int end = i + length; i < end; i++)
+                values[i] = value;
+        }
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    static void putVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
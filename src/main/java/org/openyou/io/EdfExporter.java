@@ -0,0 +1,467 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+import org.openyou.dsp.ArtifactDetector;
+import org.openyou.dsp.ArtifactDetector.Artifact;
+import org.openyou.store.EmotivStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.lang.String.format;
+
+/**
+ * Exports sessions from an {@link EmotivStore} as
+ * <a href="http://www.edfplus.info/specs/edfplus.html">EDF+</a>
+ * (16 bit) or BDF+ (24 bit) files, for use with clinical tools.
+ * <p/>
+ * The 14 EEG channels are exported in microvolts, followed by the
+ * gyro as auxiliary signals. Changes in the contact quality of each
+ * channel (good, fair or poor) are exported as annotations.
+ * Files are "discontinuous" (EDF+D): every data record lasts one
+ * second, and records are contiguous unless a gap in the data lasts
+ * beyond the end of the next record. Samples are placed at their
+ * nominal position in a record, so samples that are missing within
+ * a record (and at the end of an incomplete record) are padded by
+ * repeating the previous sample. Padding is never real data, so it
+ * is marked by a "no data" annotation with its duration.
+ * <p/>
+ * Optionally, the data is passed through an {@link ArtifactDetector}
+ * and every artifact is exported as an annotation with its duration
+ * and kinds (e.g. "artifact motion"), so that clinical tools can
+ * exclude the contaminated data. Artifacts are only known once they
+ * have ended, so they are annotated in a later record than their onset.
+ * <p/>
+ * Data is streamed one record at a time, so memory use is constant
+ * regardless of the length of a session, and many sessions may be
+ * exported in parallel.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class EdfExporter {
+
+    public enum Format {
+        EDF(2), BDF(3);
+
+        private final int bytes;
+
+        private Format(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // samples per signal in each one second record
+    private static final int RATE = SampleBlock.RATE;
+    private static final int SIGNALS = SampleBlock.CHANNELS + 2;
+    // the annotation signal follows the data signals
+    private static final int HEADER = 256 * (SIGNALS + 2);
+    private static final int RECORDS_OFFSET = 236;
+    // maximum number of padding annotations in a record, later padding is merged into the last
+    private static final int PADDINGS = 4;
+    // maximum number of artifact annotations in a record, later artifacts wait for the next
+    private static final int ARTIFACTS = 4;
+    // the timekeeping annotation, then at most one per channel, the padding and the artifacts
+    private static final int ANNOTATION_BYTES = 32 * (SampleBlock.CHANNELS + 1 + PADDINGS) + 64 * ARTIFACTS;
+    private static final String[] QUALITY = {"poor", "fair", "good"};
+    // the Emotiv EPOC resolution is 0.51 microvolts, centred on 8192
+    private static final String EEG_MIN = "-4177.92", EEG_MAX = "4177.41";
+    // 9999-12-31, the end of the range of SQL timestamps
+    private static final long END_OF_TIME = 253402300799999L;
+
+    private final EmotivStore store;
+    private final Format format;
+    private final long gap;
+    private final int threads;
+    private final boolean artifacts;
+
+    /**
+     * The gap between samples that is treated as missing data, the number
+     * of parallel exports and whether artifacts are annotated, are obtained
+     * from {@code org.openyou.io.edf}.
+     *
+     * @param store
+     * @param format
+     */
+    public EdfExporter(EmotivStore store, Format format) {
+        this.store = Preconditions.checkNotNull(store);
+        this.format = Preconditions.checkNotNull(format);
+        Config config = ConfigFactory.load().getConfig("org.openyou.io.edf");
+        gap = config.getMilliseconds("gap");
+        threads = config.getInt("threads");
+        artifacts = config.getBoolean("artifacts");
+        Preconditions.checkArgument(gap > 0 && threads > 0);
+    }
+
+    /**
+     * @param session
+     * @param file    will be overwritten
+     * @return the number of data records written
+     * @throws IOException
+     */
+    public long export(UUID session, File file) throws IOException {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkNotNull(file);
+        long started = System.currentTimeMillis();
+        Iterator<SampleBlock> blocks = store.read(session, 0, END_OF_TIME);
+        SampleBlock first = null;
+        while (blocks.hasNext() && (first == null || first.getSize() == 0))
+            first = blocks.next();
+        if (first == null || first.getSize() == 0)
+            throw new IOException("no data for " + session);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            Writer writer = new Writer(raf.getChannel(), session, first.getTimestamp(0));
+            writer.add(first);
+            while (blocks.hasNext())
+                writer.add(blocks.next());
+            long records = writer.finish();
+            long end = System.currentTimeMillis();
+            log.info(format("Exported %s records for %s in %sms (%.0f records/s)",
+                    records, session, end - started, 1000.0 * records / Math.max(1, end - started)));
+            return records;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Exports many sessions in parallel.
+     * A failure in one session does not affect the others.
+     *
+     * @param sessions with the file to export to
+     * @return the number of records written, or an exception, for each session
+     * @throws InterruptedException
+     */
+    public Map<UUID, Future<Long>> exportAll(Map<UUID, File> sessions) throws InterruptedException {
+        Preconditions.checkNotNull(sessions);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<UUID> keys = Lists.newArrayList();
+            List<Callable<Long>> tasks = Lists.newArrayList();
+            for (final Map.Entry<UUID, File> entry : sessions.entrySet()) {
+                keys.add(entry.getKey());
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return export(entry.getKey(), entry.getValue());
+                    }
+                });
+            }
+            List<Future<Long>> results = executor.invokeAll(tasks);
+            Map<UUID, Future<Long>> exported = Maps.newLinkedHashMap();
+            for (int i = 0; i < keys.size(); i++) {
+                Future<Long> result = results.get(i);
+                exported.put(keys.get(i), result);
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    log.warning("Failed to export " + keys.get(i) + ": " + e.getCause());
+                }
+            }
+            return exported;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int quality(int reading) {
+        if (reading >= SampleBlock.GOOD_QUALITY)
+            return 2;
+        if (reading >= SampleBlock.FAIR_QUALITY)
+            return 1;
+        return 0;
+    }
+
+    // the state of a single export
+    private class Writer implements ArtifactDetector.Listener {
+        private final FileChannel channel;
+        // whole seconds, as EDF headers have no finer resolution
+        private final long start;
+        private final int annotationSamples = (ANNOTATION_BYTES + format.bytes - 1) / format.bytes;
+        private final ByteBuffer buffer;
+        private final int[][] samples = new int[SIGNALS][RATE];
+        // the most recent sample of each signal, used for padding
+        private final int[] held = new int[SIGNALS];
+        private final int[] quality = new int[SampleBlock.CHANNELS];
+        private final long[] changed = new long[SampleBlock.CHANNELS];
+        private final int[] annotated = new int[SampleBlock.CHANNELS];
+        // spans of padding in the current record, as sample indices
+        private final int[] paddingFrom = new int[PADDINGS], paddingTo = new int[PADDINGS];
+        private int paddings;
+        private final ArtifactDetector detector;
+        // published, but not yet annotated
+        private final Queue<Artifact> detected = Lists.newLinkedList();
+        private boolean open;
+        // the next index in the current record
+        private int size;
+        private long onset, last, records;
+
+        Writer(FileChannel channel, UUID session, long timestamp) throws IOException {
+            this.channel = channel;
+            start = timestamp - timestamp % 1000;
+            buffer = ByteBuffer.allocateDirect(Math.max(HEADER, format.bytes * (SIGNALS * RATE + annotationSamples)));
+            Arrays.fill(quality, -1);
+            Arrays.fill(annotated, -1);
+            detector = artifacts ? new ArtifactDetector(this) : null;
+            writeHeader(session);
+        }
+
+        @Override
+        public void receiveArtifact(Artifact artifact) {
+            detected.add(artifact);
+        }
+
+        private void writeHeader(UUID session) throws IOException {
+            Date date = new Date(start);
+            String day = new SimpleDateFormat("dd-MMM-yyyy", Locale.ENGLISH).format(date).toUpperCase(Locale.ENGLISH);
+            String annotations = format == Format.EDF ? "EDF Annotations" : "BDF Annotations";
+            String digitalMax = Integer.toString((1 << (8 * format.bytes - 1)) - 1);
+            String digitalMin = Integer.toString(-(1 << (8 * format.bytes - 1)));
+
+            buffer.clear();
+            if (format == Format.EDF)
+                put("0", 8);
+            else {
+                buffer.put((byte) 0xFF);
+                put("BIOSEMI", 7);
+            }
+            put("X X X X", 80);
+            put(format("Startdate %s %s X Emotiv_EPOC", day, session), 80);
+            put(new SimpleDateFormat("dd.MM.yy").format(date), 8);
+            put(new SimpleDateFormat("HH.mm.ss").format(date), 8);
+            put(Integer.toString(HEADER), 8);
+            put(format == Format.EDF ? "EDF+D" : "BDF+D", 44);
+            // patched when the export is finished
+            put("-1", 8);
+            put("1", 8);
+            put(Integer.toString(SIGNALS + 1), 4);
+
+            for (int c = 0; c < SampleBlock.CHANNELS; c++)
+                put("EEG " + SampleBlock.SENSORS.get(c), 16);
+            put("Gyro X", 16);
+            put("Gyro Y", 16);
+            put(annotations, 16);
+
+            for (int s = 0; s < SIGNALS; s++)
+                put(s < SampleBlock.CHANNELS ? "Emotiv EPOC" : "", 80);
+            put("", 80);
+
+            for (int s = 0; s < SIGNALS; s++)
+                put(s < SampleBlock.CHANNELS ? "uV" : "", 8);
+            put("", 8);
+
+            for (int s = 0; s < SIGNALS; s++)
+                put(s < SampleBlock.CHANNELS ? EEG_MIN : "0", 8);
+            put("-1", 8);
+            for (int s = 0; s < SIGNALS; s++)
+                put(s < SampleBlock.CHANNELS ? EEG_MAX : "255", 8);
+            put("1", 8);
+            for (int s = 0; s < SIGNALS; s++)
+                put("0", 8);
+            put(digitalMin, 8);
+            for (int s = 0; s < SIGNALS; s++)
+                put(s < SampleBlock.CHANNELS ? "16383" : "255", 8);
+            put(digitalMax, 8);
+
+            for (int s = 0; s <= SIGNALS; s++)
+                put("", 80);
+            for (int s = 0; s < SIGNALS; s++)
+                put(Integer.toString(RATE), 8);
+            put(Integer.toString(annotationSamples), 8);
+            for (int s = 0; s <= SIGNALS; s++)
+                put("", 32);
+
+            Preconditions.checkState(buffer.position() == HEADER);
+            write();
+        }
+
+        // space padded ASCII
+        private void put(String value, int length) {
+            byte[] bytes = value.getBytes(Charsets.US_ASCII);
+            Preconditions.checkArgument(bytes.length <= length, value);
+            buffer.put(bytes);
+            for (int i = bytes.length; i < length; i++)
+                buffer.put((byte) ' ');
+        }
+
+        private void write() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        void add(SampleBlock block) throws IOException {
+            if (detector != null)
+                detector.receiveBlock(block);
+            for (int i = 0; i < block.getSize(); i++) {
+                long timestamp = block.getTimestamp(i);
+                boolean missing = open && timestamp - last > gap;
+                if (!open) {
+                    onset = timestamp;
+                    open = true;
+                } else if (size == RATE || timestamp - onset >= 1000) {
+                    long next = onset + 1000;
+                    writeRecord();
+                    // records stay contiguous unless the data resumes after the next record
+                    onset = timestamp - next < 1000 ? next : timestamp;
+                }
+                // samples are consecutive unless some are missing, tolerating jitter
+                int index = size;
+                if (missing)
+                    index = Math.max(size, (int) ((timestamp - onset) * RATE / 1000));
+                pad(index);
+                for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                    held[c] = block.getLevel(c, i);
+                    int q = quality(block.getQuality(c, i));
+                    if (q != quality[c]) {
+                        quality[c] = q;
+                        changed[c] = timestamp;
+                    }
+                }
+                held[SampleBlock.CHANNELS] = block.getGyroX(i);
+                held[SampleBlock.CHANNELS + 1] = block.getGyroY(i);
+                for (int s = 0; s < SIGNALS; s++)
+                    samples[s][size] = held[s];
+                size++;
+                last = timestamp;
+            }
+        }
+
+        // repeats the previous sample up to the index, recording the span
+        private void pad(int index) {
+            if (index == size)
+                return;
+            for (int s = 0; s < SIGNALS; s++) {
+                for (int i = size; i < index; i++)
+                    samples[s][i] = held[s];
+            }
+            if (paddings > 0 && paddingTo[paddings - 1] == size)
+                paddingTo[paddings - 1] = index;
+            else if (paddings == PADDINGS)
+                // extends the last span over the real samples since it
+                paddingTo[paddings - 1] = index;
+            else {
+                paddingFrom[paddings] = size;
+                paddingTo[paddings] = index;
+                paddings++;
+            }
+            size = index;
+        }
+
+        private void writeRecord() throws IOException {
+            pad(RATE);
+            for (int s = 0; s < SIGNALS; s++) {
+                int[] signal = samples[s];
+                for (int i = 0; i < RATE; i++)
+                    putSample(signal[i]);
+            }
+
+            int annotations = buffer.position();
+            putAnnotation(onset, null);
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                if (quality[c] == annotated[c])
+                    continue;
+                annotated[c] = quality[c];
+                putAnnotation(changed[c], SampleBlock.SENSORS.get(c) + " " + QUALITY[quality[c]]);
+            }
+            for (int p = 0; p < paddings; p++) {
+                putPadding(onset + 1000L * paddingFrom[p] / RATE, paddingTo[p] - paddingFrom[p]);
+            }
+            for (int a = 0; a < ARTIFACTS && !detected.isEmpty(); a++) {
+                putArtifact(detected.remove());
+            }
+            int end = annotations + annotationSamples * format.bytes;
+            while (buffer.position() < end)
+                buffer.put((byte) 0);
+
+            write();
+            records++;
+            size = 0;
+            paddings = 0;
+        }
+
+        private void putSample(int value) {
+            buffer.put((byte) value);
+            buffer.put((byte) (value >> 8));
+            if (format == Format.BDF)
+                buffer.put((byte) (value >> 16));
+        }
+
+        // a time-stamped annotation list, timekeeping if there is no text
+        private void putAnnotation(long timestamp, String text) {
+            String onset = format(Locale.ENGLISH, "+%.3f", (timestamp - start) / 1000.0);
+            buffer.put(onset.getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 20);
+            if (text != null) {
+                buffer.put(text.getBytes(Charsets.US_ASCII));
+                buffer.put((byte) 20);
+            } else
+                buffer.put((byte) 20);
+            buffer.put((byte) 0);
+        }
+
+        // an annotation with a duration, of the given number of samples
+        private void putPadding(long timestamp, int samples) {
+            String onset = format(Locale.ENGLISH, "+%.3f", (timestamp - start) / 1000.0);
+            buffer.put(onset.getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 21);
+            buffer.put(format(Locale.ENGLISH, "%.4f", samples / (double) RATE).getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 20);
+            buffer.put("no data".getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 20);
+            buffer.put((byte) 0);
+        }
+
+        // an annotation with the duration of the artifact, including its last sample
+        private void putArtifact(Artifact artifact) {
+            String onset = format(Locale.ENGLISH, "+%.3f", (artifact.getFrom() - start) / 1000.0);
+            double duration = (artifact.getTo() - artifact.getFrom()) / 1000.0 + 1.0 / RATE;
+            StringBuilder text = new StringBuilder("artifact");
+            for (ArtifactDetector.Kind kind : artifact.getKinds())
+                text.append(' ').append(kind.name().toLowerCase(Locale.ENGLISH));
+            buffer.put(onset.getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 21);
+            buffer.put(format(Locale.ENGLISH, "%.4f", duration).getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 20);
+            buffer.put(text.toString().getBytes(Charsets.US_ASCII));
+            buffer.put((byte) 20);
+            buffer.put((byte) 0);
+        }
+
+        long finish() throws IOException {
+            if (detector != null)
+                detector.flush();
+            if (open)
+                writeRecord();
+            if (!detected.isEmpty())
+                log.warning(format("Could not annotate the last %s artifacts", detected.size()));
+            buffer.clear();
+            put(Long.toString(records), 8);
+            buffer.flip();
+            long position = RECORDS_OFFSET;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+            channel.force(false);
+            return records;
+        }
+    }
+}
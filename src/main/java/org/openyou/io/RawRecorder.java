@@ -0,0 +1,152 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.java.Log;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+
+import static org.openyou.io.RawRecording.*;
+
+/**
+ * Records the decrypted frames of an Emotiv, in the format read by
+ * {@link RawRecording}, as a much cheaper alternative to persisting
+ * every sample as a row.
+ * <p/>
+ * Frames are buffered in memory and written a block at a time,
+ * or when {@link #flush() flushed}.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class RawRecorder implements PacketListener, Closeable {
+
+    private final FileChannel channel;
+    private final int block;
+
+    @GuardedBy("this")
+    private final ByteBuffer buffer;
+    @GuardedBy("this")
+    private long frames, blockTimestamp;
+    @GuardedBy("this")
+    private boolean closed;
+
+    /**
+     * The number of frames per block is obtained from {@code org.openyou.io.raw}.
+     *
+     * @param file   will be overwritten
+     * @param serial of the device
+     * @throws IOException
+     */
+    public RawRecorder(File file, String serial) throws IOException {
+        this(file, serial, ConfigFactory.load().getInt("org.openyou.io.raw.block"));
+    }
+
+    /**
+     * @param file   will be overwritten
+     * @param serial of the device
+     * @param block  number of frames per block
+     * @throws IOException
+     */
+    public RawRecorder(File file, String serial, int block) throws IOException {
+        Preconditions.checkArgument(block > 0);
+        byte[] serialBytes = serial.getBytes(Charsets.UTF_8);
+        Preconditions.checkArgument(serialBytes.length <= MAX_SERIAL, "serial is too long: " + serial);
+        this.block = block;
+        buffer = ByteBuffer.allocateDirect(blockLength(block));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(SampleBlock.RATE).putInt(block);
+            header.putLong(System.currentTimeMillis());
+            header.putShort((short) serialBytes.length).put(serialBytes);
+            header.position(HEADER);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        try {
+            append(packet);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "failed to record packet", e);
+        }
+    }
+
+    /**
+     * @param packet
+     * @throws IOException
+     */
+    public synchronized void append(Packet packet) throws IOException {
+        if (closed)
+            throw new IOException("closed");
+        if (frames % block == 0) {
+            write();
+            blockTimestamp = packet.getTimestamp();
+            buffer.putLong(blockTimestamp).putLong(frames);
+        }
+        buffer.putInt((int) (packet.getTimestamp() - blockTimestamp));
+        packet.copyFrame(buffer);
+        frames++;
+    }
+
+    /**
+     * Writes all buffered frames to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (closed)
+            return;
+        write();
+        channel.force(false);
+    }
+
+    @GuardedBy("this")
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * @return the number of frames that have been recorded.
+     */
+    public synchronized long getSize() {
+        return frames;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+}
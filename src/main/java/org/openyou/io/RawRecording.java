@@ -0,0 +1,295 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import lombok.Getter;
+import org.openyou.Packet.Sensor;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Read access to a recording of the decrypted frames, as written by
+ * {@link RawRecorder}.
+ * <p/>
+ * The file has a fixed size header (serial, start time, sample rate
+ * and frames per block) followed by blocks of fixed size records:
+ * <pre>
+ * block  := timestamp (long), index of first frame (long), record*
+ * record := milliseconds after the block timestamp (int), frame (32 bytes)
+ * </pre>
+ * Because every block has the same length, the timestamp and sample
+ * index of any block can be looked up directly, giving O(log n) random
+ * access by time. A partially written final record is ignored.
+ * <p/>
+ * The file is memory mapped and {@link Frame}s are views over the
+ * mapped bytes: no frame data is copied onto the heap. Recordings
+ * larger than 2GB are mapped in several chunks, each holding whole
+ * blocks.
+ *
+ * @author Sam Halliday
+ */
+public final class RawRecording implements Closeable {
+
+    static final int MAGIC = 0x454D4F52; // "EMOR"
+    static final int VERSION = 1;
+    static final int FRAME = 32;
+    static final int MAX_SERIAL = 38;
+    // magic, version, rate, block, start, serial (length prefixed)
+    static final int HEADER = 4 + 4 + 4 + 4 + 8 + 2 + MAX_SERIAL;
+    // timestamp, index
+    static final int BLOCK_HEADER = 8 + 8;
+    // offset, frame
+    static final int RECORD = 4 + FRAME;
+    private static final int MAX_CHUNK = 1 << 30;
+
+    static int blockLength(int block) {
+        return BLOCK_HEADER + block * RECORD;
+    }
+
+    @Getter
+    private final File file;
+    @Getter
+    private final String serial;
+    @Getter
+    private final long start;
+    @Getter
+    private final int rate;
+    private final int block, blockLength, chunkBlocks;
+    private final long size, blocks;
+    private final List<MappedByteBuffer> chunks = Lists.newArrayList();
+
+    /**
+     * @param file
+     * @throws IOException if the file could not be read or is not a recording.
+     */
+    public RawRecording(File file) throws IOException {
+        this.file = Preconditions.checkNotNull(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < HEADER)
+                throw new IOException("not a recording: " + file);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt() != MAGIC)
+                throw new IOException("not a recording: " + file);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(format("unsupported version %s: %s", version, file));
+            rate = header.getInt();
+            block = header.getInt();
+            start = header.getLong();
+            int serialLength = header.getShort();
+            if (block <= 0 || serialLength < 0 || serialLength > MAX_SERIAL)
+                throw new IOException("corrupt header: " + file);
+            byte[] serialBytes = new byte[serialLength];
+            header.get(serialBytes);
+            serial = new String(serialBytes, Charsets.UTF_8);
+
+            blockLength = blockLength(block);
+            long body = length - HEADER;
+            long full = body / blockLength;
+            long remainder = body % blockLength;
+            long partial = remainder < BLOCK_HEADER ? 0 : (remainder - BLOCK_HEADER) / RECORD;
+            size = full * block + partial;
+            blocks = partial == 0 ? full : full + 1;
+
+            chunkBlocks = Math.max(1, MAX_CHUNK / blockLength);
+            long chunkLength = (long) chunkBlocks * blockLength;
+            long end = HEADER + (full * blockLength) + (partial == 0 ? 0 : BLOCK_HEADER + partial * RECORD);
+            for (long position = HEADER; position < end; position += chunkLength) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkLength, end - position)));
+            }
+            if (blocks > 0 && getBlockIndex(blocks - 1) != (blocks - 1) * block)
+                throw new IOException("corrupt block index: " + file);
+        } finally {
+            // mappings remain valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the number of frames per block.
+     */
+    public int getBlockSize() {
+        return block;
+    }
+
+    /**
+     * @return the number of frames in the recording.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @param timestamp
+     * @return the index of the first frame at or after the timestamp,
+     *         or {@link #getSize()} if there is none, assuming timestamps are ordered.
+     */
+    public long indexOf(long timestamp) {
+        // the last block that starts before the timestamp
+        long lo = 0, hi = blocks - 1, found = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            if (getBlockTimestamp(mid) < timestamp) {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        if (found < 0)
+            return 0;
+
+        ByteBuffer chunk = chunks.get((int) (found / chunkBlocks));
+        int offset = (int) (found % chunkBlocks) * blockLength;
+        long base = chunk.getLong(offset);
+        int first = 0;
+        int last = (int) Math.min(block, size - found * block) - 1;
+        int result = last + 1;
+        while (first <= last) {
+            int mid = (first + last) >>> 1;
+            if (base + chunk.getInt(offset + BLOCK_HEADER + mid * RECORD) >= timestamp) {
+                result = mid;
+                last = mid - 1;
+            } else
+                first = mid + 1;
+        }
+        return found * block + result;
+    }
+
+    private long getBlockTimestamp(long b) {
+        ByteBuffer chunk = chunks.get((int) (b / chunkBlocks));
+        return chunk.getLong((int) (b % chunkBlocks) * blockLength);
+    }
+
+    private long getBlockIndex(long b) {
+        ByteBuffer chunk = chunks.get((int) (b / chunkBlocks));
+        return chunk.getLong((int) (b % chunkBlocks) * blockLength + 8);
+    }
+
+    /**
+     * @return a cursor positioned before the first frame.
+     */
+    public Frame frames() {
+        return new Frame();
+    }
+
+    /**
+     * @param timestamp
+     * @return a cursor positioned before the first frame at or after the timestamp.
+     */
+    public Frame frames(long timestamp) {
+        Frame frame = new Frame();
+        frame.index = indexOf(timestamp) - 1;
+        return frame;
+    }
+
+    /**
+     * Mappings are released when the recording, and all its frames,
+     * are garbage collected.
+     */
+    @Override
+    public void close() {
+        chunks.clear();
+    }
+
+    /**
+     * A movable view of a single frame in the recording, intended
+     * to be reused for sequential scans:
+     * <pre>
+     * Frame frame = recording.frames();
+     * while (frame.next()) {
+     *     frame.getLevel(Sensor.F3);
+     * }
+     * </pre>
+     */
+    @NotThreadSafe
+    public final class Frame {
+        private long index = -1;
+        private ByteBuffer chunk;
+        // absolute offsets in the chunk
+        private int blockOffset, recordOffset;
+
+        private Frame() {
+        }
+
+        /**
+         * @return false if there are no more frames.
+         */
+        public boolean next() {
+            return seek(index + 1);
+        }
+
+        /**
+         * @param index
+         * @return false if the index is out of range, leaving the frame unchanged.
+         */
+        public boolean seek(long index) {
+            if (index < 0 || index >= size)
+                return false;
+            long b = index / block;
+            chunk = chunks.get((int) (b / chunkBlocks));
+            blockOffset = (int) (b % chunkBlocks) * blockLength;
+            recordOffset = blockOffset + BLOCK_HEADER + (int) (index % block) * RECORD;
+            this.index = index;
+            return true;
+        }
+
+        /**
+         * @return the index of this frame in the recording.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the time the frame was received, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return chunk.getLong(blockOffset) + chunk.getInt(recordOffset);
+        }
+
+        /**
+         * @return the counter, which is a battery reading when negative.
+         */
+        public byte getCounter() {
+            return chunk.get(recordOffset + 4);
+        }
+
+        public int getLevel(Sensor sensor) {
+            return sensor.apply(chunk, recordOffset + 4);
+        }
+
+        public int getGyroX() {
+            return 0xFF & chunk.get(recordOffset + 4 + 29);
+        }
+
+        public int getGyroY() {
+            return 0xFF & chunk.get(recordOffset + 4 + 30);
+        }
+
+        /**
+         * Copies the decrypted frame.
+         *
+         * @param buffer receives the frame at its position, which is advanced.
+         */
+        public void copyFrame(ByteBuffer buffer) {
+            ByteBuffer frame = chunk.duplicate();
+            frame.limit(recordOffset + 4 + FRAME).position(recordOffset + 4);
+            buffer.put(frame);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.persistence.EntityManagerFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Maintains the {@link EmotivRollup}s and {@link EmotivSessionSummary}
+ * of sessions that are not recorded by {@link EmotivJpaController},
+ * e.g. by {@link EmotivShardedController} or an {@link org.openyou.store.EmotivStore}.
+ * <p/>
+ * Data for any single session is expected to be added by one thread,
+ * in timestamp order. Everything is persisted by the calling thread:
+ * the summary when the session is started (or first seen) and then
+ * periodically, completed rollups as they happen, and the open periods
+ * and the finished summary when the session is finished.
+ *
+ * @author Sam Halliday
+ */
+@Log
+@ThreadSafe
+public class EmotivAggregator {
+
+    private final EmotivSessionCrud sessionCrud;
+    private final EmotivRollupCrud rollupCrud;
+    private final EmotivSessionSummaryCrud summaryCrud;
+    private final long summaryGap, summaryInterval;
+    private final int[] resolutions = EmotivRollupCrud.getResolutions();
+    private final ConcurrentMap<UUID, Aggregate> aggregates = Maps.newConcurrentMap();
+
+    public EmotivAggregator(EntityManagerFactory emf) {
+        sessionCrud = EmotivSessionCrud.getInstance(emf);
+        rollupCrud = new EmotivRollupCrud(emf);
+        summaryCrud = new EmotivSessionSummaryCrud(emf);
+
+        Config config = ConfigFactory.load().getConfig("org.openyou.jpa.controller.summary");
+        summaryGap = config.getMilliseconds("gap");
+        summaryInterval = config.getMilliseconds("interval");
+    }
+
+    /**
+     * Persists the (empty) summary of the session, which would
+     * otherwise wait for its first data.
+     *
+     * @param session persisted
+     */
+    public void start(EmotivSession session) {
+        getAggregate(session);
+    }
+
+    /**
+     * @param datum of a persisted session
+     */
+    public void add(EmotivDatum datum) {
+        Aggregate aggregate = getAggregate(datum.getSession());
+        List<EmotivRollup> completed;
+        EmotivSessionSummary update;
+        synchronized (aggregate) {
+            completed = aggregate.rollups.add(datum);
+            update = aggregate.summarise(datum);
+        }
+        persist(completed);
+        if (update != null)
+            update(update);
+    }
+
+    /**
+     * @param id    of a persisted session
+     * @param block
+     * @throws IllegalArgumentException if the session does not exist
+     */
+    public void add(UUID id, SampleBlock block) {
+        Preconditions.checkNotNull(id);
+        Aggregate aggregate = aggregates.get(id);
+        if (aggregate == null) {
+            EmotivSession session = sessionCrud.read(id);
+            Preconditions.checkArgument(session != null, "no session " + id);
+            aggregate = getAggregate(session);
+        }
+        List<EmotivRollup> completed = Collections.emptyList();
+        EmotivSessionSummary update = null;
+        int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+        synchronized (aggregate) {
+            for (int i = 0; i < block.getSize(); i++) {
+                EmotivDatum datum = EmotivDatum.fromBlock(block, i, levels, qualities);
+                EmotivSessionSummary summary = aggregate.summarise(datum);
+                if (summary != null)
+                    update = summary;
+                List<EmotivRollup> rollups = aggregate.rollups.add(datum);
+                if (rollups.isEmpty())
+                    continue;
+                if (completed.isEmpty())
+                    completed = rollups;
+                else
+                    completed.addAll(rollups);
+            }
+        }
+        persist(completed);
+        if (update != null)
+            update(update);
+    }
+
+    /**
+     * Persists the open rollup periods and the finished summary of the
+     * session. Data added to the session afterwards starts new periods,
+     * and a new summary.
+     *
+     * @param session
+     */
+    public void finish(UUID session) {
+        Aggregate aggregate = aggregates.remove(session);
+        if (aggregate == null)
+            return;
+        List<EmotivRollup> completed;
+        EmotivSessionSummary update;
+        synchronized (aggregate) {
+            completed = aggregate.rollups.flush();
+            update = aggregate.summary.getSummary(true);
+        }
+        persist(completed);
+        update(update);
+    }
+
+    /**
+     * Forgets the session without persisting anything more, e.g. when it has been deleted.
+     *
+     * @param session
+     */
+    public void discard(UUID session) {
+        aggregates.remove(session);
+    }
+
+    /**
+     * {@link #finish(UUID)} every session.
+     */
+    public void finishAll() {
+        for (UUID session : aggregates.keySet()) {
+            finish(session);
+        }
+    }
+
+    private Aggregate getAggregate(EmotivSession session) {
+        Preconditions.checkNotNull(session);
+        Aggregate aggregate = aggregates.get(session.getId());
+        if (aggregate != null)
+            return aggregate;
+        aggregate = new Aggregate(session);
+        Aggregate existing = aggregates.putIfAbsent(session.getId(), aggregate);
+        if (existing != null)
+            return existing;
+        EmotivSessionSummary initial;
+        synchronized (aggregate) {
+            initial = aggregate.summary.getSummary(false);
+        }
+        try {
+            summaryCrud.create(initial);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "failed to persist the summary of " + session.getId(), e);
+        }
+        return aggregate;
+    }
+
+    // merges, so also persists a summary that failed to be created
+    private void update(EmotivSessionSummary summary) {
+        try {
+            summaryCrud.update(summary);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "failed to persist the summary of " + summary.getSession().getId(), e);
+        }
+    }
+
+    private void persist(List<EmotivRollup> completed) {
+        if (completed.isEmpty())
+            return;
+        try {
+            rollupCrud.create(completed);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, format("failed to persist %s rollups", completed.size()), e);
+        }
+    }
+
+    private class Aggregate {
+        @GuardedBy("this")
+        private final RollupAccumulator rollups;
+        @GuardedBy("this")
+        private final SummaryAccumulator summary;
+        @GuardedBy("this")
+        private long summarised = -1;
+
+        Aggregate(EmotivSession session) {
+            rollups = new RollupAccumulator(session, resolutions);
+            summary = new SummaryAccumulator(session, summaryGap);
+        }
+
+        // the summary to persist, if it is due, measured in data time
+        @GuardedBy("this")
+        EmotivSessionSummary summarise(EmotivDatum datum) {
+            summary.add(datum);
+            long timestamp = datum.getTimestamp().getTime();
+            if (summarised < 0)
+                summarised = timestamp;
+            if (timestamp - summarised <= summaryInterval)
+                return null;
+            summarised = timestamp;
+            return summary.getSummary(false);
+        }
+    }
+}
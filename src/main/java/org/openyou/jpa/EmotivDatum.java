@@ -5,6 +5,7 @@ import com.google.common.base.Preconditions;
 import lombok.Data;
 import org.openyou.Packet;
 import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
 
 import javax.persistence.*;
 import java.util.Date;
@@ -17,9 +18,18 @@ import java.util.UUID;
  * @author Sam Halliday
  */
 @Entity
+// JPA 2.0 cannot declare an index, but the unique constraint creates the
+// composite index that is needed to stream a session in timestamp order
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"session_id", "timestamp", "id"}))
 @Data
 public class EmotivDatum {
 
+    // the EEG channels, in Sensor order
+    static final Sensor[] SENSORS = {
+            Sensor.F3, Sensor.FC5, Sensor.AF3, Sensor.F7, Sensor.T7, Sensor.P7, Sensor.O1,
+            Sensor.O2, Sensor.P8, Sensor.T8, Sensor.F8, Sensor.AF4, Sensor.FC6, Sensor.F4
+    };
+
     /**
      * @param packet
      * @return a datum, which is not yet assigned to a session.
@@ -65,6 +75,28 @@ public class EmotivDatum {
         return datum;
     }
 
+    /**
+     * @param block
+     * @param i     index of the sample
+     * @param levels    workspace of length {@link SampleBlock#CHANNELS}
+     * @param qualities workspace of length {@link SampleBlock#CHANNELS}
+     * @return a datum, which is not yet assigned to a session.
+     */
+    public static EmotivDatum fromBlock(SampleBlock block, int i, int[] levels, int[] qualities) {
+        EmotivDatum datum = new EmotivDatum();
+        datum.setTimestamp(new Date(block.getTimestamp(i)));
+        datum.setBattery(block.getBattery(i));
+        datum.setGyroX(block.getGyroX(i));
+        datum.setGyroY(block.getGyroY(i));
+        // the channels of a block are in the same order
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            levels[c] = block.getLevel(c, i);
+            qualities[c] = block.getQuality(c, i);
+        }
+        datum.setSensors(levels, qualities);
+        return datum;
+    }
+
 
     @Id
     private UUID id = UUID.randomUUID();
@@ -90,6 +122,121 @@ public class EmotivDatum {
             P7_QUALITY, O1_QUALITY, O2_QUALITY, P8_QUALITY, T8_QUALITY, F8_QUALITY, AF4_QUALITY,
             FC6_QUALITY, F4_QUALITY;
 
+    /**
+     * @param levels    in {@link #SENSORS} order
+     * @param qualities in {@link #SENSORS} order
+     */
+    public void setSensors(int[] levels, int[] qualities) {
+        Preconditions.checkArgument(levels.length == SENSORS.length && qualities.length == SENSORS.length);
+        F3 = levels[0];
+        FC5 = levels[1];
+        AF3 = levels[2];
+        F7 = levels[3];
+        T7 = levels[4];
+        P7 = levels[5];
+        O1 = levels[6];
+        O2 = levels[7];
+        P8 = levels[8];
+        T8 = levels[9];
+        F8 = levels[10];
+        AF4 = levels[11];
+        FC6 = levels[12];
+        F4 = levels[13];
+
+        F3_QUALITY = qualities[0];
+        FC5_QUALITY = qualities[1];
+        AF3_QUALITY = qualities[2];
+        F7_QUALITY = qualities[3];
+        T7_QUALITY = qualities[4];
+        P7_QUALITY = qualities[5];
+        O1_QUALITY = qualities[6];
+        O2_QUALITY = qualities[7];
+        P8_QUALITY = qualities[8];
+        T8_QUALITY = qualities[9];
+        F8_QUALITY = qualities[10];
+        AF4_QUALITY = qualities[11];
+        FC6_QUALITY = qualities[12];
+        F4_QUALITY = qualities[13];
+    }
+
+    /**
+     * @param sensor
+     * @return the reading for the sensor.
+     */
+    public Integer getSensor(Sensor sensor) {
+        switch (sensor) {
+            case F3:
+                return F3;
+            case FC5:
+                return FC5;
+            case AF3:
+                return AF3;
+            case F7:
+                return F7;
+            case T7:
+                return T7;
+            case P7:
+                return P7;
+            case O1:
+                return O1;
+            case O2:
+                return O2;
+            case P8:
+                return P8;
+            case T8:
+                return T8;
+            case F8:
+                return F8;
+            case AF4:
+                return AF4;
+            case FC6:
+                return FC6;
+            case F4:
+                return F4;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * @param sensor
+     * @return the quality of the sensor.
+     */
+    public Integer getQuality(Sensor sensor) {
+        switch (sensor) {
+            case F3:
+                return F3_QUALITY;
+            case FC5:
+                return FC5_QUALITY;
+            case AF3:
+                return AF3_QUALITY;
+            case F7:
+                return F7_QUALITY;
+            case T7:
+                return T7_QUALITY;
+            case P7:
+                return P7_QUALITY;
+            case O1:
+                return O1_QUALITY;
+            case O2:
+                return O2_QUALITY;
+            case P8:
+                return P8_QUALITY;
+            case T8:
+                return T8_QUALITY;
+            case F8:
+                return F8_QUALITY;
+            case AF4:
+                return AF4_QUALITY;
+            case FC6:
+                return FC6_QUALITY;
+            case F4:
+                return F4_QUALITY;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
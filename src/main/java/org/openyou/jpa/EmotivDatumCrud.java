@@ -1,18 +1,112 @@
 // Copyright Samuel Halliday 2012
 package org.openyou.jpa;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import fommil.persistence.CrudDao;
+import lombok.Cleanup;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import java.util.UUID;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import java.util.*;
 
 /**
  * @author Sam Halliday
  */
 public class EmotivDatumCrud extends CrudDao<UUID, EmotivDatum> {
 
+    private static final int PAGE = 1024;
+
     public EmotivDatumCrud(EntityManagerFactory emf) {
         super(EmotivDatum.class, emf);
     }
 
+    /**
+     * Streams the data of a session, ordered by timestamp, without holding
+     * more than a page of data in memory. Every page is obtained with a fresh
+     * {@link EntityManager}, so the returned entities are detached and the
+     * iterator does not need to be closed.
+     *
+     * @param session
+     * @param from    inclusive
+     * @param to      exclusive
+     * @return a lazy view of the data, each call to {@code iterator()} will query the database.
+     */
+    public Iterable<EmotivDatum> read(final EmotivSession session, final Date from, final Date to) {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkNotNull(from);
+        Preconditions.checkNotNull(to);
+        return new Iterable<EmotivDatum>() {
+            @Override
+            public Iterator<EmotivDatum> iterator() {
+                return new DatumIterator(session, from, to);
+            }
+        };
+    }
+
+    // keyset pagination on (timestamp, id), which is served by the index
+    // on EmotivDatum, so every page costs the same regardless of its offset
+    private class DatumIterator extends AbstractIterator<EmotivDatum> {
+        private final EmotivSession session;
+        private final Date from, to;
+        private EmotivDatum last;
+        private Iterator<EmotivDatum> page = Iterators.emptyIterator();
+        private boolean exhausted;
+
+        DatumIterator(EmotivSession session, Date from, Date to) {
+            this.session = session;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected EmotivDatum computeNext() {
+            while (!page.hasNext()) {
+                if (exhausted)
+                    return endOfData();
+                page = nextPage();
+            }
+            last = page.next();
+            return last;
+        }
+
+        private Iterator<EmotivDatum> nextPage() {
+            @Cleanup("close") EntityManager em = createEntityManager();
+            Query q;
+            if (last == null) {
+                q = em.createQuery("SELECT s FROM EmotivDatum s WHERE s.session = :session"
+                        + " AND s.timestamp >= :from AND s.timestamp < :to ORDER BY s.timestamp, s.id");
+                q.setParameter("from", from, TemporalType.TIMESTAMP);
+            } else {
+                q = em.createQuery("SELECT s FROM EmotivDatum s WHERE s.session = :session"
+                        + " AND (s.timestamp > :last OR (s.timestamp = :last AND s.id > :id))"
+                        + " AND s.timestamp < :to ORDER BY s.timestamp, s.id");
+                q.setParameter("last", last.getTimestamp(), TemporalType.TIMESTAMP);
+                q.setParameter("id", last.getId());
+            }
+            q.setParameter("session", session);
+            q.setParameter("to", to, TemporalType.TIMESTAMP);
+            q.setHint("org.hibernate.fetchSize", PAGE);
+            q.setMaxResults(PAGE);
+            List<EmotivDatum> results = query(em, q);
+            exhausted = results.size() < PAGE;
+            return results.iterator();
+        }
+    }
+
+    /**
+     * Bulk delete of all the data in a session, leaving the session.
+     *
+     * @param session
+     * @return the number of datums deleted
+     */
+    public int deleteBySession(EmotivSession session) {
+        Preconditions.checkNotNull(session);
+        return deleteWhere("s.session = :session", ImmutableMap.of("session", session));
+    }
+
 }
@@ -0,0 +1,298 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fommil.persistence.CrudDao.Work;
+import lombok.Cleanup;
+import lombok.extern.java.Log;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static java.lang.String.format;
+
+/**
+ * Bulk loader for archived recordings, bypassing the JPA
+ * persistence context entirely and writing {@link EmotivDatum}
+ * rows with batched JDBC prepared statements.
+ * <p/>
+ * This is intended for backfills, where persisting one entity
+ * at a time through {@link EmotivDatumCrud} is prohibitively slow.
+ * The schema must already exist (i.e. the {@code ZokuPU} persistence
+ * unit must have been started at least once) and the owning
+ * {@link EmotivSession} is created through JPA before its data
+ * is loaded. Each session is loaded in its own connection and
+ * transaction, so many sessions may be loaded in parallel.
+ * <p/>
+ * Throughput (rows per second) is logged for every session.
+ * {@code EmotivDatumLoaderBenchmark}, in the test sources, loads the
+ * same data through this loader and through the JPA path (a row per
+ * transaction, as {@link EmotivJpaController}, and batched) and logs
+ * the rate of each.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class EmotivDatumLoader {
+
+    static final String INSERT = "INSERT INTO %s (id, session_id, timestamp, battery, gyroX, gyroY, "
+            + "F3, FC5, AF3, F7, T7, P7, O1, O2, P8, T8, F8, AF4, FC6, F4, "
+            + "F3_QUALITY, FC5_QUALITY, AF3_QUALITY, F7_QUALITY, T7_QUALITY, P7_QUALITY, O1_QUALITY, "
+            + "O2_QUALITY, P8_QUALITY, T8_QUALITY, F8_QUALITY, AF4_QUALITY, FC6_QUALITY, F4_QUALITY) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, "
+            + "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * @param emf
+     * @return the JDBC URL that backs the persistence unit.
+     * @throws IllegalArgumentException if the persistence unit does not expose its JDBC URL.
+     */
+    static String getJdbcUrl(EntityManagerFactory emf) {
+        Map<String, Object> properties = emf.getProperties();
+        for (String key : new String[]{"hibernate.connection.url", "javax.persistence.jdbc.url"}) {
+            Object url = properties.get(key);
+            if (url != null && !url.toString().isEmpty())
+                return url.toString();
+        }
+        throw new IllegalArgumentException("no JDBC URL in persistence unit");
+    }
+
+    /**
+     * Hibernate's default mapping of {@link UUID} is a 16 byte binary column.
+     *
+     * @param uuid
+     * @return
+     */
+    static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * Sets the parameters of an {@link #INSERT} statement, the session must be set.
+     *
+     * @param statement
+     * @param datum
+     * @throws SQLException
+     */
+    static void bind(PreparedStatement statement, EmotivDatum datum) throws SQLException {
+        int i = 1;
+        statement.setBytes(i++, toBytes(datum.getId()));
+        statement.setBytes(i++, toBytes(datum.getSession().getId()));
+        statement.setTimestamp(i++, new Timestamp(datum.getTimestamp().getTime()));
+        setInteger(statement, i++, datum.getBattery());
+        setInteger(statement, i++, datum.getGyroX());
+        setInteger(statement, i++, datum.getGyroY());
+
+        setInteger(statement, i++, datum.getF3());
+        setInteger(statement, i++, datum.getFC5());
+        setInteger(statement, i++, datum.getAF3());
+        setInteger(statement, i++, datum.getF7());
+        setInteger(statement, i++, datum.getT7());
+        setInteger(statement, i++, datum.getP7());
+        setInteger(statement, i++, datum.getO1());
+        setInteger(statement, i++, datum.getO2());
+        setInteger(statement, i++, datum.getP8());
+        setInteger(statement, i++, datum.getT8());
+        setInteger(statement, i++, datum.getF8());
+        setInteger(statement, i++, datum.getAF4());
+        setInteger(statement, i++, datum.getFC6());
+        setInteger(statement, i++, datum.getF4());
+
+        setInteger(statement, i++, datum.getF3_QUALITY());
+        setInteger(statement, i++, datum.getFC5_QUALITY());
+        setInteger(statement, i++, datum.getAF3_QUALITY());
+        setInteger(statement, i++, datum.getF7_QUALITY());
+        setInteger(statement, i++, datum.getT7_QUALITY());
+        setInteger(statement, i++, datum.getP7_QUALITY());
+        setInteger(statement, i++, datum.getO1_QUALITY());
+        setInteger(statement, i++, datum.getO2_QUALITY());
+        setInteger(statement, i++, datum.getP8_QUALITY());
+        setInteger(statement, i++, datum.getT8_QUALITY());
+        setInteger(statement, i++, datum.getF8_QUALITY());
+        setInteger(statement, i++, datum.getAF4_QUALITY());
+        setInteger(statement, i++, datum.getFC6_QUALITY());
+        setInteger(statement, i, datum.getF4_QUALITY());
+    }
+
+    private static void setInteger(PreparedStatement statement, int i, Integer value) throws SQLException {
+        if (value == null)
+            statement.setNull(i, Types.INTEGER);
+        else
+            statement.setInt(i, value);
+    }
+
+    private final String url;
+    private final EmotivSessionCrud sessionCrud;
+    private final EmotivRollupCrud rollupCrud;
+    private final long gap = ConfigFactory.load().getMilliseconds("org.openyou.jpa.controller.summary.gap");
+    private final int[] resolutions = EmotivRollupCrud.getResolutions();
+    private final int batch;
+    private final int threads;
+
+    public EmotivDatumLoader(EntityManagerFactory emf) {
+        url = getJdbcUrl(emf);
+        sessionCrud = EmotivSessionCrud.getInstance(emf);
+        rollupCrud = new EmotivRollupCrud(emf);
+
+        Config config = ConfigFactory.load().getConfig("org.openyou.jpa.loader");
+        batch = config.getInt("batch");
+        threads = config.getInt("threads");
+        Preconditions.checkArgument(batch > 0 && threads > 0);
+    }
+
+    /**
+     * Creates the session and loads all of its data, which will be
+     * assigned to the session and must be in timestamp order.
+     * <p/>
+     * The session is committed first, so that the data may refer to it,
+     * then the data is loaded in a single JDBC transaction, and finally
+     * the rollups and the session summary are persisted in a single JPA
+     * transaction. These are not
+     * atomic: if any step fails, the session (along with anything that
+     * was committed for it) is deleted before the exception is thrown.
+     *
+     * @param session not yet persisted
+     * @param data
+     * @return the number of rows loaded
+     * @throws PersistenceException
+     */
+    public long load(EmotivSession session, Iterator<EmotivDatum> data) {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkNotNull(data);
+        sessionCrud.create(session);
+        try {
+            return loadData(session, data);
+        } catch (RuntimeException e) {
+            try {
+                sessionCrud.delete(session);
+            } catch (RuntimeException suppressed) {
+                log.warning("Failed to clean up " + session.getId() + ": " + suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private long loadData(EmotivSession session, Iterator<EmotivDatum> data) {
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        RollupAccumulator accumulator = new RollupAccumulator(session, resolutions);
+        List<EmotivRollup> rollups = Lists.newArrayList();
+        SummaryAccumulator summary = new SummaryAccumulator(session, gap);
+        try {
+            @Cleanup Connection connection = DriverManager.getConnection(url);
+            connection.setAutoCommit(false);
+            try {
+                @Cleanup PreparedStatement statement = connection.prepareStatement(format(INSERT, "EmotivDatum"));
+                int pending = 0;
+                while (data.hasNext()) {
+                    EmotivDatum datum = data.next();
+                    datum.setSession(session);
+                    rollups.addAll(accumulator.add(datum));
+                    summary.add(datum);
+                    bind(statement, datum);
+                    statement.addBatch();
+                    if (++pending == batch) {
+                        statement.executeBatch();
+                        rows += pending;
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                    rows += pending;
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("bulk load failed for " + session.getId(), e);
+        }
+
+        rollups.addAll(accumulator.flush());
+        final List<EmotivRollup> completed = rollups;
+        final EmotivSessionSummary finished = summary.getSummary(true);
+        rollupCrud.transact(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                for (int i = 0; i < completed.size(); i++) {
+                    em.persist(completed.get(i));
+                    if ((i + 1) % batch == 0) {
+                        em.flush();
+                        em.clear();
+                    }
+                }
+                em.persist(finished);
+                return null;
+            }
+        });
+
+        long end = System.currentTimeMillis();
+        log.info(format("Loaded %s rows for %s in %sms (%.0f rows/s)",
+                rows, session.getId(), end - start, 1000.0 * rows / Math.max(1, end - start)));
+        return rows;
+    }
+
+    /**
+     * Loads many sessions in parallel, each in its own transaction.
+     * A failure in one session does not affect the others.
+     *
+     * @param sessions not yet persisted, with their data
+     * @return the number of rows loaded, or an exception, for each session
+     * @throws InterruptedException
+     */
+    public Map<EmotivSession, Future<Long>> loadAll(Map<EmotivSession, ? extends Iterable<EmotivDatum>> sessions)
+            throws InterruptedException {
+        Preconditions.checkNotNull(sessions);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<EmotivSession> keys = Lists.newArrayList();
+            List<Callable<Long>> tasks = Lists.newArrayList();
+            for (final Map.Entry<EmotivSession, ? extends Iterable<EmotivDatum>> entry : sessions.entrySet()) {
+                keys.add(entry.getKey());
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return load(entry.getKey(), entry.getValue().iterator());
+                    }
+                });
+            }
+            long start = System.currentTimeMillis();
+            List<Future<Long>> results = executor.invokeAll(tasks);
+            long end = System.currentTimeMillis();
+
+            Map<EmotivSession, Future<Long>> loaded = Maps.newLinkedHashMap();
+            long rows = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                Future<Long> result = results.get(i);
+                loaded.put(keys.get(i), result);
+                try {
+                    rows += result.get();
+                } catch (ExecutionException e) {
+                    log.warning("Failed to load " + keys.get(i).getId() + ": " + e.getCause());
+                }
+            }
+            log.info(format("Loaded %s rows for %s sessions in %sms (%.0f rows/s)",
+                    rows, keys.size(), end - start, 1000.0 * rows / Math.max(1, end - start)));
+            return loaded;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
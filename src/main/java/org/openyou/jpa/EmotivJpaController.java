@@ -3,17 +3,36 @@
 package org.openyou.jpa;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import fommil.persistence.AsyncCrudDao;
+import fommil.persistence.CrudDao.Work;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.java.Log;
 import org.openyou.Emotiv;
 import org.openyou.Packet;
+import org.openyou.Packet.Sensor;
 
+import javax.annotation.concurrent.GuardedBy;
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import javax.persistence.PersistenceException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static java.lang.String.format;
 
 /**
  * Abstracts the lower level CRUD operations for recording
@@ -25,41 +44,232 @@ import java.util.concurrent.Executors;
  * fully compatible with PropertyChangeListener support).
  * <p/>
  * Persistence is performed in background worker threads.
+ * If persistence falls behind (the backlog or the commit
+ * latency exceed configured thresholds) recording is degraded
+ * according to the configured {@link Overload} policy until
+ * it catches up. Transitions are recorded in the session's
+ * {@link EmotivSession#getEvents() events}.
  * <p/>
  * The session object must be re-obtained from the database
  * layer in order to see all associated data.
+ * <p/>
+ * The last session is only finished (its open rollup periods and
+ * final summary persisted) by {@link #close()}, which must be called
+ * when recording ends, e.g. on shutdown.
  *
  * @author Sam Halliday
  */
 @Log
-public class EmotivJpaController implements Emotiv.PacketListener {
+public class EmotivJpaController implements Emotiv.PacketListener, Closeable {
+
+    /**
+     * What to do with packets while persistence is falling behind.
+     */
+    public enum Overload {
+        /**
+         * Only record every n'th packet.
+         */
+        DECIMATE,
+        /**
+         * Write packets to a local file instead of the database, which
+         * is replayed into the database once persistence has recovered.
+         * The file holds fixed length records:
+         * <pre>
+         * record := timestamp (long), battery level (int), decrypted frame (32 bytes),
+         *           quality of each sensor in {@link EmotivDatum} order (int*14, zero if unknown)
+         * </pre>
+         * A file that could not be replayed is kept, and is logged.
+         */
+        SPILL,
+        /**
+         * Discard packets, counting how many were lost.
+         */
+        DROP
+    }
 
     private final EmotivDatumCrud datumCrud;
     private final EmotivSessionCrud sessionCrud;
-    private final Executor executor;
+    private final EmotivRollupCrud rollupCrud;
+    private final int[] resolutions = EmotivRollupCrud.getResolutions();
+    private final AsyncCrudDao<UUID, EmotivSession> sessionAsync;
+    private final AsyncCrudDao<UUID, EmotivSessionSummary> summaryAsync;
+    private final long summaryGap, summaryInterval;
+    private final ThreadPoolExecutor executor;
     @Getter
     private volatile EmotivSession session;
-    @Getter @Setter
+    @Getter
     private volatile boolean recording;
+    @GuardedBy("this")
+    private RollupAccumulator rollups;
+    @GuardedBy("this")
+    private SummaryAccumulator summary;
+    @GuardedBy("this")
+    private long summarised;
+
+    @Getter
+    private final Overload overload;
+    private final int backlogHigh, backlogLow, decimation;
+    private final long latencyHigh;
+    private final File spillDir;
+    private final int replayBatch;
+
+    // exponentially weighted moving average of commit times, in millis, as double bits
+    private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+    @Getter
+    private volatile boolean degraded;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong rejectedRollups = new AtomicLong();
+    private long counter;
+    @GuardedBy("this")
+    private DataOutputStream spill;
+    @GuardedBy("this")
+    private File spillFile;
+    @GuardedBy("this")
+    private EmotivSession spillSession;
+    @GuardedBy("this")
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME);
+
+    private static final int FRAME = 32;
 
     public EmotivJpaController(EntityManagerFactory emf) {
         datumCrud = new EmotivDatumCrud(emf);
-        sessionCrud = new EmotivSessionCrud(emf);
+        sessionCrud = EmotivSessionCrud.getInstance(emf);
+        rollupCrud = new EmotivRollupCrud(emf);
 
         Config config = ConfigFactory.load().getConfig("org.openyou.jpa.controller");
         int threads = config.getInt("threads");
-        executor = Executors.newFixedThreadPool(threads);
+        int capacity = config.getInt("capacity");
+        sessionAsync = new AsyncCrudDao<UUID, EmotivSession>(sessionCrud,
+                config.getInt("async.threads"), config.getInt("async.capacity"));
+        // summaries are created by merging, so must have a single writer
+        summaryAsync = new AsyncCrudDao<UUID, EmotivSessionSummary>(new EmotivSessionSummaryCrud(emf),
+                1, config.getInt("async.capacity"));
+        summaryGap = config.getMilliseconds("summary.gap");
+        summaryInterval = config.getMilliseconds("summary.interval");
+        // the policy should stop us getting here, but this caps the heap
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(capacity),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (r instanceof RollupTask) {
+                            rejectedRollups.incrementAndGet();
+                            log.warning(format("lost %s rollups, the queue is full", ((RollupTask) r).rollups.size()));
+                        } else if (r instanceof ReplayTask)
+                            log.warning(format("kept %s, the queue is full", ((ReplayTask) r).file));
+                        else
+                            dropped.incrementAndGet();
+                    }
+                });
+
+        Config overloadConfig = config.getConfig("overload");
+        overload = Overload.valueOf(overloadConfig.getString("policy").toUpperCase());
+        backlogHigh = overloadConfig.getInt("backlog.high");
+        backlogLow = overloadConfig.getInt("backlog.low");
+        latencyHigh = overloadConfig.getMilliseconds("latency");
+        decimation = overloadConfig.getInt("decimation");
+        spillDir = new File(overloadConfig.getString("spill"));
+        replayBatch = overloadConfig.getInt("replay");
+        Preconditions.checkArgument(backlogLow < backlogHigh && backlogHigh <= capacity);
+        Preconditions.checkArgument(decimation > 0 && replayBatch > 0);
     }
 
-    public void setSession(EmotivSession session) {
+    /**
+     * Creates the session, along with its (empty) summary, in a single transaction.
+     *
+     * @param session not yet persisted
+     * @throws PersistenceException
+     */
+    public void setSession(final EmotivSession session) {
+        closeSpill();
+        finish();
+        final SummaryAccumulator summary = new SummaryAccumulator(session, summaryGap);
+        final EmotivSessionSummary initial = summary.getSummary(false);
+        sessionCrud.transact(new Work<Void>() {
+            @Override
+            public Void apply(EntityManager em) {
+                em.persist(session);
+                em.persist(initial);
+                return null;
+            }
+        });
         this.session = session;
-        sessionCrud.create(session);
+        synchronized (this) {
+            rollups = new RollupAccumulator(session, resolutions);
+            this.summary = summary;
+            summarised = System.currentTimeMillis();
+        }
     }
 
-    public void updateSession(EmotivSession session) {
+    /**
+     * Recording may be paused and resumed within a session. Rollups are
+     * persisted as each period completes, so a period that is open when
+     * recording stops is only persisted when it completes after recording
+     * resumes, or when the session is replaced.
+     *
+     * @param recording the session summary is persisted when recording stops.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+        if (!recording)
+            summarise();
+    }
+
+    /**
+     * Persists changes to the session in the background,
+     * failures are logged.
+     *
+     * @param session
+     * @return the merged session, when complete.
+     */
+    public ListenableFuture<EmotivSession> updateSession(EmotivSession session) {
         Preconditions.checkNotNull(session);
         Preconditions.checkArgument(session.equals(this.session));
-        sessionCrud.update(session);
+        return updateAsync(session);
+    }
+
+    private ListenableFuture<EmotivSession> updateAsync(final EmotivSession session) {
+        ListenableFuture<EmotivSession> future = sessionAsync.update(session);
+        Futures.addCallback(future, new FutureCallback<EmotivSession>() {
+            @Override
+            public void onSuccess(EmotivSession result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.log(Level.WARNING, "failed to update " + session.getId(), t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return the number of packets waiting to be persisted.
+     */
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of packets that have not been recorded, since construction.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of batches of rollups that could not be queued, since construction.
+     */
+    public long getRejectedRollups() {
+        return rejectedRollups.get();
+    }
+
+    /**
+     * @return the number of packets that have been written to spill files, since construction.
+     */
+    public long getSpilled() {
+        return spilled.get();
     }
 
     @Override
@@ -67,18 +277,296 @@ public class EmotivJpaController implements Emotiv.PacketListener {
         if (!recording)
             return;
         final EmotivSession session = this.session;
+        final EmotivDatum datum = EmotivDatum.fromPacket(packet);
+        datum.setSession(session);
+        // rollups see every packet, even when recording is degraded
+        List<EmotivRollup> completed = Collections.emptyList();
+        EmotivSessionSummary update = null;
+        synchronized (this) {
+            if (rollups != null)
+                completed = rollups.add(datum);
+            if (summary != null) {
+                summary.add(datum);
+                if (packet.getDate().getTime() - summarised > summaryInterval) {
+                    summarised = packet.getDate().getTime();
+                    update = summary.getSummary(false);
+                }
+            }
+        }
+        persistRollups(completed);
+        if (update != null)
+            summaryAsync.update(update);
+
+        checkLag(session);
+        if (degraded) {
+            switch (overload) {
+                case DECIMATE:
+                    if (counter++ % decimation != 0) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    break;
+                case SPILL:
+                    spill(session, packet);
+                    return;
+                case DROP:
+                    dropped.incrementAndGet();
+                    return;
+            }
+        }
+
         final long start = System.currentTimeMillis();
         Runnable runnable = new Runnable() {
             @Override
             public void run () {
-                EmotivDatum datum = EmotivDatum.fromPacket(packet);
-                datum.setSession(session);
-
+                long begin = System.currentTimeMillis();
                 datumCrud.create(datum); // taking about 6 millis
                 long end = System.currentTimeMillis();
+                addLatency(end - begin);
                 log.config("Persistence took " + (end - start));
             }
         };
         executor.execute(runnable);
     }
+
+    private void addLatency(long millis) {
+        while (true) {
+            long bits = latency.get();
+            double updated = 0.9 * Double.longBitsToDouble(bits) + 0.1 * millis;
+            if (latency.compareAndSet(bits, Double.doubleToLongBits(updated)))
+                return;
+        }
+    }
+
+    private void summarise() {
+        EmotivSessionSummary update;
+        synchronized (this) {
+            if (summary == null)
+                return;
+            update = summary.getSummary(true);
+        }
+        summaryAsync.update(update);
+    }
+
+    // persists partial rollups and the finished summary, when the session is replaced or closed
+    private void finish() {
+        List<EmotivRollup> completed;
+        EmotivSessionSummary update;
+        synchronized (this) {
+            if (rollups == null)
+                return;
+            completed = rollups.flush();
+            update = summary.getSummary(true);
+            rollups = null;
+            summary = null;
+        }
+        persistRollups(completed);
+        summaryAsync.update(update);
+    }
+
+    /**
+     * Stops recording, finishes the session and waits for all outstanding
+     * data, rollups, summaries, session updates and spilled packets to be
+     * persisted. The controller may not be used afterwards. If the calling
+     * thread is interrupted, this still waits and the interrupt is restored.
+     */
+    @Override
+    public void close() {
+        recording = false;
+        closeSpill();
+        finish();
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // after the executor, as its tasks may queue updates
+        for (AsyncCrudDao<?, ?> async : Arrays.asList(sessionAsync, summaryAsync)) {
+            async.shutdown();
+            while (true) {
+                try {
+                    async.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void persistRollups(List<EmotivRollup> completed) {
+        if (completed.isEmpty())
+            return;
+        executor.execute(new RollupTask(completed));
+    }
+
+    // distinguished from packets by the RejectedExecutionHandler
+    private class RollupTask implements Runnable {
+        private final List<EmotivRollup> rollups;
+
+        RollupTask(List<EmotivRollup> rollups) {
+            this.rollups = rollups;
+        }
+
+        @Override
+        public void run() {
+            try {
+                rollupCrud.create(rollups);
+            } catch (PersistenceException e) {
+                log.log(Level.WARNING, "failed to persist rollups", e);
+            }
+        }
+    }
+
+    // only called by the acquisition thread
+    private void checkLag(EmotivSession session) {
+        int backlog = getBacklog();
+        double latency = Double.longBitsToDouble(this.latency.get());
+        if (!degraded && (backlog > backlogHigh || latency > latencyHigh)) {
+            degraded = true;
+            counter = 0;
+            recordEvent(session, format("DEGRADED (%s): backlog %s, commit latency %.1fms",
+                    overload, backlog, latency));
+        } else if (degraded && backlog <= backlogLow && (latency <= latencyHigh || backlog == 0)) {
+            degraded = false;
+            // the average is stale if nothing was committed while degraded
+            this.latency.set(Double.doubleToLongBits(Math.min(latency, latencyHigh / 2.0)));
+            closeSpill();
+            recordEvent(session, format("RECOVERED: backlog %s, commit latency %.1fms, %s dropped, %s spilled",
+                    backlog, latency, dropped.get(), spilled.get()));
+        }
+    }
+
+    // the list is replaced rather than modified, because a background
+    // update may be iterating over it while it is merged
+    private void recordEvent(EmotivSession session, String message) {
+        log.warning(message);
+        synchronized (session) {
+            List<String> events = Lists.newArrayList(session.getEvents());
+            events.add(format("%tF %<tT.%<tL %s", System.currentTimeMillis(), message));
+            session.setEvents(events);
+        }
+        updateAsync(session);
+    }
+
+    private synchronized void spill(EmotivSession session, Packet packet) {
+        try {
+            if (spill == null) {
+                if (!spillDir.isDirectory() && !spillDir.mkdirs())
+                    throw new IOException("could not create " + spillDir);
+                // a new file every time, as earlier files may still be replaying
+                File file = new File(spillDir, format("%s-%s.spill", session.getId(), System.currentTimeMillis()));
+                spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                spillFile = file;
+                spillSession = session;
+                recordEvent(session, "SPILLING to " + file.getAbsolutePath());
+            }
+            spill.writeLong(packet.getTimestamp());
+            spill.writeInt(packet.getBatteryLevel());
+            frame.clear();
+            packet.copyFrame(frame);
+            spill.write(frame.array());
+            for (Sensor sensor : EmotivDatum.SENSORS) {
+                Integer quality = packet.getQuality(sensor);
+                spill.writeInt(quality == null ? 0 : quality);
+            }
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to spill", e);
+            dropped.incrementAndGet();
+        }
+    }
+
+    // and replays it in the background
+    private synchronized void closeSpill() {
+        if (spill == null)
+            return;
+        try {
+            spill.close();
+            executor.execute(new ReplayTask(spillSession, spillFile));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "failed to close " + spillFile, e);
+        }
+        spill = null;
+        spillFile = null;
+        spillSession = null;
+    }
+
+    private class ReplayTask implements Runnable {
+        private final EmotivSession session;
+        private final File file;
+
+        ReplayTask(EmotivSession session, File file) {
+            this.session = session;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            long replayed = 0;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    List<EmotivDatum> batch = Lists.newArrayListWithCapacity(replayBatch);
+                    EmotivDatum datum;
+                    while ((datum = read(in)) != null) {
+                        batch.add(datum);
+                        if (batch.size() == replayBatch) {
+                            datumCrud.create(batch);
+                            replayed += batch.size();
+                            batch.clear();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        datumCrud.create(batch);
+                        replayed += batch.size();
+                    }
+                } finally {
+                    in.close();
+                }
+                if (!file.delete())
+                    throw new IOException("could not delete " + file);
+                log.info(format("replayed %s packets from %s", replayed, file));
+            } catch (IOException e) {
+                log.log(Level.WARNING, format("kept %s after replaying %s packets", file, replayed), e);
+            } catch (PersistenceException e) {
+                log.log(Level.WARNING, format("kept %s after replaying %s packets", file, replayed), e);
+            }
+        }
+
+        // null at the end of the file, ignoring a partially written record
+        private EmotivDatum read(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[FRAME];
+            int[] levels = new int[EmotivDatum.SENSORS.length];
+            int[] qualities = new int[EmotivDatum.SENSORS.length];
+            EmotivDatum datum = new EmotivDatum();
+            try {
+                datum.setTimestamp(new Date(in.readLong()));
+                datum.setBattery(in.readInt());
+                in.readFully(bytes);
+                for (int c = 0; c < qualities.length; c++) {
+                    qualities[c] = in.readInt();
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(bytes);
+            for (int c = 0; c < levels.length; c++) {
+                levels[c] = EmotivDatum.SENSORS[c].apply(frame, 0);
+            }
+            datum.setSession(session);
+            // as Packet
+            datum.setGyroX(0xFF & bytes[29]);
+            datum.setGyroY(0xFF & bytes[30]);
+            datum.setSensors(levels, qualities);
+            return datum;
+        }
+    }
 }
@@ -0,0 +1,72 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import lombok.Data;
+import org.openyou.Packet.Sensor;
+
+import javax.persistence.*;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Summary of a single channel in a session over a fixed
+ * period of time, allowing long sessions to be displayed
+ * without reading every {@link EmotivDatum}.
+ *
+ * @author Sam Halliday
+ * @see EmotivRollupCrud
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"session_id", "resolution", "sensor", "timestamp"}))
+@Data
+public class EmotivRollup {
+
+    @Id
+    private UUID id = UUID.randomUUID();
+
+    @ManyToOne
+    private EmotivSession session;
+
+    /**
+     * Length of the period, in seconds.
+     */
+    @Column
+    private Integer resolution;
+
+    @Column
+    @Enumerated(EnumType.STRING)
+    private Sensor sensor;
+
+    /**
+     * Start of the period.
+     */
+    @Column
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date timestamp;
+
+    @Column
+    private Integer min, max, count;
+
+    @Column
+    private Double mean;
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EmotivRollup) || id == null) {
+            return false;
+        }
+        EmotivRollup other = (EmotivRollup) obj;
+        return id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        Preconditions.checkNotNull(id, "id must be set before @Entity.hashCode can be called");
+        return id.hashCode();
+    }
+
+}
@@ -0,0 +1,79 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import com.typesafe.config.ConfigFactory;
+import fommil.persistence.CrudDao;
+import lombok.Cleanup;
+import org.openyou.Packet.Sensor;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * @author Sam Halliday
+ */
+public class EmotivRollupCrud extends CrudDao<UUID, EmotivRollup> {
+
+    /**
+     * @return the configured resolutions (in seconds) in ascending order.
+     */
+    static int[] getResolutions() {
+        List<Integer> resolutions = ConfigFactory.load().getIntList("org.openyou.jpa.rollups.resolutions");
+        Preconditions.checkArgument(!resolutions.isEmpty());
+        return Ints.toArray(Ordering.natural().sortedCopy(resolutions));
+    }
+
+    private final int[] resolutions = getResolutions();
+
+    public EmotivRollupCrud(EntityManagerFactory emf) {
+        super(EmotivRollup.class, emf);
+    }
+
+    /**
+     * Range query that uses the finest resolution that
+     * returns no more than the requested number of points,
+     * or the coarsest resolution if none do.
+     *
+     * @param session
+     * @param sensor
+     * @param from      inclusive
+     * @param to        exclusive
+     * @param maxPoints
+     * @return rollups ordered by timestamp
+     */
+    public List<EmotivRollup> read(EmotivSession session, Sensor sensor, Date from, Date to, int maxPoints) {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkNotNull(sensor);
+        Preconditions.checkArgument(from.before(to));
+        Preconditions.checkArgument(maxPoints > 0);
+
+        long span = to.getTime() - from.getTime();
+        int resolution = resolutions[resolutions.length - 1];
+        for (int candidate : resolutions) {
+            if (span / (1000L * candidate) <= maxPoints) {
+                resolution = candidate;
+                break;
+            }
+        }
+
+        @Cleanup("close") EntityManager em = createEntityManager();
+        Query q = em.createQuery("SELECT s FROM EmotivRollup s WHERE s.session = :session"
+                + " AND s.sensor = :sensor AND s.resolution = :resolution"
+                + " AND s.timestamp >= :from AND s.timestamp < :to ORDER BY s.timestamp");
+        q.setParameter("session", session);
+        q.setParameter("sensor", sensor);
+        q.setParameter("resolution", resolution);
+        q.setParameter("from", from, TemporalType.TIMESTAMP);
+        q.setParameter("to", to, TemporalType.TIMESTAMP);
+        return query(em, q);
+    }
+
+}
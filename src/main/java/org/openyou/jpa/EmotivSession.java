@@ -7,6 +7,7 @@ import lombok.Data;
 
 import javax.persistence.*;
 import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -31,6 +32,15 @@ public class EmotivSession {
     @OneToMany(mappedBy = "session")
     private Collection<EmotivDatum> data = Lists.newArrayList();
 
+    /**
+     * Human readable notes about the recording process, e.g.
+     * when recording was degraded because persistence fell behind.
+     */
+    @ElementCollection(fetch = FetchType.EAGER)
+    @OrderColumn
+    @Column(length = 1024)
+    private List<String> events = Lists.newArrayList();
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
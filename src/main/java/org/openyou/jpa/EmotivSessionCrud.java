@@ -1,18 +1,60 @@
 // Copyright Samuel Halliday 2012
 package org.openyou.jpa;
 
-import fommil.persistence.CrudDao;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fommil.persistence.CachedCrudDao;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Sessions are cached, according to {@code org.openyou.jpa.sessions.cache}.
+ * There is one instance for each {@link EntityManagerFactory}, so that every
+ * component sees the invalidations made by the others.
+ *
  * @author Sam Halliday
  */
-public class EmotivSessionCrud extends CrudDao<UUID, EmotivSession> {
+public class EmotivSessionCrud extends CachedCrudDao<UUID, EmotivSession> {
 
-    public EmotivSessionCrud(EntityManagerFactory emf) {
-        super(EmotivSession.class, emf);
+    private static final Config config = ConfigFactory.load().getConfig("org.openyou.jpa.sessions.cache");
+
+    // weak, so that the instance is released along with its last user
+    private static final LoadingCache<EntityManagerFactory, EmotivSessionCrud> instances =
+            CacheBuilder.newBuilder().weakKeys().weakValues().build(
+                    new CacheLoader<EntityManagerFactory, EmotivSessionCrud>() {
+                        @Override
+                        public EmotivSessionCrud load(EntityManagerFactory emf) {
+                            return new EmotivSessionCrud(emf);
+                        }
+                    });
+
+    /**
+     * @param emf
+     * @return the instance shared by all users of the factory.
+     */
+    public static EmotivSessionCrud getInstance(EntityManagerFactory emf) {
+        return instances.getUnchecked(emf);
     }
 
+    private EmotivSessionCrud(EntityManagerFactory emf) {
+        super(EmotivSession.class, emf, config.getLong("size"),
+                config.getMilliseconds("ttl"), TimeUnit.MILLISECONDS);
+    }
+
+    // the session's data is removed with bulk deletes, instead of one entity at a time
+    @Override
+    protected void removeFromManyToManyMappings(EntityManager em, EmotivSession entity) {
+        for (String table : new String[]{"EmotivDatum", "EmotivRollup", "EmotivSessionSummary"}) {
+            Query q = em.createQuery("DELETE FROM " + table + " d WHERE d.session = :session");
+            q.setParameter("session", entity);
+            q.executeUpdate();
+        }
+    }
 }
@@ -0,0 +1,82 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import lombok.Data;
+
+import javax.persistence.*;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Precomputed statistics for a session, allowing sessions
+ * to be listed without reading any of their data.
+ * <p/>
+ * Per-channel arrays are in {@link org.openyou.Packet.Sensor}
+ * order, excluding {@link org.openyou.Packet.Sensor#QUALITY}.
+ *
+ * @author Sam Halliday
+ * @see EmotivSessionSummaryCrud
+ */
+@Entity
+@Data
+public class EmotivSessionSummary {
+
+    @Id
+    private UUID id = UUID.randomUUID();
+
+    @OneToOne(optional = false)
+    @JoinColumn(unique = true)
+    private EmotivSession session;
+
+    @Column
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date started, ended;
+
+    /**
+     * In milliseconds.
+     */
+    @Column
+    private Long duration;
+
+    @Column
+    private Long samples;
+
+    @Column
+    private Integer gaps;
+
+    /**
+     * Time, in milliseconds, when the worst sensor contact
+     * was at each quality level.
+     */
+    @Column
+    private Long goodMillis, fairMillis, poorMillis;
+
+    @Column(length = 1024)
+    private double[] means, variances;
+
+    /**
+     * True when the session has stopped recording.
+     */
+    @Column
+    private Boolean finished;
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EmotivSessionSummary) || id == null) {
+            return false;
+        }
+        EmotivSessionSummary other = (EmotivSessionSummary) obj;
+        return id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        Preconditions.checkNotNull(id, "id must be set before @Entity.hashCode can be called");
+        return id.hashCode();
+    }
+
+}
@@ -0,0 +1,40 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import fommil.persistence.CrudDao;
+import lombok.Cleanup;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * @author Sam Halliday
+ */
+public class EmotivSessionSummaryCrud extends CrudDao<UUID, EmotivSessionSummary> {
+
+    public EmotivSessionSummaryCrud(EntityManagerFactory emf) {
+        super(EmotivSessionSummary.class, emf);
+    }
+
+    /**
+     * A page of summaries, most recent first, which does not touch the session data.
+     * Ties (including summaries without data) are ordered by id, so pages are stable.
+     *
+     * @param first index of the first summary to return
+     * @param max   maximum number of summaries to return
+     * @return
+     */
+    public List<EmotivSessionSummary> list(int first, int max) {
+        Preconditions.checkArgument(first >= 0 && max > 0);
+        @Cleanup("close") EntityManager em = createEntityManager();
+        Query q = em.createQuery("SELECT s FROM EmotivSessionSummary s ORDER BY s.started DESC, s.id");
+        q.setFirstResult(first);
+        q.setMaxResults(max);
+        return query(em, q);
+    }
+
+}
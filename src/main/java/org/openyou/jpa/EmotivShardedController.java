@@ -0,0 +1,259 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.extern.java.Log;
+import org.openyou.Emotiv;
+import org.openyou.Packet;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import static java.lang.String.format;
+
+/**
+ * Records many sessions at the same time (e.g. one per headset
+ * or participant), as an alternative to {@link EmotivJpaController}
+ * which can only record a single session.
+ * <p/>
+ * Each session is assigned to a writer shard, chosen by its id.
+ * A shard is a single thread with a bounded queue that persists
+ * data in batches, so data is written in order within a session
+ * and in parallel across sessions. When a shard's queue is full,
+ * the acquisition thread will block until the shard catches up,
+ * or the controller is closed, after which data is rejected.
+ * <p/>
+ * Shards also maintain the rollups and summaries of their sessions,
+ * which are finished when the session is stopped.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class EmotivShardedController implements Closeable {
+
+    private final EmotivDatumCrud datumCrud;
+    private final EmotivSessionCrud sessionCrud;
+    private final EmotivAggregator aggregator;
+    private final Shard[] shards;
+    private final Thread[] threads;
+    private final Set<EmotivSession> recording = Sets.newSetFromMap(
+            new ConcurrentHashMap<EmotivSession, Boolean>());
+    // held for reading by every write to a queue, and for writing once by close
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    public EmotivShardedController(EntityManagerFactory emf) {
+        datumCrud = new EmotivDatumCrud(emf);
+        sessionCrud = EmotivSessionCrud.getInstance(emf);
+        aggregator = new EmotivAggregator(emf);
+
+        Config config = ConfigFactory.load().getConfig("org.openyou.jpa.shards");
+        int count = config.getInt("count");
+        int batch = config.getInt("batch");
+        int capacity = config.getInt("capacity");
+        Preconditions.checkArgument(count > 0 && batch > 0 && capacity >= batch);
+
+        shards = new Shard[count];
+        threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, batch, capacity);
+            threads[i] = new Thread(shards[i], "Emotiv persistence shard " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Creates the session, along with its (empty) summary, and starts recording it.
+     *
+     * @param session not yet persisted
+     * @return a listener that records every packet it receives to the session,
+     *         until {@link #stop(EmotivSession)} or {@link #close()} is called.
+     * @throws IllegalStateException if closed
+     */
+    public Emotiv.PacketListener record(final EmotivSession session) {
+        Preconditions.checkNotNull(session);
+        lock.readLock().lock();
+        try {
+            Preconditions.checkState(!closed, "closed");
+            sessionCrud.create(session);
+            aggregator.start(session);
+            recording.add(session);
+        } finally {
+            lock.readLock().unlock();
+        }
+        final Shard shard = shardFor(session);
+        return new Emotiv.PacketListener() {
+            @Override
+            public void receivePacket(Packet packet) {
+                if (!recording.contains(session))
+                    return;
+                EmotivDatum datum = EmotivDatum.fromPacket(packet);
+                datum.setSession(session);
+                if (!shard.offer(datum))
+                    log.warning(format("Rejected a datum for %s, the controller is closed", session.getId()));
+            }
+        };
+    }
+
+    /**
+     * Stop recording the session, data already received will still be persisted.
+     *
+     * @param session
+     */
+    public void stop(EmotivSession session) {
+        if (!recording.remove(session))
+            return;
+        // queued behind the session's data, so its rollups are finished in order
+        EmotivDatum end = new EmotivDatum();
+        end.setSession(session);
+        if (!shardFor(session).offer(end))
+            log.warning(format("Could not finish %s, the controller is closed", session.getId()));
+    }
+
+    public void updateSession(EmotivSession session) {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkArgument(recording.contains(session));
+        sessionCrud.update(session);
+    }
+
+    /**
+     * @return the number of datums waiting to be persisted, across all shards.
+     */
+    public int getBacklog() {
+        int backlog = 0;
+        for (Shard shard : shards) {
+            backlog += shard.queue.size();
+        }
+        return backlog;
+    }
+
+    /**
+     * Stops recording all sessions and persists all outstanding data
+     * before returning. If the calling thread is interrupted, this still
+     * waits for the shards to finish and the interrupt is restored.
+     * Packets that are waiting for space in a queue are rejected.
+     */
+    @Override
+    public void close() {
+        recording.clear();
+        closed = true;
+        // waits for writes in progress, which give up once they see the flag
+        lock.writeLock().lock();
+        lock.writeLock().unlock();
+        for (Shard shard : shards) {
+            shard.done = true;
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        // sessions that were never stopped
+        aggregator.finishAll();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static final Predicate<EmotivDatum> END = new Predicate<EmotivDatum>() {
+        @Override
+        public boolean apply(EmotivDatum datum) {
+            return datum.getTimestamp() == null;
+        }
+    };
+
+    private Shard shardFor(EmotivSession session) {
+        int hash = session.getId().hashCode();
+        return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private class Shard implements Runnable {
+        private final int id;
+        private final int batch;
+        // a datum without a timestamp marks the end of a session
+        private final BlockingQueue<EmotivDatum> queue;
+        // set once nothing more will be queued
+        private volatile boolean done;
+
+        Shard(int id, int batch, int capacity) {
+            this.id = id;
+            this.batch = batch;
+            this.queue = new ArrayBlockingQueue<EmotivDatum>(capacity);
+        }
+
+        // false if the controller was closed, or the thread interrupted, before there was space
+        boolean offer(EmotivDatum datum) {
+            lock.readLock().lock();
+            try {
+                while (!closed) {
+                    if (queue.offer(datum, 100, TimeUnit.MILLISECONDS))
+                        return true;
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<EmotivDatum> block = Lists.newArrayListWithCapacity(batch);
+            try {
+                while (!done || !queue.isEmpty()) {
+                    EmotivDatum first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    block.add(first);
+                    queue.drainTo(block, batch - 1);
+
+                    long start = System.currentTimeMillis();
+                    List<EmotivDatum> data = block;
+                    if (Iterables.any(block, END))
+                        data = Lists.newArrayList(Iterables.filter(block, Predicates.not(END)));
+                    try {
+                        if (!data.isEmpty())
+                            datumCrud.create(data);
+                    } catch (RuntimeException e) {
+                        // anything else would kill the thread and block the producers forever
+                        log.log(Level.SEVERE, format("Shard %s lost %s datums", id, data.size()), e);
+                    }
+                    long end = System.currentTimeMillis();
+                    log.config(format("Shard %s persisted %s in %s", id, data.size(), end - start));
+                    for (EmotivDatum datum : block) {
+                        if (END.apply(datum))
+                            aggregator.finish(datum.getSession().getId());
+                        else
+                            aggregator.add(datum);
+                    }
+                    block.clear();
+                }
+            } catch (InterruptedException e) {
+                log.warning(format("Shard %s interrupted with %s outstanding", id, queue.size()));
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.openyou.jpa.EmotivDatum.SENSORS;
+
+/**
+ * Incrementally builds {@link EmotivRollup}s for a single session
+ * at all configured resolutions, with constant memory.
+ * Data is expected to arrive in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+class RollupAccumulator {
+
+    private final EmotivSession session;
+    private final int[] resolutions;
+    // [resolution]
+    private final long[] buckets;
+    // [resolution][sensor]
+    private final int[][] min, max, count;
+    private final long[][] sum;
+
+    RollupAccumulator(EmotivSession session, int[] resolutions) {
+        this.session = Preconditions.checkNotNull(session);
+        this.resolutions = resolutions.clone();
+        int r = resolutions.length;
+        buckets = new long[r];
+        Arrays.fill(buckets, -1);
+        min = new int[r][SENSORS.length];
+        max = new int[r][SENSORS.length];
+        count = new int[r][SENSORS.length];
+        sum = new long[r][SENSORS.length];
+    }
+
+    /**
+     * @param datum
+     * @return rollups for any periods that have been completed.
+     */
+    List<EmotivRollup> add(EmotivDatum datum) {
+        List<EmotivRollup> completed = null;
+        long timestamp = datum.getTimestamp().getTime();
+        for (int r = 0; r < resolutions.length; r++) {
+            long bucket = timestamp - timestamp % (1000L * resolutions[r]);
+            if (bucket != buckets[r]) {
+                if (buckets[r] >= 0) {
+                    if (completed == null)
+                        completed = Lists.newArrayList();
+                    flush(r, completed);
+                }
+                buckets[r] = bucket;
+            }
+            for (int s = 0; s < SENSORS.length; s++) {
+                Integer value = datum.getSensor(SENSORS[s]);
+                if (value == null)
+                    continue;
+                if (count[r][s] == 0) {
+                    min[r][s] = value;
+                    max[r][s] = value;
+                } else {
+                    min[r][s] = Math.min(min[r][s], value);
+                    max[r][s] = Math.max(max[r][s], value);
+                }
+                count[r][s]++;
+                sum[r][s] += value;
+            }
+        }
+        if (completed == null)
+            return Collections.emptyList();
+        return completed;
+    }
+
+    /**
+     * Must only be called when no more data will be added to the session,
+     * otherwise the open periods would be persisted twice.
+     *
+     * @return rollups for all partially completed periods, and resets.
+     */
+    List<EmotivRollup> flush() {
+        List<EmotivRollup> completed = Lists.newArrayList();
+        for (int r = 0; r < resolutions.length; r++) {
+            if (buckets[r] >= 0)
+                flush(r, completed);
+            buckets[r] = -1;
+        }
+        return completed;
+    }
+
+    private void flush(int r, List<EmotivRollup> completed) {
+        Date timestamp = new Date(buckets[r]);
+        for (int s = 0; s < SENSORS.length; s++) {
+            if (count[r][s] == 0)
+                continue;
+            EmotivRollup rollup = new EmotivRollup();
+            rollup.setSession(session);
+            rollup.setResolution(resolutions[r]);
+            rollup.setSensor(SENSORS[s]);
+            rollup.setTimestamp(timestamp);
+            rollup.setMin(min[r][s]);
+            rollup.setMax(max[r][s]);
+            rollup.setCount(count[r][s]);
+            rollup.setMean((double) sum[r][s] / count[r][s]);
+            completed.add(rollup);
+
+            count[r][s] = 0;
+            sum[r][s] = 0;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.base.Preconditions;
+import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.openyou.jpa.EmotivDatum.SENSORS;
+
+/**
+ * Incrementally builds the {@link EmotivSessionSummary} for
+ * a single session, with constant memory. Data is expected
+ * to arrive in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+class SummaryAccumulator {
+
+    private final EmotivSession session;
+    private final UUID id = UUID.randomUUID();
+    private final long gap;
+    private long first = -1, last = -1, samples;
+    private int gaps;
+    private long good, fair, poor;
+    // Welford's online algorithm
+    private final long[] counts = new long[SENSORS.length];
+    private final double[] means = new double[SENSORS.length];
+    private final double[] m2 = new double[SENSORS.length];
+
+    /**
+     * @param session
+     * @param gap     milliseconds between samples that constitutes a gap.
+     */
+    SummaryAccumulator(EmotivSession session, long gap) {
+        this.session = Preconditions.checkNotNull(session);
+        this.gap = gap;
+    }
+
+    void add(EmotivDatum datum) {
+        long timestamp = datum.getTimestamp().getTime();
+        if (first < 0) {
+            first = timestamp;
+        } else {
+            long delta = timestamp - last;
+            if (delta > gap)
+                gaps++;
+            else
+                accountQuality(datum, delta);
+        }
+        last = timestamp;
+        samples++;
+
+        for (int s = 0; s < SENSORS.length; s++) {
+            Integer value = datum.getSensor(SENSORS[s]);
+            if (value == null)
+                continue;
+            counts[s]++;
+            double delta = value - means[s];
+            means[s] += delta / counts[s];
+            m2[s] += delta * (value - means[s]);
+        }
+    }
+
+    // the time since the previous sample is attributed to the current quality
+    private void accountQuality(EmotivDatum datum, long millis) {
+        int worst = Integer.MAX_VALUE;
+        for (Sensor sensor : SENSORS) {
+            Integer quality = datum.getQuality(sensor);
+            worst = Math.min(worst, quality == null ? 0 : quality);
+        }
+        if (worst >= SampleBlock.GOOD_QUALITY)
+            good += millis;
+        else if (worst >= SampleBlock.FAIR_QUALITY)
+            fair += millis;
+        else
+            poor += millis;
+    }
+
+    /**
+     * @param finished
+     * @return the summary, reflecting all data so far. Every call returns
+     *         a new (detached) instance with the same id.
+     */
+    EmotivSessionSummary getSummary(boolean finished) {
+        EmotivSessionSummary summary = new EmotivSessionSummary();
+        summary.setId(id);
+        summary.setSession(session);
+        if (first >= 0) {
+            summary.setStarted(new Date(first));
+            summary.setEnded(new Date(last));
+            summary.setDuration(last - first);
+        }
+        summary.setSamples(samples);
+        summary.setGaps(gaps);
+        summary.setGoodMillis(good);
+        summary.setFairMillis(fair);
+        summary.setPoorMillis(poor);
+        double[] variances = new double[SENSORS.length];
+        for (int s = 0; s < SENSORS.length; s++) {
+            variances[s] = counts[s] > 1 ? m2[s] / (counts[s] - 1) : 0;
+        }
+        summary.setMeans(means.clone());
+        summary.setVariances(variances);
+        summary.setFinished(finished);
+        return summary;
+    }
+}
@@ -0,0 +1,153 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.rules;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import lombok.EqualsAndHashCode;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+
+/**
+ * A declarative condition on {@link Feature}s, which is compiled by the
+ * {@link RuleEngine}, built from thresholds combined with
+ * {@link #all(Condition...)}, {@link #any(Condition...)} and {@link #not(Condition)}.
+ * <p/>
+ * Thresholds may have hysteresis: once met, they remain met until the
+ * value is beyond the threshold by the hysteresis, so that noise about
+ * the threshold does not repeatedly toggle the condition.
+ *
+ * @author Sam Halliday
+ */
+@Immutable
+public abstract class Condition {
+
+    Condition() {
+    }
+
+    /**
+     * @param feature
+     * @param threshold
+     * @return met while the feature is greater than the threshold.
+     */
+    public static Condition above(Feature feature, double threshold) {
+        return above(feature, threshold, 0);
+    }
+
+    /**
+     * @param feature
+     * @param threshold
+     * @param hysteresis once met, the condition holds until the feature is
+     *                   no greater than {@code threshold - hysteresis}
+     * @return met while the feature is greater than the threshold.
+     */
+    public static Condition above(Feature feature, double threshold, double hysteresis) {
+        return new Threshold(feature, true, threshold, hysteresis);
+    }
+
+    /**
+     * @param feature
+     * @param threshold
+     * @return met while the feature is less than the threshold.
+     */
+    public static Condition below(Feature feature, double threshold) {
+        return below(feature, threshold, 0);
+    }
+
+    /**
+     * @param feature
+     * @param threshold
+     * @param hysteresis once met, the condition holds until the feature is
+     *                   no less than {@code threshold + hysteresis}
+     * @return met while the feature is less than the threshold.
+     */
+    public static Condition below(Feature feature, double threshold, double hysteresis) {
+        return new Threshold(feature, false, threshold, hysteresis);
+    }
+
+    public static Condition all(Condition... conditions) {
+        return new Combination(true, ImmutableList.copyOf(conditions));
+    }
+
+    public static Condition any(Condition... conditions) {
+        return new Combination(false, ImmutableList.copyOf(conditions));
+    }
+
+    public static Condition not(Condition condition) {
+        return new Negation(Preconditions.checkNotNull(condition));
+    }
+
+    /**
+     * @param minimum quality
+     * @return met while the quality of every sensor is at least the minimum.
+     */
+    public static Condition contacts(int minimum) {
+        List<Condition> conditions = Lists.newArrayList();
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            conditions.add(above(Feature.quality(SampleBlock.SENSORS.get(c)), minimum - 0.5));
+        }
+        return new Combination(true, ImmutableList.copyOf(conditions));
+    }
+
+    /**
+     * @return met while every sensor has a good (green) contact.
+     */
+    public static Condition contactsGood() {
+        return contacts(SampleBlock.GOOD_QUALITY);
+    }
+
+    @Immutable
+    @EqualsAndHashCode(callSuper = false)
+    static final class Threshold extends Condition {
+        final Feature feature;
+        final boolean above;
+        final double threshold, hysteresis;
+
+        private Threshold(Feature feature, boolean above, double threshold, double hysteresis) {
+            Preconditions.checkArgument(hysteresis >= 0, "negative hysteresis");
+            this.feature = Preconditions.checkNotNull(feature);
+            this.above = above;
+            this.threshold = threshold;
+            this.hysteresis = hysteresis;
+        }
+
+        @Override
+        public String toString() {
+            return feature + (above ? " > " : " < ") + threshold + (hysteresis > 0 ? " +/- " + hysteresis : "");
+        }
+    }
+
+    @Immutable
+    static final class Combination extends Condition {
+        final boolean all;
+        final List<Condition> conditions;
+
+        private Combination(boolean all, List<Condition> conditions) {
+            Preconditions.checkArgument(!conditions.isEmpty(), "no conditions");
+            this.all = all;
+            this.conditions = conditions;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Joiner.on(all ? " and " : " or ").join(conditions) + ")";
+        }
+    }
+
+    @Immutable
+    static final class Negation extends Condition {
+        final Condition condition;
+
+        private Negation(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public String toString() {
+            return "not " + condition;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.rules;
+
+import com.google.common.base.Preconditions;
+import lombok.EqualsAndHashCode;
+import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
+import org.openyou.dsp.Band;
+import org.openyou.dsp.BandPowerEngine;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A value that {@link Condition}s may be declared on, which is either
+ * read from every sample, derived by another component, or provided by
+ * the application.
+ *
+ * @author Sam Halliday
+ */
+@Immutable
+@EqualsAndHashCode
+public final class Feature {
+
+    enum Kind {
+        LEVEL, QUALITY, BATTERY, GYRO_X, GYRO_Y, BAND_POWER, CUSTOM
+    }
+
+    private final Kind kind;
+    private final int channel;
+    private final Band band;
+    private final String name;
+
+    private Feature(Kind kind, int channel, Band band, String name) {
+        this.kind = kind;
+        this.channel = channel;
+        this.band = band;
+        this.name = name;
+    }
+
+    /**
+     * @param sensor
+     * @return the raw level of the sensor.
+     */
+    public static Feature level(Sensor sensor) {
+        return new Feature(Kind.LEVEL, SampleBlock.channel(sensor), null, null);
+    }
+
+    /**
+     * @param sensor
+     * @return the contact quality of the sensor.
+     */
+    public static Feature quality(Sensor sensor) {
+        return new Feature(Kind.QUALITY, SampleBlock.channel(sensor), null, null);
+    }
+
+    /**
+     * @return the percentage level of the battery.
+     */
+    public static Feature battery() {
+        return new Feature(Kind.BATTERY, -1, null, null);
+    }
+
+    public static Feature gyroX() {
+        return new Feature(Kind.GYRO_X, -1, null, null);
+    }
+
+    public static Feature gyroY() {
+        return new Feature(Kind.GYRO_Y, -1, null, null);
+    }
+
+    /**
+     * Requires the {@link RuleEngine} to receive the output of a {@link BandPowerEngine}.
+     *
+     * @param sensor
+     * @param band
+     * @return the power in the band, in square microvolts.
+     */
+    public static Feature bandPower(Sensor sensor, Band band) {
+        return new Feature(Kind.BAND_POWER, SampleBlock.channel(sensor), Preconditions.checkNotNull(band), null);
+    }
+
+    /**
+     * @param name
+     * @return a value that is provided by the application, see {@link RuleEngine#set(Feature, double)}.
+     */
+    public static Feature custom(String name) {
+        return new Feature(Kind.CUSTOM, -1, null, Preconditions.checkNotNull(name));
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    int getChannel() {
+        return channel;
+    }
+
+    Band getBand() {
+        return band;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case LEVEL:
+            case QUALITY:
+                return kind + "(" + SampleBlock.SENSORS.get(channel) + ")";
+            case BAND_POWER:
+                return band + "(" + SampleBlock.SENSORS.get(channel) + ")";
+            case CUSTOM:
+                return name;
+            default:
+                return kind.toString();
+        }
+    }
+}
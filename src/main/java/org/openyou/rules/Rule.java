@@ -0,0 +1,54 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.rules;
+
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.ToString;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A named {@link Condition} with debouncing: the rule only becomes
+ * active once the condition has been met continuously for a time,
+ * and only becomes inactive once it has not been met for a time.
+ *
+ * @author Sam Halliday
+ */
+@Immutable
+@Getter
+@ToString
+public final class Rule {
+
+    private final String name;
+    private final Condition condition;
+    /**
+     * Milliseconds that the condition must be met before the rule is active.
+     */
+    private final long on;
+    /**
+     * Milliseconds that the condition must not be met before the rule is inactive.
+     */
+    private final long off;
+
+    /**
+     * @param name
+     * @param condition
+     */
+    public Rule(String name, Condition condition) {
+        this(name, condition, 0, 0);
+    }
+
+    /**
+     * @param name
+     * @param condition
+     * @param on        milliseconds that the condition must be met before the rule is active
+     * @param off       milliseconds that the condition must not be met before the rule is inactive
+     */
+    public Rule(String name, Condition condition, long on, long off) {
+        Preconditions.checkArgument(on >= 0 && off >= 0);
+        this.name = Preconditions.checkNotNull(name);
+        this.condition = Preconditions.checkNotNull(condition);
+        this.on = on;
+        this.off = off;
+    }
+}
@@ -0,0 +1,290 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.rules;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.openyou.Emotiv.PacketListener;
+import org.openyou.Packet;
+import org.openyou.SampleBlock;
+import org.openyou.dsp.Band;
+import org.openyou.dsp.BandPowerEngine;
+import org.openyou.rules.Condition.Combination;
+import org.openyou.rules.Condition.Negation;
+import org.openyou.rules.Condition.Threshold;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates {@link Rule}s against every sample, and notifies a
+ * {@link Listener} as soon as a rule becomes active or inactive.
+ * <p/>
+ * Rules are compiled when the engine is created: every feature is
+ * given a slot in a primitive array that is updated as data arrives,
+ * identical thresholds are shared between rules and evaluated once per
+ * sample, and the conditions of each rule become a short postfix
+ * program over the thresholds. Nothing is allocated per sample, so
+ * hundreds of rules are evaluated well within a sample period.
+ * <p/>
+ * Band powers are received from a {@link BandPowerEngine}, which should
+ * be given each packet before this engine so that rules see the powers
+ * of the same sample. Custom features are {@link #set(Feature, double)}
+ * by the application. Features that have not been received are {@code NaN},
+ * which meets no threshold.
+ * <p/>
+ * All data must be provided by a single thread, in timestamp order.
+ *
+ * @author Sam Halliday
+ */
+@NotThreadSafe
+public class RuleEngine implements PacketListener, BandPowerEngine.Listener {
+
+    /**
+     * Receives changes in the state of rules, on the thread that provided the data.
+     */
+    public interface Listener {
+        /**
+         * @param rule
+         * @param timestamp of the sample that changed the rule
+         * @param active
+         */
+        void receiveTrigger(Rule rule, long timestamp, boolean active);
+    }
+
+    private static final Band[] BANDS = Band.values();
+    private static final int CHANNELS = SampleBlock.CHANNELS;
+    private static final int QUALITY = CHANNELS, BATTERY = 2 * CHANNELS, GYRO_X = BATTERY + 1, GYRO_Y = BATTERY + 2;
+    private static final int BAND_POWER = GYRO_Y + 1, CUSTOM = BAND_POWER + CHANNELS * BANDS.length;
+
+    // instructions, with the operation in the top bits and the argument below
+    private static final int THRESHOLD = 0, ALL = 1 << 28, ANY = 2 << 28, NOT = 3 << 28, OPERATION = 3 << 28;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final Listener listener;
+    private final Rule[] rules;
+    private final Map<String, Integer> custom = Maps.newHashMap();
+    private final double[] values;
+
+    // thresholds
+    private final int[] slots;
+    private final boolean[] above, met;
+    private final double[] enter, exit;
+
+    // rules
+    private final int[] program, starts;
+    private final boolean[] stack;
+    private final long[] on, off, since;
+    private final boolean[] active;
+
+    /**
+     * @param rules
+     * @param listener
+     */
+    public RuleEngine(List<Rule> rules, Listener listener) {
+        this.listener = Preconditions.checkNotNull(listener);
+        this.rules = rules.toArray(new Rule[rules.size()]);
+
+        Map<Threshold, Integer> thresholds = Maps.newLinkedHashMap();
+        List<Integer> instructions = Lists.newArrayList();
+        starts = new int[this.rules.length + 1];
+        on = new long[this.rules.length];
+        off = new long[this.rules.length];
+        int depth = 0;
+        for (int r = 0; r < this.rules.length; r++) {
+            starts[r] = instructions.size();
+            depth = Math.max(depth, compile(this.rules[r].getCondition(), thresholds, instructions));
+            on[r] = this.rules[r].getOn();
+            off[r] = this.rules[r].getOff();
+        }
+        starts[this.rules.length] = instructions.size();
+        program = Ints.toArray(instructions);
+        stack = new boolean[depth];
+        since = new long[this.rules.length];
+        active = new boolean[this.rules.length];
+        for (int r = 0; r < this.rules.length; r++) {
+            since[r] = NONE;
+        }
+
+        slots = new int[thresholds.size()];
+        above = new boolean[thresholds.size()];
+        met = new boolean[thresholds.size()];
+        enter = new double[thresholds.size()];
+        exit = new double[thresholds.size()];
+        for (Map.Entry<Threshold, Integer> entry : thresholds.entrySet()) {
+            Threshold threshold = entry.getKey();
+            int t = entry.getValue();
+            slots[t] = slot(threshold.feature);
+            above[t] = threshold.above;
+            enter[t] = threshold.threshold;
+            exit[t] = threshold.above ? threshold.threshold - threshold.hysteresis : threshold.threshold + threshold.hysteresis;
+        }
+        values = new double[CUSTOM + custom.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Double.NaN;
+        }
+    }
+
+    // appends the postfix program for the condition, returning the stack depth it needs
+    private int compile(Condition condition, Map<Threshold, Integer> thresholds, List<Integer> instructions) {
+        if (condition instanceof Threshold) {
+            Threshold threshold = (Threshold) condition;
+            Integer index = thresholds.get(threshold);
+            if (index == null) {
+                index = thresholds.size();
+                thresholds.put(threshold, index);
+            }
+            if (threshold.feature.getKind() == Feature.Kind.CUSTOM && !custom.containsKey(threshold.feature.getName()))
+                custom.put(threshold.feature.getName(), CUSTOM + custom.size());
+            instructions.add(THRESHOLD | index);
+            return 1;
+        }
+        if (condition instanceof Negation) {
+            int depth = compile(((Negation) condition).condition, thresholds, instructions);
+            instructions.add(NOT);
+            return depth;
+        }
+        Combination combination = (Combination) condition;
+        int depth = 0, i = 0;
+        for (Condition child : combination.conditions) {
+            depth = Math.max(depth, i++ + compile(child, thresholds, instructions));
+        }
+        instructions.add((combination.all ? ALL : ANY) | combination.conditions.size());
+        return depth;
+    }
+
+    private int slot(Feature feature) {
+        switch (feature.getKind()) {
+            case LEVEL:
+                return feature.getChannel();
+            case QUALITY:
+                return QUALITY + feature.getChannel();
+            case BATTERY:
+                return BATTERY;
+            case GYRO_X:
+                return GYRO_X;
+            case GYRO_Y:
+                return GYRO_Y;
+            case BAND_POWER:
+                return BAND_POWER + feature.getChannel() * BANDS.length + feature.getBand().ordinal();
+            case CUSTOM:
+                return custom.get(feature.getName());
+            default:
+                throw new AssertionError(feature);
+        }
+    }
+
+    /**
+     * Sets a custom feature, which is used from the next sample.
+     *
+     * @param feature
+     * @param value
+     * @throws IllegalArgumentException if the feature is not custom or is not used by any rule.
+     */
+    public void set(Feature feature, double value) {
+        Preconditions.checkArgument(feature.getKind() == Feature.Kind.CUSTOM, "not custom: " + feature);
+        Integer slot = custom.get(feature.getName());
+        Preconditions.checkArgument(slot != null, "not used: " + feature);
+        values[slot] = value;
+    }
+
+    /**
+     * @param rule index in the list of rules
+     * @return true if the rule is currently active.
+     */
+    public boolean isActive(int rule) {
+        return active[rule];
+    }
+
+    @Override
+    public void receiveBandPowers(long timestamp, double[][] powers) {
+        for (int c = 0; c < CHANNELS; c++) {
+            System.arraycopy(powers[c], 0, values, BAND_POWER + c * BANDS.length, BANDS.length);
+        }
+    }
+
+    @Override
+    public void receivePacket(Packet packet) {
+        for (int c = 0; c < CHANNELS; c++) {
+            values[c] = packet.getLevel(SampleBlock.SENSORS.get(c));
+            Integer quality = packet.getQuality(SampleBlock.SENSORS.get(c));
+            values[QUALITY + c] = quality == null ? 0 : quality;
+        }
+        values[BATTERY] = packet.getBatteryLevel();
+        values[GYRO_X] = packet.getGyroX();
+        values[GYRO_Y] = packet.getGyroY();
+        evaluate(packet.getTimestamp());
+    }
+
+    /**
+     * @param block
+     */
+    public void receiveBlock(SampleBlock block) {
+        for (int i = 0; i < block.getSize(); i++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                values[c] = block.getLevel(c, i);
+                values[QUALITY + c] = block.getQuality(c, i);
+            }
+            values[BATTERY] = block.getBattery(i);
+            values[GYRO_X] = block.getGyroX(i);
+            values[GYRO_Y] = block.getGyroY(i);
+            evaluate(block.getTimestamp(i));
+        }
+    }
+
+    private void evaluate(long timestamp) {
+        for (int t = 0; t < slots.length; t++) {
+            double value = values[slots[t]];
+            double limit = met[t] ? exit[t] : enter[t];
+            met[t] = above[t] ? value > limit : value < limit;
+        }
+        for (int r = 0; r < rules.length; r++) {
+            boolean condition = run(starts[r], starts[r + 1]);
+            if (condition == active[r]) {
+                since[r] = NONE;
+                continue;
+            }
+            if (since[r] == NONE)
+                since[r] = timestamp;
+            if (timestamp - since[r] >= (condition ? on[r] : off[r])) {
+                active[r] = condition;
+                since[r] = NONE;
+                listener.receiveTrigger(rules[r], timestamp, condition);
+            }
+        }
+    }
+
+    private boolean run(int from, int to) {
+        int top = 0;
+        for (int i = from; i < to; i++) {
+            int instruction = program[i];
+            int argument = instruction & ~OPERATION;
+            switch (instruction & OPERATION) {
+                case THRESHOLD:
+                    stack[top++] = met[argument];
+                    break;
+                case NOT:
+                    stack[top - 1] = !stack[top - 1];
+                    break;
+                case ALL: {
+                    boolean result = true;
+                    for (int j = top - argument; j < top; j++)
+                        result &= stack[j];
+                    top -= argument;
+                    stack[top++] = result;
+                    break;
+                }
+                default: {
+                    boolean result = false;
+                    for (int j = top - argument; j < top; j++)
+                        result |= stack[j];
+                    top -= argument;
+                    stack[top++] = result;
+                }
+            }
+        }
+        return stack[0];
+    }
+}
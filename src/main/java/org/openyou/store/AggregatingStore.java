@@ -0,0 +1,76 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.base.Preconditions;
+import org.openyou.SampleBlock;
+import org.openyou.jpa.EmotivAggregator;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Wraps an {@link EmotivStore} so that every appended block also
+ * maintains the rollups and summary of its session, as
+ * {@link org.openyou.jpa.EmotivJpaController} does for the sessions
+ * that it records.
+ * <p/>
+ * The session must already exist in the database. The open rollup
+ * periods and the finished summary of a session are persisted by
+ * {@link #finish(UUID)}, or when the store is closed.
+ *
+ * @author Sam Halliday
+ */
+public class AggregatingStore implements EmotivStore {
+
+    private final EmotivStore store;
+    private final EmotivAggregator aggregator;
+
+    public AggregatingStore(EmotivStore store, EntityManagerFactory emf) {
+        this.store = Preconditions.checkNotNull(store);
+        this.aggregator = new EmotivAggregator(emf);
+    }
+
+    @Override
+    public void append(UUID session, SampleBlock block) throws IOException {
+        store.append(session, block);
+        aggregator.add(session, block);
+    }
+
+    @Override
+    public void flush(UUID session) throws IOException {
+        store.flush(session);
+    }
+
+    /**
+     * Nothing more will be appended to the session.
+     *
+     * @param session
+     * @throws IOException
+     */
+    public void finish(UUID session) throws IOException {
+        store.flush(session);
+        aggregator.finish(session);
+    }
+
+    @Override
+    public Iterator<SampleBlock> read(UUID session, long from, long to) throws IOException {
+        return store.read(session, from, to);
+    }
+
+    @Override
+    public void delete(UUID session) throws IOException {
+        aggregator.discard(session);
+        store.delete(session);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            aggregator.finishAll();
+        } finally {
+            store.close();
+        }
+    }
+}
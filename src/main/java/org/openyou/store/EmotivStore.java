@@ -0,0 +1,60 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import org.openyou.SampleBlock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Storage backend for the time series data of sessions.
+ * <p/>
+ * Sessions are identified by the id of their
+ * {@link org.openyou.jpa.EmotivSession}, which is managed
+ * separately. Implementations must be thread safe, but
+ * data for any single session is expected to be appended
+ * by one thread, in timestamp order.
+ * <p/>
+ * Stores only hold the samples: wrap them in an {@link AggregatingStore}
+ * to also maintain the rollups and summaries of their sessions.
+ *
+ * @author Sam Halliday
+ */
+public interface EmotivStore extends Closeable {
+
+    /**
+     * The block is copied and may be reused by the caller.
+     *
+     * @param session
+     * @param block
+     * @throws IOException
+     */
+    void append(UUID session, SampleBlock block) throws IOException;
+
+    /**
+     * Ensures that all data appended to the session is readable.
+     *
+     * @param session
+     * @throws IOException
+     */
+    void flush(UUID session) throws IOException;
+
+    /**
+     * @param session
+     * @param from    inclusive, milliseconds since the epoch
+     * @param to      exclusive, milliseconds since the epoch
+     * @return lazily evaluated blocks of data, in timestamp order.
+     * @throws IOException
+     */
+    Iterator<SampleBlock> read(UUID session, long from, long to) throws IOException;
+
+    /**
+     * Removes all the data for the session.
+     *
+     * @param session
+     * @throws IOException
+     */
+    void delete(UUID session) throws IOException;
+}
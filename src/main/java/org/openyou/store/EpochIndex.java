@@ -0,0 +1,617 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Data;
+import lombok.extern.java.Log;
+import org.openyou.dsp.EpochFeatures;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.lang.String.format;
+
+/**
+ * An on-disk index of epoch feature vectors (e.g. from {@link EpochFeatures}),
+ * answering "which recordings look like this one" by the k nearest
+ * neighbours in Euclidean distance.
+ * <p/>
+ * This is an inverted file index: the vectors are partitioned into
+ * lists by their nearest centroid, and a query only scans the lists of
+ * the few centroids that are nearest to it, so its cost is a small
+ * fraction of the size of the index. Results are approximate, as a
+ * neighbour in a list that is not probed is missed.
+ * <p/>
+ * Vectors are appended to the index as they are added. Until there are
+ * enough to learn the centroids (by k-means) they are kept in a single
+ * list and queries are exact; the centroids are then fixed, so they
+ * should be learnt from representative data. Each list is a file of
+ * fixed length records, after a header that is checked when the index
+ * is opened, so a torn record after a crash is discarded and a list of
+ * another version or dimension is refused.
+ *
+ * @author Sam Halliday
+ */
+@Log
+@ThreadSafe
+public class EpochIndex implements Closeable {
+
+    /**
+     * A result of a query.
+     */
+    @Data
+    public static final class Neighbour {
+        private final UUID session;
+        private final long timestamp;
+        /**
+         * Euclidean distance from the query.
+         */
+        private final double distance;
+    }
+
+    static final int MAGIC = 0x454D4F49; // "EMOI"
+    // version 1 lists had no header, and EpochFeatures vectors were not normalised
+    static final int VERSION = 2;
+    // magic, version, dimension, lists
+    static final int HEADER = 4 + 4 + 4 + 4;
+    // magic, version, dimension, of every list
+    static final int LIST_HEADER = 4 + 4 + 4;
+    // session and timestamp, before the vector
+    private static final int IDS = 8 + 8 + 8;
+    private static final String CENTROIDS = "centroids.bin", PENDING = "pending.ivf";
+    // of the records, native on most hardware so that mapped reads are fast
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    // bytes read at a time from the end of a list that is not mapped
+    private static final int TAIL = 64 * 1024;
+
+    private final File root;
+    private final int dimension, record, lists, probes, training, iterations;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @GuardedBy("lock")
+    private float[][] centroids;
+    @GuardedBy("lock")
+    private FileChannel[] files;
+    @GuardedBy("lock")
+    private long[] counts;
+    @GuardedBy("lock")
+    private ByteBuffer[] mapped;
+    @GuardedBy("lock")
+    private final ByteBuffer buffer;
+
+    /**
+     * Vectors are from {@link EpochFeatures} and the remaining parameters
+     * are obtained from {@code org.openyou.store.epochs}.
+     *
+     * @param root
+     * @throws IOException
+     */
+    public EpochIndex(File root) throws IOException {
+        this(root, ConfigFactory.load().getConfig("org.openyou.store.epochs"));
+    }
+
+    private EpochIndex(File root, Config config) throws IOException {
+        this(root, EpochFeatures.DIMENSION, config.getInt("lists"), config.getInt("probes"),
+                config.getInt("training"), config.getInt("iterations"));
+    }
+
+    /**
+     * @param root       directory containing the index
+     * @param dimension  length of the vectors
+     * @param lists      number of centroids, if they have not been learnt already
+     * @param probes     number of lists scanned by a query
+     * @param training   number of vectors to learn the centroids from
+     * @param iterations of k-means
+     * @throws IOException
+     */
+    public EpochIndex(File root, int dimension, int lists, int probes, int training, int iterations) throws IOException {
+        Preconditions.checkArgument(dimension > 0 && lists > 0 && probes > 0 && iterations > 0);
+        Preconditions.checkArgument(training >= lists, "need at least one vector per list");
+        this.root = Preconditions.checkNotNull(root);
+        this.dimension = dimension;
+        this.lists = lists;
+        this.probes = probes;
+        this.training = training;
+        this.iterations = iterations;
+        record = IDS + 4 * dimension;
+        buffer = ByteBuffer.allocate(record).order(ORDER);
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IllegalArgumentException("could not create " + root);
+
+        File file = new File(root, CENTROIDS);
+        if (!file.exists()) {
+            files = new FileChannel[]{open(new File(root, PENDING))};
+            counts = new long[]{count(files[0])};
+            mapped = new ByteBuffer[1];
+            return;
+        }
+        readCentroids(file);
+        Preconditions.checkArgument(centroids[0].length == dimension, "index has a different dimension");
+        files = new FileChannel[centroids.length];
+        counts = new long[centroids.length];
+        mapped = new ByteBuffer[centroids.length];
+        for (int i = 0; i < centroids.length; i++) {
+            files[i] = open(list(i));
+            counts[i] = count(files[i]);
+        }
+        File pending = new File(root, PENDING);
+        if (pending.exists()) {
+            // the centroids were learnt, but distributing the vectors was interrupted
+            FileChannel channel = open(pending);
+            try {
+                for (int i = 0; i < files.length; i++) {
+                    files[i].truncate(LIST_HEADER);
+                    counts[i] = 0;
+                }
+                distribute(read(channel, count(channel)));
+            } finally {
+                channel.close();
+            }
+            delete(pending);
+        }
+    }
+
+    private File list(int i) {
+        return new File(root, format("list-%d.ivf", i));
+    }
+
+    // writes the header of a new list, checks the header of an existing one and discards any partial record
+    private FileChannel open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(LIST_HEADER);
+            long size = channel.size();
+            if (size < LIST_HEADER) {
+                // new, or torn while the header was written
+                header.putInt(MAGIC).putInt(VERSION).putInt(dimension).flip();
+                channel.truncate(0);
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                return channel;
+            }
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("unexpected end of file");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("not an index list: " + file);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(format("unsupported version %s, the index must be rebuilt: %s", version, file));
+            if (header.getInt() != dimension)
+                throw new IOException("index has a different dimension: " + file);
+            long partial = (size - LIST_HEADER) % record;
+            if (partial != 0) {
+                log.warning(format("discarding a partial record in %s", file));
+                channel.truncate(size - partial);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private long count(FileChannel channel) throws IOException {
+        return (channel.size() - LIST_HEADER) / record;
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete())
+            throw new IOException("could not delete " + file);
+    }
+
+    /**
+     * @return the number of vectors in the index.
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (long count : counts) {
+                size += count;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param session
+     * @param timestamp of the epoch
+     * @param vector
+     * @throws IOException
+     */
+    public void add(UUID session, long timestamp, float[] vector) throws IOException {
+        Preconditions.checkNotNull(session);
+        Preconditions.checkArgument(vector.length == dimension);
+        lock.writeLock().lock();
+        try {
+            int list = centroids == null ? 0 : nearest(vector);
+            append(list, session.getMostSignificantBits(), session.getLeastSignificantBits(), timestamp, vector);
+            if (centroids == null && counts[0] >= training)
+                train();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void append(int list, long msb, long lsb, long timestamp, float[] vector) throws IOException {
+        buffer.clear();
+        buffer.putLong(msb).putLong(lsb).putLong(timestamp);
+        for (float value : vector) {
+            buffer.putFloat(value);
+        }
+        buffer.flip();
+        FileChannel channel = files[list];
+        long position = LIST_HEADER + counts[list] * record;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        counts[list]++;
+    }
+
+    @GuardedBy("lock")
+    private int nearest(float[] vector) {
+        int nearest = 0;
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < centroids.length; i++) {
+            double distance = distance(centroids[i], vector, best);
+            if (distance < best) {
+                best = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    // squared, abandoned once it exceeds the limit
+    private static double distance(float[] a, float[] b, double limit) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            sum += d * d;
+            if (sum > limit)
+                break;
+        }
+        return sum;
+    }
+
+    /**
+     * The centroids are learnt automatically once there are enough
+     * vectors, but this may be called to learn them from fewer.
+     *
+     * @throws IOException
+     * @throws IllegalStateException if already trained, or there are fewer vectors than lists.
+     */
+    public void train() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Preconditions.checkState(centroids == null, "already trained");
+            Preconditions.checkState(counts[0] >= lists, "too few vectors to train from");
+            long started = System.currentTimeMillis();
+            Records records = read(files[0], counts[0]);
+            float[][] learnt = kmeans(records.vectors, lists);
+            writeCentroids(learnt);
+            files[0].close();
+            centroids = learnt;
+            files = new FileChannel[lists];
+            counts = new long[lists];
+            mapped = new ByteBuffer[lists];
+            for (int i = 0; i < lists; i++) {
+                files[i] = open(list(i));
+                files[i].truncate(LIST_HEADER);
+            }
+            distribute(records);
+            delete(new File(root, PENDING));
+            log.info(format("Learnt %s centroids from %s vectors in %sms",
+                    learnt.length, records.vectors.length, System.currentTimeMillis() - started));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the records of a list, in memory
+    private static class Records {
+        final long[] msb, lsb, timestamps;
+        final float[][] vectors;
+
+        Records(int size, int dimension) {
+            msb = new long[size];
+            lsb = new long[size];
+            timestamps = new long[size];
+            vectors = new float[size][dimension];
+        }
+    }
+
+    private Records read(FileChannel channel, long count) throws IOException {
+        Preconditions.checkArgument(count <= Integer.MAX_VALUE / record, "too many vectors to train from");
+        Records records = new Records((int) count, dimension);
+        ByteBuffer bytes = ByteBuffer.allocate((int) (count * record)).order(ORDER);
+        long position = LIST_HEADER;
+        while (bytes.hasRemaining()) {
+            int read = channel.read(bytes, position);
+            if (read < 0)
+                throw new IOException("unexpected end of file");
+            position += read;
+        }
+        bytes.flip();
+        for (int i = 0; i < count; i++) {
+            records.msb[i] = bytes.getLong();
+            records.lsb[i] = bytes.getLong();
+            records.timestamps[i] = bytes.getLong();
+            for (int j = 0; j < dimension; j++) {
+                records.vectors[i][j] = bytes.getFloat();
+            }
+        }
+        return records;
+    }
+
+    @GuardedBy("lock")
+    private void distribute(Records records) throws IOException {
+        for (int i = 0; i < records.vectors.length; i++) {
+            float[] vector = records.vectors[i];
+            append(nearest(vector), records.msb[i], records.lsb[i], records.timestamps[i], vector);
+        }
+    }
+
+    // Lloyd's algorithm, starting from distinct random vectors
+    private float[][] kmeans(float[][] vectors, int k) {
+        Random random = new Random(0);
+        float[][] centres = new float[k][];
+        int[] order = new int[vectors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(order.length - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            centres[i] = vectors[order[i]].clone();
+        }
+        double[][] sums = new double[k][dimension];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < k; i++) {
+                Arrays.fill(sums[i], 0);
+                sizes[i] = 0;
+            }
+            for (int v = 0; v < vectors.length; v++) {
+                int nearest = 0;
+                double best = Double.MAX_VALUE;
+                for (int i = 0; i < k; i++) {
+                    double distance = distance(centres[i], vectors[v], best);
+                    if (distance < best) {
+                        best = distance;
+                        nearest = i;
+                    }
+                }
+                sizes[nearest]++;
+                for (int j = 0; j < dimension; j++) {
+                    sums[nearest][j] += vectors[v][j];
+                }
+            }
+            // empty clusters keep their previous centre
+            for (int i = 0; i < k; i++) {
+                if (sizes[i] == 0)
+                    continue;
+                for (int j = 0; j < dimension; j++) {
+                    centres[i][j] = (float) (sums[i][j] / sizes[i]);
+                }
+            }
+        }
+        return centres;
+    }
+
+    /**
+     * @param vector
+     * @param k      maximum number of neighbours
+     * @return the nearest neighbours, nearest first.
+     * @throws IOException
+     */
+    public List<Neighbour> query(float[] vector, int k) throws IOException {
+        Preconditions.checkArgument(vector.length == dimension && k > 0);
+        lock.readLock().lock();
+        try {
+            Nearest nearest = new Nearest(k);
+            for (int list : probe(vector)) {
+                scan(list, vector, nearest);
+            }
+            List<Neighbour> neighbours = Lists.newArrayList();
+            for (int i = 0; i < nearest.size; i++) {
+                neighbours.add(new Neighbour(new UUID(nearest.msb[i], nearest.lsb[i]),
+                        nearest.timestamps[i], Math.sqrt(nearest.distances[i])));
+            }
+            return neighbours;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the lists of the nearest centroids
+    @GuardedBy("lock")
+    private int[] probe(float[] vector) {
+        if (centroids == null)
+            return new int[]{0};
+        double[] distances = new double[centroids.length];
+        for (int i = 0; i < centroids.length; i++) {
+            distances[i] = distance(centroids[i], vector, Double.MAX_VALUE);
+        }
+        int[] probe = new int[Math.min(probes, centroids.length)];
+        for (int p = 0; p < probe.length; p++) {
+            int nearest = -1;
+            for (int i = 0; i < distances.length; i++) {
+                if (nearest < 0 || distances[i] < distances[nearest])
+                    nearest = i;
+            }
+            probe[p] = nearest;
+            distances[nearest] = Double.MAX_VALUE;
+        }
+        return probe;
+    }
+
+    @GuardedBy("lock")
+    private void scan(int list, float[] vector, Nearest nearest) throws IOException {
+        if (counts[list] == 0)
+            return;
+        long end = LIST_HEADER + counts[list] * record;
+        if (end > Integer.MAX_VALUE)
+            throw new IOException(list(list) + " is too large to map, the index needs more lists");
+        ByteBuffer records = map(list, end);
+        int length = (int) Math.min(end, records.capacity());
+        scan(records, LIST_HEADER, length, vector, nearest);
+        if (length == end)
+            return;
+        // the records appended since the list was mapped
+        FileChannel channel = files[list];
+        ByteBuffer tail = ByteBuffer.allocate(Math.max(record, TAIL - TAIL % record)).order(ORDER);
+        for (long position = length; position < end; position += tail.limit()) {
+            tail.clear();
+            tail.limit((int) Math.min(tail.capacity(), end - position));
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, position + tail.position()) < 0)
+                    throw new IOException("unexpected end of file");
+            }
+            scan(tail, 0, tail.limit(), vector, nearest);
+        }
+    }
+
+    private void scan(ByteBuffer records, int start, int end, float[] vector, Nearest nearest) {
+        for (int offset = start; offset < end; offset += record) {
+            double limit = nearest.limit();
+            double sum = 0;
+            for (int j = 0, at = offset + IDS; j < dimension; j++, at += 4) {
+                double d = records.getFloat(at) - vector[j];
+                sum += d * d;
+                if (sum > limit)
+                    break;
+            }
+            if (sum < limit)
+                nearest.offer(sum, records.getLong(offset), records.getLong(offset + 8), records.getLong(offset + 16));
+        }
+    }
+
+    // mappings are shared by queries and can't be released, so a list is only
+    // mapped again once it has doubled, and records beyond the mapping are read
+    @GuardedBy("lock")
+    private ByteBuffer map(int list, long end) throws IOException {
+        synchronized (mapped) {
+            ByteBuffer buffer = mapped[list];
+            if (buffer == null || 2L * buffer.capacity() < end) {
+                buffer = files[list].map(FileChannel.MapMode.READ_ONLY, 0, end).order(ORDER);
+                mapped[list] = buffer;
+            }
+            return buffer;
+        }
+    }
+
+    // the k smallest distances seen, in ascending order
+    private static class Nearest {
+        final double[] distances;
+        final long[] msb, lsb, timestamps;
+        int size;
+
+        Nearest(int k) {
+            distances = new double[k];
+            msb = new long[k];
+            lsb = new long[k];
+            timestamps = new long[k];
+        }
+
+        double limit() {
+            return size < distances.length ? Double.MAX_VALUE : distances[size - 1];
+        }
+
+        void offer(double distance, long msb, long lsb, long timestamp) {
+            if (distance >= limit())
+                return;
+            int i = size < distances.length ? size++ : size - 1;
+            for (; i > 0 && distances[i - 1] > distance; i--) {
+                distances[i] = distances[i - 1];
+                this.msb[i] = this.msb[i - 1];
+                this.lsb[i] = this.lsb[i - 1];
+                timestamps[i] = timestamps[i - 1];
+            }
+            distances[i] = distance;
+            this.msb[i] = msb;
+            this.lsb[i] = lsb;
+            timestamps[i] = timestamp;
+        }
+    }
+
+    private void readCentroids(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC)
+                throw new IOException("not an index: " + file);
+            int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException(format("unsupported version %s, the index must be rebuilt: %s", version, file));
+            int dimension = raf.readInt();
+            int lists = raf.readInt();
+            ByteBuffer bytes = ByteBuffer.allocate(4 * dimension * lists);
+            raf.readFully(bytes.array());
+            centroids = new float[lists][dimension];
+            for (float[] centroid : centroids) {
+                for (int j = 0; j < dimension; j++) {
+                    centroid[j] = bytes.getFloat();
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    // written to a temporary file and renamed, so a crash never leaves partial centroids
+    private void writeCentroids(float[][] centroids) throws IOException {
+        File file = new File(root, CENTROIDS);
+        File tmp = new File(root, CENTROIDS + ".tmp");
+        ByteBuffer bytes = ByteBuffer.allocate(HEADER + 4 * dimension * centroids.length);
+        bytes.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(centroids.length);
+        for (float[] centroid : centroids) {
+            for (float value : centroid) {
+                bytes.putFloat(value);
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes.array());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not rename " + tmp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (FileChannel file : files) {
+                file.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
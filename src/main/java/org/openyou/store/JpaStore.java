@@ -0,0 +1,101 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
+import org.openyou.jpa.EmotivDatum;
+import org.openyou.jpa.EmotivDatumCrud;
+import org.openyou.jpa.EmotivSession;
+import org.openyou.jpa.EmotivSessionCrud;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+
+/**
+ * {@link EmotivStore} backed by the {@link EmotivDatum} JPA entity,
+ * i.e. one RDBMS row per sample.
+ * <p/>
+ * The session must already exist in the database.
+ *
+ * @author Sam Halliday
+ */
+public class JpaStore implements EmotivStore {
+
+    private static final int BLOCK = SampleBlock.RATE;
+
+    private final EmotivDatumCrud datumCrud;
+    private final EmotivSessionCrud sessionCrud;
+
+    public JpaStore(EntityManagerFactory emf) {
+        datumCrud = new EmotivDatumCrud(emf);
+        sessionCrud = EmotivSessionCrud.getInstance(emf);
+    }
+
+    @Override
+    public void append(UUID id, SampleBlock block) {
+        EmotivSession session = getSession(id);
+        List<EmotivDatum> data = Lists.newArrayListWithCapacity(block.getSize());
+        int[] levels = new int[SampleBlock.CHANNELS];
+        int[] qualities = new int[SampleBlock.CHANNELS];
+        for (int i = 0; i < block.getSize(); i++) {
+            EmotivDatum datum = EmotivDatum.fromBlock(block, i, levels, qualities);
+            datum.setSession(session);
+            data.add(datum);
+        }
+        datumCrud.create(data);
+    }
+
+    @Override
+    public void flush(UUID session) {
+    }
+
+    @Override
+    public Iterator<SampleBlock> read(UUID id, long from, long to) {
+        final Iterator<EmotivDatum> data = datumCrud.read(getSession(id), new Date(from), new Date(to)).iterator();
+        return new AbstractIterator<SampleBlock>() {
+            private final int[] levels = new int[SampleBlock.CHANNELS];
+            private final int[] qualities = new int[SampleBlock.CHANNELS];
+
+            @Override
+            protected SampleBlock computeNext() {
+                if (!data.hasNext())
+                    return endOfData();
+                SampleBlock block = new SampleBlock(BLOCK);
+                while (data.hasNext() && !block.isFull()) {
+                    EmotivDatum datum = data.next();
+                    for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                        Sensor sensor = SampleBlock.SENSORS.get(c);
+                        levels[c] = unbox(datum.getSensor(sensor));
+                        qualities[c] = unbox(datum.getQuality(sensor));
+                    }
+                    block.add(datum.getTimestamp().getTime(), unbox(datum.getBattery()),
+                            unbox(datum.getGyroX()), unbox(datum.getGyroY()), levels, qualities);
+                }
+                return block;
+            }
+        };
+    }
+
+    @Override
+    public void delete(UUID id) {
+        datumCrud.deleteBySession(getSession(id));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private EmotivSession getSession(UUID id) {
+        Preconditions.checkNotNull(id);
+        EmotivSession session = sessionCrud.read(id);
+        Preconditions.checkArgument(session != null, "no session " + id);
+        return session;
+    }
+
+    private static int unbox(Integer value) {
+        return value == null ? 0 : value;
+    }
+}
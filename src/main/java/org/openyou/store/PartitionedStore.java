@@ -0,0 +1,429 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Cleanup;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.sql.*;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static java.lang.String.format;
+
+/**
+ * {@link EmotivStore} that gives every session its own RDBMS table,
+ * as an alternative to sharing the single {@code EmotivDatum} table.
+ * <p/>
+ * Sessions are routed to their table through an index table,
+ * which is only written when a session is created or deleted.
+ * Each session is written through its own connection, so writers
+ * of different sessions never contend for the same table or
+ * index, and deleting a session drops its table, which takes
+ * constant time regardless of the amount of data.
+ * <p/>
+ * Rows are numbered in the order they are appended and indexed by
+ * (timestamp, number), which gives a stable key for paging through
+ * the results of a read: every page starts where the last one ended,
+ * in a short-lived connection, so an abandoned iterator never holds
+ * database resources and a long read takes linear time.
+ * <p/>
+ * A writer's connection is closed once the session has not been
+ * appended to for the idle time, so only active sessions hold
+ * database resources.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class PartitionedStore implements EmotivStore {
+
+    private static final String INDEX = "EMOTIV_PARTITION";
+    private static final String PREFIX = "EMOTIV_";
+    private static final String COLUMNS;
+    private static final String VALUES;
+
+    static {
+        StringBuilder columns = new StringBuilder("seq, timestamp, battery, gyroX, gyroY");
+        StringBuilder values = new StringBuilder("?, ?, ?, ?, ?");
+        for (String suffix : new String[]{"", "_QUALITY"}) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                columns.append(", ").append(SampleBlock.SENSORS.get(c)).append(suffix);
+                values.append(", ?");
+            }
+        }
+        COLUMNS = columns.toString();
+        VALUES = values.toString();
+    }
+
+    private final String url;
+    private final int page;
+    private final long idle;
+    private final ConcurrentMap<UUID, Partition> partitions = Maps.newConcurrentMap();
+    private final AtomicLong swept = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * The JDBC URL, page size of reads and idle time of writers
+     * are obtained from {@code org.openyou.store.partitions}.
+     *
+     * @throws IOException if the index could not be created.
+     */
+    public PartitionedStore() throws IOException {
+        this(ConfigFactory.load().getConfig("org.openyou.store.partitions"));
+    }
+
+    private PartitionedStore(Config config) throws IOException {
+        this(config.getString("url"), config.getInt("page"), config.getMilliseconds("idle"));
+    }
+
+    /**
+     * @param url  JDBC URL of the database containing all the partitions
+     * @param page maximum number of samples in each block returned by a read
+     * @param idle milliseconds after the last append that a writer's connection is closed
+     * @throws IOException if the index could not be created.
+     */
+    public PartitionedStore(String url, int page, long idle) throws IOException {
+        Preconditions.checkArgument(page > 0 && idle > 0);
+        this.url = Preconditions.checkNotNull(url);
+        this.page = page;
+        this.idle = idle;
+        try {
+            @Cleanup Connection connection = DriverManager.getConnection(url);
+            if (!exists(connection, INDEX)) {
+                @Cleanup Statement statement = connection.createStatement();
+                statement.execute("CREATE TABLE " + INDEX + " (session_id CHAR(36) NOT NULL PRIMARY KEY, "
+                        + "table_name VARCHAR(64) NOT NULL, created TIMESTAMP NOT NULL)");
+            }
+        } catch (SQLException e) {
+            throw new IOException("could not create the partition index", e);
+        }
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        @Cleanup ResultSet tables = connection.getMetaData().getTables(null, null, table, null);
+        return tables.next();
+    }
+
+    // the key of reads, which partitions created before it was introduced do not have
+    private static void index(Connection connection, String table) throws SQLException {
+        String name = table + "_TS_SEQ";
+        @Cleanup ResultSet indexes = connection.getMetaData().getIndexInfo(null, null, table, false, false);
+        while (indexes.next()) {
+            if (name.equals(indexes.getString("INDEX_NAME")))
+                return;
+        }
+        @Cleanup Statement statement = connection.createStatement();
+        statement.execute(format("CREATE INDEX %s ON %s (timestamp, seq)", name, table));
+    }
+
+    /**
+     * @return the sessions that have a partition.
+     * @throws IOException
+     */
+    public Set<UUID> getSessions() throws IOException {
+        Set<UUID> sessions = Sets.newHashSet();
+        try {
+            @Cleanup Connection connection = DriverManager.getConnection(url);
+            @Cleanup Statement statement = connection.createStatement();
+            @Cleanup ResultSet results = statement.executeQuery("SELECT session_id FROM " + INDEX);
+            while (results.next())
+                sessions.add(UUID.fromString(results.getString(1)));
+        } catch (SQLException e) {
+            throw new IOException("could not read the partition index", e);
+        }
+        return sessions;
+    }
+
+    private static String getTable(UUID session) {
+        return PREFIX + session.toString().replace("-", "").toUpperCase();
+    }
+
+    // a session's table and its writer, locked for all writes
+    private class Partition {
+        private final UUID session;
+        private final String table;
+        @GuardedBy("this")
+        private Connection connection;
+        @GuardedBy("this")
+        private PreparedStatement insert;
+        @GuardedBy("this")
+        private long seq;
+        @GuardedBy("this")
+        private boolean deleted;
+        // no longer in the map, so must not be used
+        @GuardedBy("this")
+        private boolean released;
+        @GuardedBy("this")
+        private long used = System.currentTimeMillis();
+
+        Partition(UUID session) {
+            this.session = session;
+            this.table = getTable(session);
+        }
+
+        // creates the table and index entry, if necessary
+        @GuardedBy("this")
+        private void open() throws SQLException {
+            if (connection != null)
+                return;
+            Connection opened = DriverManager.getConnection(url);
+            try {
+                opened.setAutoCommit(false);
+                if (exists(opened, table)) {
+                    @Cleanup Statement statement = opened.createStatement();
+                    @Cleanup ResultSet max = statement.executeQuery("SELECT MAX(seq) FROM " + table);
+                    max.next();
+                    seq = max.getLong(1) + 1;
+                    index(opened, table);
+                } else {
+                    create(opened);
+                    seq = 0;
+                }
+                opened.commit();
+                insert = opened.prepareStatement(format("INSERT INTO %s (%s) VALUES (%s)", table, COLUMNS, VALUES));
+                connection = opened;
+            } catch (SQLException e) {
+                opened.close();
+                throw e;
+            }
+        }
+
+        private void create(Connection connection) throws SQLException {
+            StringBuilder ddl = new StringBuilder("CREATE TABLE ").append(table)
+                    .append(" (seq BIGINT NOT NULL PRIMARY KEY, timestamp BIGINT NOT NULL, ")
+                    .append("battery SMALLINT, gyroX SMALLINT, gyroY SMALLINT");
+            for (String suffix : new String[]{"", "_QUALITY"}) {
+                for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                    ddl.append(", ").append(SampleBlock.SENSORS.get(c)).append(suffix).append(" SMALLINT");
+                }
+            }
+            ddl.append(")");
+            @Cleanup Statement statement = connection.createStatement();
+            statement.execute(ddl.toString());
+            index(connection, table);
+            @Cleanup PreparedStatement index = connection.prepareStatement(
+                    "INSERT INTO " + INDEX + " (session_id, table_name, created) VALUES (?, ?, ?)");
+            index.setString(1, session.toString());
+            index.setString(2, table);
+            index.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            index.executeUpdate();
+        }
+
+        // false if released, in which case the caller should obtain the partition again
+        synchronized boolean append(SampleBlock block) throws SQLException {
+            if (released)
+                return false;
+            if (deleted)
+                throw new SQLException("deleted " + session);
+            used = System.currentTimeMillis();
+            open();
+            try {
+                for (int i = 0; i < block.getSize(); i++) {
+                    int p = 1;
+                    insert.setLong(p++, seq + i);
+                    insert.setLong(p++, block.getTimestamp(i));
+                    insert.setInt(p++, block.getBattery(i));
+                    insert.setInt(p++, block.getGyroX(i));
+                    insert.setInt(p++, block.getGyroY(i));
+                    for (int c = 0; c < SampleBlock.CHANNELS; c++)
+                        insert.setInt(p++, block.getLevel(c, i));
+                    for (int c = 0; c < SampleBlock.CHANNELS; c++)
+                        insert.setInt(p++, block.getQuality(c, i));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                connection.commit();
+                seq += block.getSize();
+                return true;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+
+        synchronized boolean releaseIfIdle(long cutoff) {
+            if (released || used > cutoff)
+                return false;
+            close();
+            released = true;
+            return true;
+        }
+
+        synchronized void close() {
+            if (connection == null)
+                return;
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.log(Level.WARNING, "could not close " + table, e);
+            }
+            connection = null;
+            insert = null;
+        }
+    }
+
+    private Partition getPartition(UUID session) {
+        Preconditions.checkNotNull(session);
+        Partition partition = partitions.get(session);
+        if (partition == null) {
+            partitions.putIfAbsent(session, new Partition(session));
+            partition = partitions.get(session);
+        }
+        return partition;
+    }
+
+    @Override
+    public void append(UUID session, SampleBlock block) throws IOException {
+        Preconditions.checkNotNull(block);
+        if (block.getSize() == 0)
+            return;
+        try {
+            while (!getPartition(session).append(block)) {
+                // released by another thread after we obtained it
+            }
+        } catch (SQLException e) {
+            throw new IOException("could not append to " + session, e);
+        } finally {
+            releaseIdle();
+        }
+    }
+
+    // at most once per idle period, by whichever writer notices
+    private void releaseIdle() {
+        long now = System.currentTimeMillis();
+        long last = swept.get();
+        if (now - last < idle || !swept.compareAndSet(last, now))
+            return;
+        for (Partition partition : partitions.values()) {
+            if (partition.releaseIfIdle(now - idle)) {
+                partitions.remove(partition.session, partition);
+                log.fine("released the idle writer of " + partition.session);
+            }
+        }
+    }
+
+    /**
+     * Every append is committed, so this is a no-op.
+     */
+    @Override
+    public void flush(UUID session) {
+    }
+
+    @Override
+    public Iterator<SampleBlock> read(UUID session, final long from, final long to) {
+        Preconditions.checkArgument(from <= to);
+        final String table = getTable(session);
+        // keyset paging: the range starts at the last row returned, which is excluded
+        final String query = format("SELECT %s FROM %s WHERE timestamp >= ? AND timestamp < ?"
+                + " AND (timestamp > ? OR seq > ?) ORDER BY timestamp, seq", COLUMNS, table);
+        return new AbstractIterator<SampleBlock>() {
+            private final int[] levels = new int[SampleBlock.CHANNELS];
+            private final int[] qualities = new int[SampleBlock.CHANNELS];
+            private long lastTimestamp = from;
+            private long lastSeq = -1;
+            private boolean indexed;
+
+            @Override
+            protected SampleBlock computeNext() {
+                try {
+                    @Cleanup Connection connection = DriverManager.getConnection(url);
+                    if (!exists(connection, table))
+                        return endOfData();
+                    if (!indexed) {
+                        index(connection, table);
+                        indexed = true;
+                    }
+                    @Cleanup PreparedStatement statement = connection.prepareStatement(query);
+                    statement.setMaxRows(page);
+                    statement.setFetchSize(page);
+                    statement.setLong(1, lastTimestamp);
+                    statement.setLong(2, to);
+                    statement.setLong(3, lastTimestamp);
+                    statement.setLong(4, lastSeq);
+                    @Cleanup ResultSet results = statement.executeQuery();
+                    SampleBlock block = new SampleBlock(page);
+                    while (results.next()) {
+                        int p = 1;
+                        lastSeq = results.getLong(p++);
+                        long timestamp = results.getLong(p++);
+                        lastTimestamp = timestamp;
+                        int battery = results.getInt(p++);
+                        int gyroX = results.getInt(p++);
+                        int gyroY = results.getInt(p++);
+                        for (int c = 0; c < SampleBlock.CHANNELS; c++)
+                            levels[c] = results.getInt(p++);
+                        for (int c = 0; c < SampleBlock.CHANNELS; c++)
+                            qualities[c] = results.getInt(p++);
+                        block.add(timestamp, battery, gyroX, gyroY, levels, qualities);
+                    }
+                    if (block.getSize() == 0)
+                        return endOfData();
+                    return block;
+                } catch (SQLException e) {
+                    throw new IllegalStateException("could not read " + table, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops the session's table.
+     *
+     * @param session
+     * @throws IOException
+     */
+    @Override
+    public void delete(UUID session) throws IOException {
+        Partition partition = getPartition(session);
+        synchronized (partition) {
+            if (partition.released) {
+                delete(session);
+                return;
+            }
+            partition.close();
+            partition.deleted = true;
+            partitions.remove(session);
+            try {
+                @Cleanup Connection connection = DriverManager.getConnection(url);
+                connection.setAutoCommit(false);
+                try {
+                    if (exists(connection, partition.table)) {
+                        @Cleanup Statement statement = connection.createStatement();
+                        statement.execute("DROP TABLE " + partition.table);
+                    }
+                    @Cleanup PreparedStatement index = connection.prepareStatement(
+                            "DELETE FROM " + INDEX + " WHERE session_id = ?");
+                    index.setString(1, session.toString());
+                    index.executeUpdate();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                throw new IOException("could not delete " + session, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the connections of all writers.
+     */
+    @Override
+    public void close() {
+        for (Partition partition : partitions.values()) {
+            partition.close();
+        }
+    }
+}
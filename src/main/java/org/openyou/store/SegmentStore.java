@@ -0,0 +1,594 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Cleanup;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+import org.openyou.io.BlockCodec;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.String.format;
+
+/**
+ * {@link EmotivStore} that writes append-only segment files, one
+ * directory per session, as an alternative to one RDBMS row per sample.
+ * <p/>
+ * Each segment holds a fixed maximum number of consecutive samples
+ * in a columnar layout (all timestamps, then each channel in turn),
+ * compressed with the {@link BlockCodec}.
+ * The time range of every segment is encoded in its file name, which
+ * acts as a sparse index: a range scan only opens the segments that
+ * overlap the range and binary searches the timestamps of the first
+ * and last. Segments are written to a temporary file and renamed, so
+ * a crash never leaves a partial segment. A compaction is recorded in a
+ * manifest before any segment is replaced, and a compaction that was
+ * interrupted is completed (or undone, if its segments were not all
+ * written) when the session is next opened, so a crash never leaves
+ * duplicate samples.
+ * <p/>
+ * Data that has been appended is buffered in memory until a segment
+ * is full or the session is {@link #flush(UUID) flushed}. Frequent
+ * flushing leaves small segments, which may be merged by
+ * {@link #compact(UUID)}. Retention is enforced by deleting whole
+ * segments, see {@link #expire(long)}.
+ * <p/>
+ * Only sessions that have been appended to since they were last flushed
+ * are held in memory. Other sessions are indexed from their directory by
+ * each operation, so reading or expiring an archive of any size does not
+ * accumulate state.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public class SegmentStore implements EmotivStore {
+
+    static final int MAGIC = 0x454D4F53; // "EMOS"
+    // version 1 segments had an uncompressed body
+    static final int VERSION = 2;
+    // magic, version, size, first, last
+    static final int HEADER = 4 + 4 + 4 + 8 + 8;
+    private static final String SUFFIX = ".seg";
+    // lists the segments being replaced ("-name") and replacing them ("+name")
+    private static final String MANIFEST = "compaction";
+
+    private final File root;
+    private final int segmentSize;
+    private final long retention;
+    private final ConcurrentMap<UUID, Segments> sessions = Maps.newConcurrentMap();
+
+    /**
+     * Segment size and retention are obtained from {@code org.openyou.store.segments}.
+     *
+     * @param root
+     */
+    public SegmentStore(File root) {
+        this(root, ConfigFactory.load().getConfig("org.openyou.store.segments"));
+    }
+
+    private SegmentStore(File root, Config config) {
+        this(root, config.getInt("size"), config.getMilliseconds("retention"));
+    }
+
+    /**
+     * @param root        directory containing all the sessions
+     * @param segmentSize maximum number of samples in a segment
+     * @param retention   milliseconds to retain data for in {@link #expire()}, or zero for forever.
+     */
+    public SegmentStore(File root, int segmentSize, long retention) {
+        Preconditions.checkArgument(segmentSize > 0 && retention >= 0);
+        this.root = Preconditions.checkNotNull(root);
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IllegalArgumentException("could not create " + root);
+    }
+
+    // a session's segments, locked for all operations, see perform
+    private class Segments {
+        private final File dir;
+        // sparse index, by first timestamp
+        @GuardedBy("this")
+        private final NavigableMap<Long, Segment> index = Maps.newTreeMap();
+        // allocated by the first append since the last flush
+        @GuardedBy("this")
+        private SampleBlock buffer;
+        // no longer in the cache, so must not be used
+        @GuardedBy("this")
+        private boolean released;
+
+        Segments(UUID session) throws IOException {
+            dir = new File(root, session.toString());
+            File manifest = new File(dir, MANIFEST);
+            if (manifest.exists())
+                recover(manifest);
+            File[] files = dir.listFiles();
+            if (files == null)
+                return;
+            for (File file : files) {
+                Segment segment = Segment.parse(file);
+                if (segment != null)
+                    index.put(segment.first, segment);
+            }
+        }
+
+        synchronized void append(SampleBlock block) throws IOException {
+            if (buffer == null)
+                buffer = new SampleBlock(segmentSize);
+            for (int i = 0; i < block.getSize(); i++) {
+                buffer.add(block, i);
+                if (buffer.isFull())
+                    writeBuffer();
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            if (buffer == null)
+                return;
+            writeBuffer();
+            buffer = null;
+        }
+
+        @GuardedBy("this")
+        private void writeBuffer() throws IOException {
+            if (buffer.getSize() == 0)
+                return;
+            Segment segment = write(dir, buffer);
+            index.put(segment.first, segment);
+            buffer.clear();
+        }
+
+        synchronized List<Segment> overlapping(long from, long to) {
+            List<Segment> overlapping = Lists.newArrayList();
+            Long start = index.floorKey(from);
+            for (Segment segment : index.tailMap(start == null ? from : start, true).values()) {
+                if (segment.first >= to)
+                    break;
+                if (segment.last >= from)
+                    overlapping.add(segment);
+            }
+            return overlapping;
+        }
+
+        synchronized int expire(long cutoff) {
+            int deleted = 0;
+            Iterator<Segment> it = index.values().iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (segment.last >= cutoff)
+                    break;
+                if (!segment.file.delete())
+                    log.warning("could not delete " + segment.file);
+                it.remove();
+                deleted++;
+            }
+            return deleted;
+        }
+
+        synchronized int compact() throws IOException {
+            List<Segment> run = Lists.newArrayList();
+            int compacted = 0;
+            for (Segment segment : Lists.newArrayList(index.values())) {
+                if (segment.size < segmentSize) {
+                    run.add(segment);
+                    continue;
+                }
+                compacted += merge(run);
+                run.clear();
+            }
+            compacted += merge(run);
+            return compacted;
+        }
+
+        // rewrites consecutive small segments as full segments
+        @GuardedBy("this")
+        private int merge(List<Segment> run) throws IOException {
+            if (run.size() < 2)
+                return 0;
+            // the replacements are named before anything is written, for the manifest
+            List<String> names = Lists.newArrayList();
+            int size = 0;
+            long first = 0, last = 0;
+            for (Segment segment : run) {
+                SampleBlock block = segment.read();
+                for (int i = 0; i < block.getSize(); i++) {
+                    last = block.getTimestamp(i);
+                    if (size == 0)
+                        first = last;
+                    if (++size == segmentSize) {
+                        names.add(Segment.name(first, last, size));
+                        size = 0;
+                    }
+                }
+            }
+            if (size > 0)
+                names.add(Segment.name(first, last, size));
+
+            Set<String> replaced = Sets.newLinkedHashSet();
+            for (Segment segment : run) {
+                replaced.add(segment.file.getName());
+            }
+            // a replacement may be identical to one of the originals
+            Set<String> unchanged = Sets.newHashSet(Sets.intersection(replaced, Sets.newHashSet(names)));
+            StringBuilder contents = new StringBuilder();
+            for (String name : replaced) {
+                contents.append('-').append(name).append('\n');
+            }
+            for (String name : names) {
+                contents.append('+').append(name).append('\n');
+            }
+            File manifest = new File(dir, MANIFEST);
+            replace(manifest, ByteBuffer.wrap(contents.toString().getBytes(Charsets.UTF_8)));
+
+            SampleBlock merged = new SampleBlock(segmentSize);
+            Iterator<String> expected = names.iterator();
+            for (Segment segment : run) {
+                SampleBlock block = segment.read();
+                for (int i = 0; i < block.getSize(); i++) {
+                    merged.add(block, i);
+                    if (merged.isFull()) {
+                        writeMerged(merged, expected.next(), unchanged);
+                        merged.clear();
+                    }
+                }
+            }
+            if (merged.getSize() > 0)
+                writeMerged(merged, expected.next(), unchanged);
+
+            for (Segment segment : run) {
+                if (unchanged.contains(segment.file.getName()))
+                    continue;
+                Segment current = index.get(segment.first);
+                if (current != null && current.file.equals(segment.file))
+                    index.remove(segment.first);
+                if (!segment.file.delete())
+                    log.warning("could not delete " + segment.file);
+            }
+            if (!manifest.delete())
+                throw new IOException("could not delete " + manifest);
+            return run.size();
+        }
+
+        @GuardedBy("this")
+        private void writeMerged(SampleBlock merged, String name, Set<String> unchanged) throws IOException {
+            if (unchanged.contains(name))
+                return;
+            Segment written = write(dir, merged);
+            if (!written.file.getName().equals(name))
+                throw new IOException("segments changed during compaction: " + dir);
+            index.put(written.first, written);
+        }
+
+        // completes the compaction if all of the replacements were written, otherwise undoes it
+        private void recover(File manifest) throws IOException {
+            Set<String> replaced = Sets.newHashSet(), replacements = Sets.newHashSet();
+            for (String line : Files.readLines(manifest, Charsets.UTF_8)) {
+                if (line.startsWith("-"))
+                    replaced.add(line.substring(1));
+                else if (line.startsWith("+"))
+                    replacements.add(line.substring(1));
+            }
+            boolean complete = true;
+            for (String name : replacements) {
+                if (!new File(dir, name).exists())
+                    complete = false;
+            }
+            Set<String> obsolete = complete ?
+                    Sets.difference(replaced, replacements) : Sets.difference(replacements, replaced);
+            for (String name : obsolete) {
+                File file = new File(dir, name);
+                if (file.exists() && !file.delete())
+                    throw new IOException("could not delete " + file);
+            }
+            if (!manifest.delete())
+                throw new IOException("could not delete " + manifest);
+            log.info(format("%s the compaction of %s", complete ? "Completed" : "Undid", dir));
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long first, last;
+        private final int size;
+
+        Segment(File file, long first, long last, int size) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            this.size = size;
+        }
+
+        static String name(long first, long last, int size) {
+            return format("%d_%d_%d%s", first, last, size, SUFFIX);
+        }
+
+        static Segment parse(File file) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX))
+                return null;
+            String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("_");
+            if (parts.length != 3)
+                return null;
+            return new Segment(file, Long.parseLong(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        SampleBlock read() throws IOException {
+            @Cleanup RandomAccessFile raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("not a segment: " + file);
+            int version = buffer.getInt();
+            int size = buffer.getInt();
+            buffer.position(HEADER);
+            SampleBlock block = new SampleBlock(Math.max(1, size));
+            if (version != VERSION)
+                throw new IOException(format("unsupported version %s: %s", version, file));
+            try {
+                return BlockCodec.decode(buffer, block);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("corrupt segment: " + file, e);
+            }
+        }
+    }
+
+    private static Segment write(File dir, SampleBlock block) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create " + dir);
+        int n = block.getSize();
+        long first = block.getTimestamp(0);
+        long last = block.getTimestamp(n - 1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + BlockCodec.maxEncodedSize(n));
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putLong(first).putLong(last);
+        BlockCodec.encode(block, buffer);
+        buffer.flip();
+
+        File file = new File(dir, Segment.name(first, last, n));
+        replace(file, buffer);
+        return new Segment(file, first, last, n);
+    }
+
+    // atomically replaces the file with the contents of the buffer
+    private static void replace(File file, ByteBuffer buffer) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        {
+            @Cleanup RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not rename " + tmp);
+    }
+
+    private interface Operation<R> {
+        R apply(Segments segments) throws IOException;
+    }
+
+    // performs the operation while holding the lock on the session's segments,
+    // which are only kept in the cache while they have buffered data
+    private <R> R perform(UUID session, Operation<R> operation) throws IOException {
+        Preconditions.checkNotNull(session);
+        while (true) {
+            Segments segments = sessions.get(session);
+            if (segments == null) {
+                Segments created = new Segments(session);
+                segments = sessions.putIfAbsent(session, created);
+                if (segments == null)
+                    segments = created;
+            }
+            synchronized (segments) {
+                // another thread released them after we obtained them
+                if (segments.released)
+                    continue;
+                try {
+                    return operation.apply(segments);
+                } finally {
+                    if (segments.buffer == null) {
+                        segments.released = true;
+                        sessions.remove(session, segments);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void append(UUID session, final SampleBlock block) throws IOException {
+        Preconditions.checkNotNull(block);
+        perform(session, new Operation<Void>() {
+            @Override
+            public Void apply(Segments segments) throws IOException {
+                segments.append(block);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void flush(UUID session) throws IOException {
+        perform(session, new Operation<Void>() {
+            @Override
+            public Void apply(Segments segments) throws IOException {
+                segments.flush();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Iterator<SampleBlock> read(final UUID session, final long from, final long to) throws IOException {
+        Preconditions.checkArgument(from <= to);
+        final Iterator<Segment> initial = overlapping(session, from, to).iterator();
+        return new AbstractIterator<SampleBlock>() {
+            private Iterator<Segment> segments = initial;
+            // everything before this has been returned
+            private long position = from;
+            // segments that could not be read even after re-resolving the range
+            private final Set<File> unreadable = Sets.newHashSet();
+
+            @Override
+            protected SampleBlock computeNext() {
+                while (segments.hasNext()) {
+                    Segment segment = segments.next();
+                    if (segment.last < position)
+                        continue;
+                    SampleBlock block;
+                    try {
+                        block = segment.read();
+                    } catch (IOException e) {
+                        if (!unreadable.add(segment.file)) {
+                            log.warning("skipping " + segment.file + ": " + e);
+                            continue;
+                        }
+                        // the segment may have been compacted or expired since the scan started,
+                        // so the remainder of the range is resolved again from the current index
+                        try {
+                            segments = overlapping(session, position, to).iterator();
+                        } catch (IOException f) {
+                            throw new IllegalStateException("could not read " + session, f);
+                        }
+                        continue;
+                    }
+                    SampleBlock result;
+                    if (segment.first >= position && segment.last < to) {
+                        result = block;
+                    } else {
+                        int start = block.indexOf(position);
+                        int end = block.indexOf(to);
+                        if (start == end)
+                            continue;
+                        result = new SampleBlock(end - start);
+                        for (int i = start; i < end; i++)
+                            result.add(block, i);
+                    }
+                    position = result.getTimestamp(result.getSize() - 1) + 1;
+                    return result;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private List<Segment> overlapping(UUID session, final long from, final long to) throws IOException {
+        return perform(session, new Operation<List<Segment>>() {
+            @Override
+            public List<Segment> apply(Segments segments) {
+                return segments.overlapping(from, to);
+            }
+        });
+    }
+
+    @Override
+    public void delete(UUID session) throws IOException {
+        perform(session, new Operation<Void>() {
+            @Override
+            public Void apply(Segments segments) throws IOException {
+                // discards anything buffered, which also releases the segments
+                segments.buffer = null;
+                File[] files = segments.dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.delete())
+                            throw new IOException("could not delete " + file);
+                    }
+                }
+                if (segments.dir.exists() && !segments.dir.delete())
+                    throw new IOException("could not delete " + segments.dir);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Merges consecutive segments that are smaller than the segment size.
+     *
+     * @param session
+     * @return the number of segments that were merged.
+     * @throws IOException
+     */
+    public int compact(UUID session) throws IOException {
+        return perform(session, new Operation<Integer>() {
+            @Override
+            public Integer apply(Segments segments) throws IOException {
+                return segments.compact();
+            }
+        });
+    }
+
+    /**
+     * Deletes all segments, of all sessions, that only contain data older than the cutoff.
+     *
+     * @param cutoff milliseconds since the epoch
+     * @return the number of segments that were deleted.
+     */
+    public int expire(final long cutoff) {
+        int deleted = 0;
+        File[] dirs = root.listFiles();
+        if (dirs == null)
+            return 0;
+        for (File dir : dirs) {
+            UUID session;
+            try {
+                session = UUID.fromString(dir.getName());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            try {
+                deleted += perform(session, new Operation<Integer>() {
+                    @Override
+                    public Integer apply(Segments segments) {
+                        return segments.expire(cutoff);
+                    }
+                });
+            } catch (IOException e) {
+                log.warning("could not expire " + dir + ": " + e);
+            }
+        }
+        if (deleted > 0)
+            log.info(format("Expired %s segments older than %tF %<tT", deleted, cutoff));
+        return deleted;
+    }
+
+    /**
+     * Applies the configured retention policy, a no-op if data is retained forever.
+     *
+     * @return the number of segments that were deleted.
+     */
+    public int expire() {
+        if (retention == 0)
+            return 0;
+        return expire(System.currentTimeMillis() - retention);
+    }
+
+    /**
+     * Flushes all sessions.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        for (UUID session : sessions.keySet()) {
+            flush(session);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.openyou.SampleBlock;
+import org.openyou.dsp.ArtifactDetector.Artifact;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sam Halliday
+ */
+public class ArtifactDetectorTest {
+
+    private final List<Artifact> artifacts = Lists.newArrayList();
+
+    private final ArtifactDetector detector = new ArtifactDetector(new ArtifactDetector.Listener() {
+        @Override
+        public void receiveArtifact(Artifact artifact) {
+            artifacts.add(artifact);
+        }
+    }, 150, 6, 40, 25, 2000, 250, 100, 5000, 1000);
+
+    // a lasting shift, larger than the amplitude threshold, must not latch the detector
+    @Test
+    public void testStep() {
+        int step = (int) Math.round(200 / SampleBlock.MICROVOLTS);
+        Random random = new Random(0);
+        SampleBlock block = new SampleBlock(SampleBlock.RATE);
+        int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+        for (int i = 0; i < 60 * SampleBlock.RATE; i++) {
+            long timestamp = 1000L * i / SampleBlock.RATE;
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = 8192 + (int) (5 * random.nextGaussian()) + (timestamp >= 5000 ? step : 0);
+            }
+            block.add(timestamp, 80, 0, 0, levels, qualities);
+            if (block.isFull()) {
+                detector.receiveBlock(block);
+                block.clear();
+            }
+            if (timestamp == 20000)
+                assertEquals("published before the end of the data", 1, artifacts.size());
+        }
+        detector.flush();
+
+        assertEquals(1, artifacts.size());
+        Artifact artifact = artifacts.get(0);
+        assertEquals(5000, artifact.getFrom());
+        assertEquals(10000, artifact.getTo());
+        assertTrue(artifact.getKinds().contains(ArtifactDetector.Kind.AMPLITUDE));
+        assertEquals((1 << SampleBlock.CHANNELS) - 1, artifact.getChannels());
+    }
+
+    // motion that outlasts the longest artifact must be covered without gaps
+    @Test
+    public void testSustainedMotion() {
+        Random random = new Random(0);
+        SampleBlock block = new SampleBlock(SampleBlock.RATE);
+        int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+        for (int i = 0; i < 30 * SampleBlock.RATE; i++) {
+            long timestamp = 1000L * i / SampleBlock.RATE;
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = 8192 + (int) (5 * random.nextGaussian());
+            }
+            int gyro = timestamp >= 5000 && timestamp < 25000 ? (i % 2 == 0 ? 20 : -20) : 0;
+            block.add(timestamp, 80, gyro, gyro, levels, qualities);
+            if (block.isFull()) {
+                detector.receiveBlock(block);
+                block.clear();
+            }
+        }
+        detector.flush();
+
+        assertTrue(artifacts.size() >= 4);
+        assertTrue(artifacts.get(0).getFrom() - 5000 <= 1000 / SampleBlock.RATE);
+        for (int a = 1; a < artifacts.size(); a++) {
+            Artifact previous = artifacts.get(a - 1), artifact = artifacts.get(a);
+            assertTrue(artifact.getKinds().contains(ArtifactDetector.Kind.MOTION));
+            long gap = artifact.getFrom() - previous.getTo();
+            assertTrue("gap after " + previous, gap > 0 && gap <= 1 + 1000 / SampleBlock.RATE);
+        }
+        assertTrue(artifacts.get(artifacts.size() - 1).getTo() >= 25000 - 1000 / SampleBlock.RATE);
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.dsp;
+
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+
+import java.util.Random;
+
+import static java.lang.String.format;
+
+/**
+ * Measures the throughput of {@link SpatialFilter}s, in samples per second
+ * on a single core, for the common average reference and the longitudinal
+ * chains, into separate buffers and in place.
+ * <p/>
+ * The optional argument is the number of seconds to measure each case.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public final class SpatialFilterBenchmark {
+
+    private static final int BLOCK = 1024;
+
+    public static void main(String[] args) {
+        long millis = 1000 * (args.length > 0 ? Long.parseLong(args[0]) : 5);
+        Random random = new Random(0);
+        double[][] input = new double[SampleBlock.CHANNELS][BLOCK];
+        for (double[] channel : input) {
+            for (int i = 0; i < BLOCK; i++) {
+                channel[i] = 4096 + 100 * random.nextGaussian();
+            }
+        }
+        SpatialFilter car = SpatialFilter.commonAverage();
+        SpatialFilter chains = SpatialFilter.longitudinal();
+        measure("common average", car, input, new double[car.getOutputs()][BLOCK], millis);
+        measure("common average in place", car, input, input, millis);
+        measure("longitudinal", chains, input, new double[chains.getOutputs()][BLOCK], millis);
+    }
+
+    private static void measure(String name, SpatialFilter filter, double[][] input, double[][] output, long millis) {
+        // warm up, so that the timed loop is compiled
+        run(filter, input, output, millis / 5);
+        long started = System.nanoTime();
+        long samples = run(filter, input, output, millis);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        log.info(format("%s: %.1fM samples/s", name, samples / seconds / 1e6));
+    }
+
+    private static long run(SpatialFilter filter, double[][] input, double[][] output, long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long samples = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 100; i++) {
+                filter.apply(input, output, 0, BLOCK);
+            }
+            samples += 100 * BLOCK;
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static java.lang.String.format;
+
+/**
+ * Measures the throughput of the {@link BlockCodec}, in samples per second
+ * on a single core, and its compression ratio against the uncompressed
+ * columnar layout (a long timestamp and an int for every other field, i.e.
+ * 132 bytes per sample) for segment sized blocks of synthetic data:
+ * <ul>
+ * <li>uniformly random 14 bit levels and random qualities, the worst case</li>
+ * <li>gaussian noise (sd 100) around a baseline, with a constant quality</li>
+ * <li>a random walk (steps with sd 10), which is closer to real EEG</li>
+ * </ul>
+ * The optional argument is the number of seconds to measure each case.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public final class BlockCodecBenchmark {
+
+    private static final int SAMPLES = 4096;
+    private static final int RAW = 8 + 4 * (2 * SampleBlock.CHANNELS + 3);
+
+    private enum Input {
+        UNIFORM, GAUSSIAN, WALK
+    }
+
+    public static void main(String[] args) {
+        long millis = 1000 * (args.length > 0 ? Long.parseLong(args[0]) : 5);
+        for (Input input : Input.values()) {
+            measure(input, create(input, new Random(0)), millis);
+        }
+    }
+
+    private static SampleBlock create(Input input, Random random) {
+        SampleBlock block = new SampleBlock(SAMPLES);
+        int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            levels[c] = 8192;
+            qualities[c] = SampleBlock.GOOD_QUALITY;
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                switch (input) {
+                    case UNIFORM:
+                        levels[c] = random.nextInt(1 << 14);
+                        qualities[c] = random.nextInt(2 * SampleBlock.GOOD_QUALITY);
+                        break;
+                    case GAUSSIAN:
+                        levels[c] = 8192 + (int) (100 * random.nextGaussian());
+                        break;
+                    case WALK:
+                        levels[c] += (int) (10 * random.nextGaussian());
+                        break;
+                }
+            }
+            block.add(1000L * i / SampleBlock.RATE, 80, 0, 0, levels, qualities);
+        }
+        return block;
+    }
+
+    private static void measure(Input input, SampleBlock block, long millis) {
+        ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.maxEncodedSize(SAMPLES));
+        int encoded = BlockCodec.encode(block, buffer);
+        ByteBuffer source = ByteBuffer.allocate(encoded);
+        buffer.flip();
+        source.put(buffer).flip();
+        SampleBlock decoded = new SampleBlock(SAMPLES);
+
+        // warm up, so that the timed loops are compiled
+        encode(block, buffer, millis / 5);
+        decode(source, decoded, millis / 5);
+        long started = System.nanoTime();
+        long samples = encode(block, buffer, millis);
+        double encoding = samples / ((System.nanoTime() - started) / 1e9);
+        started = System.nanoTime();
+        samples = decode(source, decoded, millis);
+        double decoding = samples / ((System.nanoTime() - started) / 1e9);
+
+        log.info(format("%s: %.1f bytes/sample (%.1f%% of raw), encode %.1fM samples/s, decode %.1fM samples/s",
+                input, (double) encoded / SAMPLES, 100.0 * encoded / (RAW * SAMPLES), encoding / 1e6, decoding / 1e6));
+    }
+
+    private static long encode(SampleBlock block, ByteBuffer buffer, long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long samples = 0;
+        while (System.currentTimeMillis() < end) {
+            buffer.clear();
+            BlockCodec.encode(block, buffer);
+            samples += block.getSize();
+        }
+        return samples;
+    }
+
+    // the buffer holds exactly one encoded block
+    private static long decode(ByteBuffer buffer, SampleBlock block, long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long samples = 0;
+        while (System.currentTimeMillis() < end) {
+            buffer.rewind();
+            BlockCodec.decode(buffer, block);
+            samples += block.getSize();
+        }
+        return samples;
+    }
+}
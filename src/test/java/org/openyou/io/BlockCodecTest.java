@@ -0,0 +1,128 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.io;
+
+import org.junit.Test;
+import org.openyou.SampleBlock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sam Halliday
+ */
+public class BlockCodecTest {
+
+    private static final int MAX_LEVEL = (1 << 14) - 1;
+
+    private final Random random = new Random(0);
+    private final int[] levels = new int[SampleBlock.CHANNELS];
+    private final int[] qualities = new int[SampleBlock.CHANNELS];
+
+    @Test
+    public void testEmpty() {
+        assertRoundTrip(new SampleBlock(1));
+    }
+
+    @Test
+    public void testSingle() {
+        SampleBlock block = new SampleBlock(1);
+        Arrays.fill(levels, MAX_LEVEL);
+        Arrays.fill(qualities, 0);
+        block.add(Long.MAX_VALUE, 100, -128, 127, levels, qualities);
+        assertRoundTrip(block);
+    }
+
+    @Test
+    public void testConstant() {
+        SampleBlock block = new SampleBlock(SampleBlock.RATE);
+        for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+            levels[c] = 8192 + c;
+            qualities[c] = SampleBlock.GOOD_QUALITY;
+        }
+        for (int i = 0; i < block.getCapacity(); i++) {
+            block.add(1000L * i / SampleBlock.RATE, 80, 0, 0, levels, qualities);
+        }
+        assertRoundTrip(block);
+    }
+
+    // every delta is the largest possible swing between 14 bit readings
+    @Test
+    public void testExtremes() {
+        SampleBlock block = new SampleBlock(SampleBlock.RATE);
+        for (int i = 0; i < block.getCapacity(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = (i + c) % 2 == 0 ? 0 : MAX_LEVEL;
+                qualities[c] = i % 2 == 0 ? 0 : Integer.MAX_VALUE;
+            }
+            // timestamps that go backwards and jump
+            long timestamp = i % 2 == 0 ? -1000L * i : 1000000L * i;
+            block.add(timestamp, i % 101, i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE, -i, levels, qualities);
+        }
+        assertRoundTrip(block);
+    }
+
+    @Test
+    public void testRandom() {
+        SampleBlock block = new SampleBlock(1000);
+        for (int i = 0; i < block.getCapacity(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = random.nextInt(MAX_LEVEL + 1);
+                qualities[c] = random.nextInt(2 * SampleBlock.GOOD_QUALITY);
+            }
+            block.add(1000L * i / SampleBlock.RATE, random.nextInt(101), random.nextInt(256) - 128,
+                    random.nextInt(256) - 128, levels, qualities);
+        }
+        assertRoundTrip(block);
+    }
+
+    @Test
+    public void testTruncated() {
+        SampleBlock block = new SampleBlock(SampleBlock.RATE);
+        for (int i = 0; i < block.getCapacity(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = 8192 + random.nextInt(100);
+            }
+            block.add(1000L * i / SampleBlock.RATE, 80, 0, 0, levels, qualities);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.maxEncodedSize(block.getSize()));
+        int written = BlockCodec.encode(block, buffer);
+        buffer.flip();
+        buffer.limit(written - 1);
+        try {
+            BlockCodec.decode(buffer);
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void assertRoundTrip(SampleBlock block) {
+        int n = block.getSize();
+        ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.maxEncodedSize(n) + 1);
+        buffer.put((byte) 42);
+        int written = BlockCodec.encode(block, buffer);
+        assertEquals(1 + written, buffer.position());
+        assertTrue(written <= BlockCodec.maxEncodedSize(n));
+        buffer.flip();
+        buffer.get();
+
+        SampleBlock decoded = new SampleBlock(Math.max(1, n));
+        BlockCodec.decode(buffer, decoded);
+        assertEquals("trailing bytes", 0, buffer.remaining());
+        assertEquals("size", n, decoded.getSize());
+        for (int i = 0; i < n; i++) {
+            assertEquals("timestamp " + i, block.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals("battery " + i, block.getBattery(i), decoded.getBattery(i));
+            assertEquals("gyroX " + i, block.getGyroX(i), decoded.getGyroX(i));
+            assertEquals("gyroY " + i, block.getGyroY(i), decoded.getGyroY(i));
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                assertEquals("level " + c + " " + i, block.getLevel(c, i), decoded.getLevel(c, i));
+                assertEquals("quality " + c + " " + i, block.getQuality(c, i), decoded.getQuality(c, i));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.jpa;
+
+import com.google.common.collect.Lists;
+import fommil.persistence.CrudDao;
+import lombok.extern.java.Log;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+
+/**
+ * Compares the rate at which the same synthetic session is written
+ * by {@link EmotivDatumLoader} and by the JPA path: one transaction
+ * per row (as {@link EmotivJpaController}) and batches of rows through
+ * {@link CrudDao#create(java.util.Collection)}.
+ * <p/>
+ * Writes to the {@code ZokuPU} database, so should be run against a
+ * scratch copy. The optional arguments are the number of rows per
+ * session and the number of rows per JPA batch.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public final class EmotivDatumLoaderBenchmark {
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        EntityManagerFactory emf = CrudDao.createEntityManagerFactory("ZokuPU");
+        try {
+            EmotivSessionCrud sessionCrud = EmotivSessionCrud.getInstance(emf);
+            EmotivDatumCrud datumCrud = new EmotivDatumCrud(emf);
+            EmotivDatumLoader loader = new EmotivDatumLoader(emf);
+
+            // warm up, so that all three paths are compiled and connected
+            loader.load(session("warmup"), data(null, 1000).iterator());
+
+            EmotivSession session = session("JPA per row");
+            sessionCrud.create(session);
+            List<EmotivDatum> data = data(session, rows);
+            long start = System.currentTimeMillis();
+            for (EmotivDatum datum : data) {
+                datumCrud.create(datum);
+            }
+            report(session, rows, start);
+
+            session = session("JPA batched");
+            sessionCrud.create(session);
+            data = data(session, rows);
+            start = System.currentTimeMillis();
+            for (int i = 0; i < rows; i += batch) {
+                datumCrud.create(data.subList(i, Math.min(rows, i + batch)));
+            }
+            report(session, rows, start);
+
+            session = session("bulk loader");
+            data = data(null, rows);
+            start = System.currentTimeMillis();
+            loader.load(session, data.iterator());
+            report(session, rows, start);
+        } finally {
+            emf.close();
+        }
+    }
+
+    private static EmotivSession session(String name) {
+        EmotivSession session = new EmotivSession();
+        session.setName("benchmark: " + name);
+        return session;
+    }
+
+    // one second of data every 128 rows, with the same values for every path
+    private static List<EmotivDatum> data(EmotivSession session, int rows) {
+        Random random = new Random(0);
+        long started = System.currentTimeMillis();
+        int[] levels = new int[EmotivDatum.SENSORS.length], qualities = new int[EmotivDatum.SENSORS.length];
+        List<EmotivDatum> data = Lists.newArrayListWithCapacity(rows);
+        for (int i = 0; i < rows; i++) {
+            EmotivDatum datum = new EmotivDatum();
+            datum.setSession(session);
+            datum.setTimestamp(new Date(started + i * 1000L / 128));
+            datum.setBattery(80);
+            datum.setGyroX(100 + random.nextInt(5));
+            datum.setGyroY(100 + random.nextInt(5));
+            for (int c = 0; c < levels.length; c++) {
+                levels[c] = 8192 + (int) (100 * random.nextGaussian());
+                qualities[c] = random.nextInt(512);
+            }
+            datum.setSensors(levels, qualities);
+            data.add(datum);
+        }
+        return data;
+    }
+
+    private static void report(EmotivSession session, int rows, long start) {
+        long end = System.currentTimeMillis();
+        log.info(format("%s: %s rows in %sms (%.0f rows/s)",
+                session.getName(), rows, end - start, 1000.0 * rows / Math.max(1, end - start)));
+    }
+}
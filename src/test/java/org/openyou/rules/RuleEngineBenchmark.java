@@ -0,0 +1,110 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.rules;
+
+import com.google.common.collect.Lists;
+import lombok.extern.java.Log;
+import org.openyou.Packet.Sensor;
+import org.openyou.SampleBlock;
+import org.openyou.dsp.Band;
+
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static org.openyou.rules.Condition.*;
+
+/**
+ * Measures the throughput of a {@link RuleEngine}, in rule evaluations
+ * (and samples) per second on a single core, for a mix of random rules
+ * on levels, contact quality, gyro and band powers, with hysteresis
+ * and debouncing.
+ * <p/>
+ * The optional arguments are the number of rules and the number of
+ * seconds to measure.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public final class RuleEngineBenchmark {
+
+    private static final Band[] BANDS = Band.values();
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long millis = 1000 * (args.length > 1 ? Long.parseLong(args[1]) : 5);
+        Random random = new Random(0);
+
+        List<Rule> rules = Lists.newArrayList();
+        for (int r = 0; r < count; r++) {
+            rules.add(new Rule("rule " + r, condition(random), random.nextInt(500), random.nextInt(500)));
+        }
+        final long[] triggers = new long[1];
+        RuleEngine engine = new RuleEngine(rules, new RuleEngine.Listener() {
+            @Override
+            public void receiveTrigger(Rule rule, long timestamp, boolean active) {
+                triggers[0]++;
+            }
+        });
+
+        SampleBlock block = new SampleBlock(10 * SampleBlock.RATE);
+        int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+        for (int i = 0; i < block.getCapacity(); i++) {
+            for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                levels[c] = 8192 + (int) (200 * random.nextGaussian());
+                qualities[c] = random.nextInt(2 * SampleBlock.GOOD_QUALITY);
+            }
+            block.add(1000L * i / SampleBlock.RATE, 80, random.nextInt(200) - 100, random.nextInt(200) - 100,
+                    levels, qualities);
+        }
+        double[][] powers = new double[SampleBlock.CHANNELS][BANDS.length];
+        for (double[] channel : powers) {
+            for (int b = 0; b < BANDS.length; b++) {
+                channel[b] = 10 * random.nextDouble();
+            }
+        }
+
+        // warm up, so that the timed loop is compiled
+        run(engine, block, powers, millis / 5);
+        long started = System.nanoTime();
+        long samples = run(engine, block, powers, millis);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        log.info(format("%s rules: %.1fM evaluations/s, %.0fk samples/s, %s triggers",
+                count, samples * count / seconds / 1e6, samples / seconds / 1e3, triggers[0]));
+    }
+
+    private static Condition condition(Random random) {
+        Sensor sensor = SampleBlock.SENSORS.get(random.nextInt(SampleBlock.CHANNELS));
+        switch (random.nextInt(5)) {
+            case 0:
+                return above(Feature.level(sensor), 8192 + 200 * random.nextGaussian(), 20);
+            case 1:
+                return below(Feature.quality(sensor), SampleBlock.FAIR_QUALITY);
+            case 2:
+                return any(above(Feature.gyroX(), 50), below(Feature.gyroX(), -50),
+                        not(below(Feature.gyroY(), 50)));
+            case 3:
+                Sensor other = SampleBlock.SENSORS.get(random.nextInt(SampleBlock.CHANNELS));
+                Band band = BANDS[random.nextInt(BANDS.length)];
+                return all(above(Feature.bandPower(sensor, band), 5, 1), above(Feature.bandPower(other, band), 5, 1));
+            default:
+                return contactsGood();
+        }
+    }
+
+    private static long run(RuleEngine engine, SampleBlock block, double[][] powers, long millis) {
+        long[] timestamps = block.getTimestamps();
+        long duration = timestamps[block.getSize() - 1] - timestamps[0] + 1000 / SampleBlock.RATE;
+        long end = System.currentTimeMillis() + millis;
+        long samples = 0;
+        while (System.currentTimeMillis() < end) {
+            // the engine requires timestamps in order
+            for (int i = 0; i < block.getSize(); i++) {
+                timestamps[i] += duration;
+            }
+            engine.receiveBandPowers(timestamps[0], powers);
+            engine.receiveBlock(block);
+            samples += block.getSize();
+        }
+        return samples;
+    }
+}
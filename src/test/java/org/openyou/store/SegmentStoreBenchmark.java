@@ -0,0 +1,86 @@
+// Copyright Samuel Halliday 2012
+package org.openyou.store;
+
+import com.google.common.io.Files;
+import lombok.extern.java.Log;
+import org.openyou.SampleBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.UUID;
+
+import static java.lang.String.format;
+
+/**
+ * Measures the throughput of a {@link SegmentStore} in a temporary
+ * directory: appending a synthetic session in blocks of one second,
+ * in samples per second, and then range scans of random ten second
+ * windows, in scans and samples per second.
+ * <p/>
+ * The optional arguments are the number of minutes of data and
+ * the number of range scans.
+ *
+ * @author Sam Halliday
+ */
+@Log
+public final class SegmentStoreBenchmark {
+
+    private static final int WINDOW = 10 * 1000;
+
+    public static void main(String[] args) throws IOException {
+        int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        Random random = new Random(0);
+        File root = Files.createTempDir();
+        SegmentStore store = new SegmentStore(root, 4096, 0);
+        UUID session = UUID.randomUUID();
+        try {
+            SampleBlock block = new SampleBlock(SampleBlock.RATE);
+            int[] levels = new int[SampleBlock.CHANNELS], qualities = new int[SampleBlock.CHANNELS];
+            int seconds = 60 * minutes;
+            long started = System.nanoTime();
+            for (int s = 0; s < seconds; s++) {
+                block.clear();
+                for (int i = 0; i < SampleBlock.RATE; i++) {
+                    for (int c = 0; c < SampleBlock.CHANNELS; c++) {
+                        levels[c] = 8192 + (int) (100 * random.nextGaussian());
+                        qualities[c] = random.nextInt(2 * SampleBlock.GOOD_QUALITY);
+                    }
+                    block.add(1000L * s + 1000L * i / SampleBlock.RATE, 80, random.nextInt(5), random.nextInt(5),
+                            levels, qualities);
+                }
+                store.append(session, block);
+            }
+            store.flush(session);
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            long samples = (long) seconds * SampleBlock.RATE;
+            log.info(format("append: %s samples in %.1fs (%.0fk samples/s)", samples, elapsed, samples / elapsed / 1e3));
+
+            // warm up, so that the timed loop is compiled
+            scan(store, session, random, seconds, scans / 5);
+            started = System.nanoTime();
+            samples = scan(store, session, random, seconds, scans);
+            elapsed = (System.nanoTime() - started) / 1e9;
+            log.info(format("range scan: %.0f scans/s (%.0fk samples/s)", scans / elapsed, samples / elapsed / 1e3));
+        } finally {
+            store.delete(session);
+            store.close();
+            if (!root.delete())
+                log.warning("could not delete " + root);
+        }
+    }
+
+    private static long scan(SegmentStore store, UUID session, Random random, int seconds, int scans)
+            throws IOException {
+        long samples = 0;
+        for (int i = 0; i < scans; i++) {
+            long from = (long) random.nextInt(1000 * seconds - WINDOW);
+            Iterator<SampleBlock> blocks = store.read(session, from, from + WINDOW);
+            while (blocks.hasNext())
+                samples += blocks.next().getSize();
+        }
+        return samples;
+    }
+}